@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.cbioportal.session_service.domain.VirtualCohorts;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.context.embedded.EmbeddedWebApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.web.client.RestTemplate;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Requests against the whole service, running with the test profile on
+ * an embedded MongoDB like SessionServiceTest.  The session cache is off
+ * so that every read goes to the database; to measure with it, pass
+ * e.g. -jvmArgsAppend -Dsession.service.cache.max-bytes=67108864.
+ * Every benchmark runs in a fork of its own, so sessions added by
+ * addSession do not change the results of the others.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SessionServiceBenchmark
+{
+    private static final int SESSIONS = 10;
+
+    @Param({"10", "1000", "100000"})
+    public int samples;
+
+    private ConfigurableApplicationContext context;
+    private RestTemplate template;
+    private String base;
+    private HttpEntity<String> session;
+    private HttpEntity<String> ids;
+    private String id;
+    private String userID;
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        SpringApplication application = new SpringApplication(SessionService.class);
+        application.setDefaultProperties(Collections.<String, Object>singletonMap(
+            "session.service.cache.max-bytes", "0"));
+        context = application.run("--spring.profiles.active=test", "--server.port=0");
+        int port = ((EmbeddedWebApplicationContext) context).getEmbeddedServletContainer().getPort();
+        base = "http://localhost:" + port + "/api/sessions/";
+        template = new RestTemplate(new SimpleClientHttpRequestFactory());
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        String json = VirtualCohorts.json(samples);
+        session = new HttpEntity<String>(json, headers);
+        ObjectMapper objectMapper = new ObjectMapper();
+        userID = objectMapper.readTree(json).path("virtualCohort").path("userID").asText();
+        List<String> added = new ArrayList<String>();
+        for (int i = 0; i < SESSIONS; i++) {
+            JsonNode response = objectMapper.readTree(template.postForObject(base, session, String.class));
+            added.add(response.get("id").asText());
+        }
+        id = added.get(0);
+        ids = new HttpEntity<String>(objectMapper.writeValueAsString(added), headers);
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        context.close();
+    }
+
+    @Benchmark
+    public String addSession()
+    {
+        return template.postForObject(base, session, String.class);
+    }
+
+    @Benchmark
+    public byte[] getSession()
+    {
+        return template.getForObject(base + id, byte[].class);
+    }
+
+    /* the SESSIONS sessions of one user */
+    @Benchmark
+    public byte[] getSessionsByUserID()
+    {
+        return template.getForObject(base + "query?userid={userid}", byte[].class, userID);
+    }
+
+    /* the same SESSIONS sessions in one request */
+    @Benchmark
+    public byte[] getSessionsByIds()
+    {
+        return template.postForObject(base + "_mget", ids, byte[].class);
+    }
+}
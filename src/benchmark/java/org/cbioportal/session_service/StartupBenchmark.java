@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.cbioportal.session_service.domain.SessionWarmup;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.util.FileSystemUtils;
+
+/**
+ * Time from starting the service in a new JVM until it is ready, that is
+ * until /health would report UP, with and without the trimmed
+ * auto-configuration of --session.service.fast-start and with and
+ * without its warm-up, which makes the server ready later but its first
+ * requests faster.  Runs with the "embedded" profile, so that starting a
+ * database is not measured.  Only the first start in a JVM is measured,
+ * as an autoscaled server only starts once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(10)
+public class StartupBenchmark
+{
+    @Param({"false", "true"})
+    public boolean fastStart;
+
+    @Param({"false", "true"})
+    public boolean warmup;
+
+    private File directory;
+    private ConfigurableApplicationContext context;
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        directory = File.createTempFile("startup-benchmark", "");
+        directory.delete();
+    }
+
+    @Benchmark
+    public ConfigurableApplicationContext start() throws Exception
+    {
+        SpringApplication application = new SpringApplication(fastStart ? FastSessionService.class : SessionService.class);
+        application.setDefaultProperties(Collections.<String, Object>singletonMap(
+            "session.service.warmup.enabled", String.valueOf(warmup)));
+        context = application.run("--spring.profiles.active=embedded", "--server.port=0",
+            "--session.service.embedded.directory=" + directory.getPath());
+        SessionWarmup warmup = context.getBean(SessionWarmup.class);
+        while (!warmup.isDone()) {
+            Thread.sleep(1);
+        }
+        return context;
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown()
+    {
+        if (context != null) {
+            context.close();
+        }
+        FileSystemUtils.deleteRecursively(directory);
+    }
+}
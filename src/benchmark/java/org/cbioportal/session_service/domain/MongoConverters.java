@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.domain;
+
+import org.springframework.data.mongodb.core.convert.DbRefProxyHandler;
+import org.springframework.data.mongodb.core.convert.DbRefResolver;
+import org.springframework.data.mongodb.core.convert.DbRefResolverCallback;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+import org.springframework.data.mongodb.core.mapping.MongoPersistentEntity;
+import org.springframework.data.mongodb.core.mapping.MongoPersistentProperty;
+
+import com.mongodb.DBObject;
+import com.mongodb.DBRef;
+
+/**
+ * The Spring Data converter the repository maps sessions with, without
+ * a database behind it.
+ */
+final class MongoConverters
+{
+    private MongoConverters()
+    {
+    }
+
+    static MappingMongoConverter create()
+    {
+        MongoMappingContext mappingContext = new MongoMappingContext();
+        mappingContext.afterPropertiesSet();
+        MappingMongoConverter converter = new MappingMongoConverter(new NoDbRefResolver(), mappingContext);
+        converter.afterPropertiesSet();
+        return converter;
+    }
+
+    /*
+     * Sessions have no DBRefs.
+     */
+    private static class NoDbRefResolver implements DbRefResolver
+    {
+        @Override
+        public Object resolveDbRef(MongoPersistentProperty property, DBRef dbref,
+            DbRefResolverCallback callback, DbRefProxyHandler proxyHandler)
+        {
+            return null;
+        }
+
+        @Override
+        public DBRef createDbRef(org.springframework.data.mongodb.core.mapping.DBRef annotation,
+            MongoPersistentEntity<?> entity, Object id)
+        {
+            return null;
+        }
+
+        @Override
+        public DBObject fetch(DBRef dbRef)
+        {
+            return null;
+        }
+    }
+}
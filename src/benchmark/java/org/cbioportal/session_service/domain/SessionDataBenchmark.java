@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.domain;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BasicBSONEncoder;
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import com.mongodb.util.JSON;
+
+/**
+ * Compares the old and new ways of turning request JSON into the object
+ * that is saved, and of turning a stored document back into response
+ * JSON.  Run with -prof gc (the default for the benchmarks profile) to see
+ * bytes allocated per operation in gc.alloc.rate.norm.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionDataBenchmark
+{
+    @Param({"10", "1000", "100000"})
+    public int samples;
+
+    private String json;
+    private byte[] bson;
+    private ObjectMapper objectMapper;
+    private MappingMongoConverter converter;
+
+    @Setup
+    public void setUp()
+    {
+        json = VirtualCohorts.json(samples);
+        bson = new BasicBSONEncoder().encode(new BasicDBObject("_id", new ObjectId())
+            .append("_class", Session.class.getName())
+            .append("data", JSON.parse(json)));
+        objectMapper = new ObjectMapper();
+        converter = MongoConverters.create();
+    }
+
+    /* request JSON to saved object, before */
+    @Benchmark
+    public Object parseWithMongoJson()
+    {
+        return JSON.parse(json);
+    }
+
+    /* request JSON to saved object, after */
+    @Benchmark
+    public Object parseStreaming()
+    {
+        return SessionDataParser.parse(json);
+    }
+
+    /* stored BSON to response JSON, before: decode, map to Session, serialize */
+    @Benchmark
+    public byte[] writeFromDBObject() throws IOException
+    {
+        DBObject document = new DefaultDBDecoder().decode(bson, (DBCollection) null);
+        return objectMapper.writeValueAsBytes(converter.read(Session.class, document));
+    }
+
+    /* stored BSON to response JSON, after */
+    @Benchmark
+    public byte[] writeFromBson() throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bson.length);
+        JsonGenerator generator = objectMapper.getFactory().createGenerator(out);
+        SessionJsonWriter.write(bson, generator);
+        generator.close();
+        return out.toByteArray();
+    }
+}
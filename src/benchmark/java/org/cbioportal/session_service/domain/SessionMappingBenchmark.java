@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.domain;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * The steps a session goes through between request and database:
+ * construction (parse and checksum), Spring Data mapping both ways,
+ * Jackson serialization, and compression.  samples=10, 1000 and 100000
+ * are a small, a typical and a whole-study virtual cohort.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionMappingBenchmark
+{
+    @Param({"10", "1000", "100000"})
+    public int samples;
+
+    private String json;
+    private Session session;
+    private DBObject document;
+    private byte[] compressed;
+    private ObjectMapper objectMapper;
+    private MappingMongoConverter converter;
+    private SessionCompressor compressor;
+
+    @Setup
+    public void setUp()
+    {
+        json = VirtualCohorts.json(samples);
+        session = new Session(json);
+        objectMapper = new ObjectMapper();
+        converter = MongoConverters.create();
+        document = new BasicDBObject();
+        converter.write(session, document);
+        document.put("_id", new ObjectId());
+        compressor = new SessionCompressor(true, 0, new String[] {"virtualCohort.userID"}, new String[0]);
+        DBObject compressedDocument = new BasicDBObject("_id", document.get("_id")).append("data", session.getData());
+        compressor.compress(compressedDocument);
+        compressed = (byte[]) compressedDocument.get("compressed");
+    }
+
+    @Benchmark
+    public Session construct()
+    {
+        return new Session(json);
+    }
+
+    @Benchmark
+    public DBObject mapToDocument()
+    {
+        DBObject mapped = new BasicDBObject();
+        converter.write(session, mapped);
+        return mapped;
+    }
+
+    @Benchmark
+    public Session mapFromDocument()
+    {
+        return converter.read(Session.class, document);
+    }
+
+    @Benchmark
+    public byte[] serialize() throws IOException
+    {
+        return objectMapper.writeValueAsBytes(session);
+    }
+
+    @Benchmark
+    public DBObject compress()
+    {
+        DBObject compressedDocument = new BasicDBObject("_id", document.get("_id")).append("data", session.getData());
+        compressor.compress(compressedDocument);
+        return compressedDocument;
+    }
+
+    @Benchmark
+    public byte[] decompress()
+    {
+        return SessionCompressor.gunzip(compressed);
+    }
+}
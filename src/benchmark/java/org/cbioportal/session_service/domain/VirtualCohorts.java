@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.domain;
+
+/**
+ * Builds cBioPortal virtual cohort sessions of a given size for benchmarks.
+ */
+public final class VirtualCohorts
+{
+    private VirtualCohorts()
+    {
+    }
+
+    /**
+     * @param samples number of sample ids, spread over studies of 500 samples
+     */
+    public static String json(int samples)
+    {
+        StringBuilder json = new StringBuilder(64 + samples * 24);
+        json.append("{\"virtualCohort\":{")
+            .append("\"userID\":\"user").append(samples).append("@example.org\",")
+            .append("\"name\":\"My virtual cohort\",")
+            .append("\"description\":\"").append(samples).append(" samples from the benchmark\",")
+            .append("\"created\":1455057448927,")
+            .append("\"selectedCases\":[");
+        for (int i = 0; i < samples; i++) {
+            if (i % 500 == 0) {
+                if (i > 0) {
+                    json.append("]},");
+                }
+                json.append("{\"studyID\":\"study_").append(i / 500).append("_tcga\",\"samples\":[");
+            } else {
+                json.append(',');
+            }
+            json.append("\"TCGA-").append(String.format("%02d-%04d", i % 100, i)).append("-01\"");
+        }
+        if (samples > 0) {
+            json.append("]}");
+        }
+        json.append("]}}");
+        return json.toString();
+    }
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.Histogram;
+import org.apache.http.impl.client.HttpClients;
+import org.cbioportal.session_service.metrics.Histograms;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.context.embedded.EmbeddedWebApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.env.SimpleCommandLinePropertySource;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.web.client.ResponseErrorHandler;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestTemplate;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+/**
+ * Sends a {@link Workload} to the service over HTTP at a fixed rate and
+ * reports throughput, latency percentiles and errors per operation.
+ * Without --url the service is started in this JVM with the test profile,
+ * on an embedded MongoDB like SessionServiceTest; any other --name=value
+ * argument is passed on to it as a property.  Options:
+ *
+ * --mix=get:90,post:8,query:2  operations (get, post, put, query) and weights
+ * --rate=200                   requests per second
+ * --duration=60 --warmup=10    seconds measured, after seconds not measured
+ * --sessions=1000 --users=100  sessions written before the test, and users
+ * --zipf=1.0                   exponent for picking sessions and users
+ * --samples=100                samples per virtual cohort
+ * --threads=64 --seed=1
+ * --url=http://host:8080/api/sessions/ --result=loadtest-result.json
+ *
+ * Requests are sent on schedule whether or not earlier ones have been
+ * answered, and latency is measured from when a request was due, so a
+ * service that falls behind shows it in the percentiles.
+ */
+public final class LoadTest
+{
+    private final SimpleCommandLinePropertySource options;
+    private final RestTemplate template;
+    private final HttpHeaders headers = new HttpHeaders();
+    private final String samples;
+    private final Map<Workload.Operation, Histogram> latencies =
+        new EnumMap<Workload.Operation, Histogram>(Workload.Operation.class);
+    private final Map<Workload.Operation, AtomicLong> errors =
+        new EnumMap<Workload.Operation, AtomicLong>(Workload.Operation.class);
+    private final ConcurrentMap<String, AtomicLong> errorsByStatus = new ConcurrentHashMap<String, AtomicLong>();
+    private String base;
+
+    private LoadTest(String[] args)
+    {
+        options = new SimpleCommandLinePropertySource(args);
+        int threads = intOption("threads", 64);
+        template = new RestTemplate(new HttpComponentsClientHttpRequestFactory(
+            HttpClients.custom().setMaxConnTotal(threads).setMaxConnPerRoute(threads).build()));
+        template.setErrorHandler(new ResponseErrorHandler() {
+            @Override
+            public boolean hasError(ClientHttpResponse response)
+            {
+                return false; // counted by status instead
+            }
+
+            @Override
+            public void handleError(ClientHttpResponse response)
+            {
+            }
+        });
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        samples = samples(intOption("samples", 100));
+        for (Workload.Operation operation : Workload.Operation.values()) {
+            latencies.put(operation, Histograms.latency());
+            errors.put(operation, new AtomicLong());
+        }
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        LoadTest loadTest = new LoadTest(args);
+        ConfigurableApplicationContext context = null;
+        if (loadTest.options.containsProperty("url")) {
+            loadTest.base = loadTest.options.getProperty("url");
+        } else {
+            SpringApplication application = new SpringApplication(SessionService.class);
+            Map<String, Object> defaults = new HashMap<String, Object>();
+            defaults.put("spring.profiles.active", "test");
+            defaults.put("server.port", "0");
+            application.setDefaultProperties(defaults);
+            context = application.run(args);
+            int port = ((EmbeddedWebApplicationContext) context).getEmbeddedServletContainer().getPort();
+            loadTest.base = "http://localhost:" + port + "/api/sessions/";
+        }
+        try {
+            loadTest.run();
+        } finally {
+            if (context != null) {
+                context.close();
+            }
+        }
+    }
+
+    private String option(String name, String defaultValue)
+    {
+        String value = options.getProperty(name);
+        return (value == null) ? defaultValue : value;
+    }
+
+    private int intOption(String name, int defaultValue)
+    {
+        return Integer.parseInt(option(name, Integer.toString(defaultValue)));
+    }
+
+    private void run() throws Exception
+    {
+        int threads = intOption("threads", 64);
+        int users = intOption("users", 100);
+        double rate = Double.parseDouble(option("rate", "200"));
+        long warmupNanos = TimeUnit.SECONDS.toNanos(intOption("warmup", 10));
+        long durationNanos = TimeUnit.SECONDS.toNanos(intOption("duration", 60));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        List<String> ids = preload(executor, intOption("sessions", 1000), users);
+        final Workload workload = new Workload(option("mix", "get:90,post:8,query:2"), ids, users,
+            Double.parseDouble(option("zipf", "1.0")), Long.parseLong(option("seed", "1")));
+        System.out.println("sending " + option("mix", "get:90,post:8,query:2") + " at " + rate
+            + " requests/s to " + base);
+
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        long start = System.nanoTime();
+        final long measuredFrom = start + warmupNanos;
+        long end = measuredFrom + durationNanos;
+        for (long i = 0; ; i++) {
+            final long due = start + i * interval;
+            if (due >= end) {
+                break;
+            }
+            long wait;
+            while ((wait = due - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            final Workload.Request request = workload.next();
+            executor.execute(new Runnable() {
+                @Override
+                public void run()
+                {
+                    String status = send(request);
+                    if (due >= measuredFrom) {
+                        Histograms.recordNanos(latencies.get(request.operation), System.nanoTime() - due);
+                        if (status != null) {
+                            errors.get(request.operation).incrementAndGet();
+                            AtomicLong count = errorsByStatus.putIfAbsent(status, new AtomicLong(1));
+                            if (count != null) {
+                                count.incrementAndGet();
+                            }
+                        }
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.HOURS);
+        report(rate, System.nanoTime() - measuredFrom);
+    }
+
+    /*
+     * Writes sessions spread over the users, in parallel, and returns
+     * their ids in a repeatable order.
+     */
+    private List<String> preload(ExecutorService executor, int sessions, final int users) throws Exception
+    {
+        System.out.println("writing " + sessions + " sessions");
+        List<Future<String>> added = new ArrayList<Future<String>>(sessions);
+        for (int i = 0; i < sessions; i++) {
+            final int session = i;
+            added.add(executor.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception
+                {
+                    ResponseEntity<String> response = template.exchange(base, HttpMethod.POST,
+                        session(Workload.userID(session % users), "preloaded " + session), String.class);
+                    if (!response.getStatusCode().is2xxSuccessful()) {
+                        throw new IllegalStateException("could not write session: " + response.getStatusCode());
+                    }
+                    return new ObjectMapper().readTree(response.getBody()).get("id").asText();
+                }
+            }));
+        }
+        List<String> ids = new ArrayList<String>(sessions);
+        for (Future<String> id : added) {
+            ids.add(id.get());
+        }
+        return ids;
+    }
+
+    /**
+     * @return null if the request succeeded, or the HTTP status or
+     *         exception it failed with
+     */
+    private String send(Workload.Request request)
+    {
+        try {
+            ResponseEntity<byte[]> response;
+            switch (request.operation) {
+            case GET:
+                response = template.exchange(base + request.id, HttpMethod.GET, null, byte[].class);
+                break;
+            case POST:
+                response = template.exchange(base, HttpMethod.POST,
+                    session(request.userID, "cohort " + request.sequence), byte[].class);
+                break;
+            case PUT:
+                response = template.exchange(base + request.id, HttpMethod.PUT,
+                    session(request.userID, "cohort " + request.sequence), byte[].class);
+                break;
+            default:
+                response = template.exchange(base + "query?userid={userid}", HttpMethod.GET, null,
+                    byte[].class, request.userID);
+                break;
+            }
+            return response.getStatusCode().is2xxSuccessful() ? null : response.getStatusCode().toString();
+        } catch (RestClientException e) {
+            Throwable cause = (e.getCause() != null) ? e.getCause() : e;
+            return cause.getClass().getSimpleName();
+        }
+    }
+
+    private static String samples(int samples)
+    {
+        StringBuilder json = new StringBuilder(samples * 24);
+        for (int i = 0; i < samples; i++) {
+            json.append((i == 0) ? "" : ",").append("\"TCGA-").append(String.format("%02d-%04d", i % 100, i))
+                .append("-01\"");
+        }
+        return json.toString();
+    }
+
+    // a virtual cohort that differs from every other one the test writes
+    private HttpEntity<String> session(String userID, String name)
+    {
+        return new HttpEntity<String>("{\"virtualCohort\":{\"userID\":\"" + userID + "\","
+            + "\"name\":\"" + name + "\",\"description\":\"written by the load test\","
+            + "\"selectedCases\":[{\"studyID\":\"study_tcga\",\"samples\":[" + samples + "]}]}}", headers);
+    }
+
+    private void report(double rate, long elapsedNanos) throws IOException
+    {
+        double seconds = elapsedNanos / 1e9;
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        result.put("target-rate", rate);
+        Histogram all = Histograms.latency();
+        long allErrors = 0;
+        System.out.println(String.format("%-8s %9s %9s %7s %9s %9s %9s %9s %9s %9s",
+            "", "requests", "errors", "error%", "req/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms"));
+        for (Workload.Operation operation : Workload.Operation.values()) {
+            Histogram histogram = latencies.get(operation);
+            if (histogram.getTotalCount() > 0) {
+                long operationErrors = errors.get(operation).get();
+                result.put(operation.name().toLowerCase(), summary(histogram, operationErrors, seconds));
+                all.add(histogram);
+                allErrors += operationErrors;
+            }
+        }
+        result.put("all", summary(all, allErrors, seconds));
+        Map<String, Long> statuses = new LinkedHashMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> status : errorsByStatus.entrySet()) {
+            statuses.put(status.getKey(), status.getValue().get());
+        }
+        result.put("errors", statuses);
+        for (Map.Entry<String, Object> entry : result.entrySet()) {
+            if (entry.getValue() instanceof Map && !entry.getKey().equals("errors")) {
+                Map<?, ?> summary = (Map<?, ?>) entry.getValue();
+                System.out.println(String.format("%-8s %9d %9d %7.2f %9.1f %9.2f %9.2f %9.2f %9.2f %9.2f",
+                    entry.getKey(), summary.get("requests"), summary.get("errors"), summary.get("error-percent"),
+                    summary.get("throughput"), summary.get("p50-ms"), summary.get("p90-ms"),
+                    summary.get("p99-ms"), summary.get("p999-ms"), summary.get("max-ms")));
+            }
+        }
+        if (!statuses.isEmpty()) {
+            System.out.println("errors: " + statuses);
+        }
+        if (all.getTotalCount() < rate * seconds * 0.95) {
+            System.out.println("fewer requests than the target rate were answered, "
+                + "the service or the load test (see --threads) could not keep up");
+        }
+        String file = options.getProperty("result");
+        if (file != null) {
+            new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT).writeValue(new File(file), result);
+            System.out.println("results written to " + file);
+        }
+    }
+
+    private static Map<String, Object> summary(Histogram histogram, long errors, double seconds)
+    {
+        long requests = histogram.getTotalCount();
+        Map<String, Object> summary = new LinkedHashMap<String, Object>();
+        summary.put("requests", requests);
+        summary.put("errors", errors);
+        summary.put("error-percent", (requests == 0) ? 0.0 : 100.0 * errors / requests);
+        summary.put("throughput", requests / seconds);
+        summary.put("p50-ms", histogram.getValueAtPercentile(50) / 1000.0);
+        summary.put("p90-ms", histogram.getValueAtPercentile(90) / 1000.0);
+        summary.put("p99-ms", histogram.getValueAtPercentile(99) / 1000.0);
+        summary.put("p999-ms", histogram.getValueAtPercentile(99.9) / 1000.0);
+        summary.put("max-ms", histogram.getMaxValue() / 1000.0);
+        return summary;
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * The requests of a load test, drawn from a seeded Random so that two runs
+ * with the same options send the same requests in the same order.  Which
+ * operation comes next follows the weights of the mix, e.g.
+ * get:90,post:8,query:2.  Sessions and users are picked with a Zipf
+ * distribution, so that a few of them get most of the requests, as the
+ * sessions of a popular study or a busy user would.
+ */
+final class Workload
+{
+    enum Operation
+    {
+        GET, POST, PUT, QUERY
+    }
+
+    static final class Request
+    {
+        final Operation operation;
+        final String id;     // GET and PUT
+        final String userID; // POST, PUT and QUERY
+        final int sequence;
+
+        Request(Operation operation, String id, String userID, int sequence)
+        {
+            this.operation = operation;
+            this.id = id;
+            this.userID = userID;
+            this.sequence = sequence;
+        }
+    }
+
+    private final Random random;
+    private final Operation[] operations;
+    private final int[] cumulativeWeights;
+    private final List<String> ids;
+    private final double[] idDistribution;
+    private final int users;
+    private final double[] userDistribution;
+    private int sequence;
+
+    /**
+     * @param mix operation:weight pairs, e.g. get:90,post:8,query:2
+     * @param ids the sessions that GET and PUT pick from, hottest first
+     *        once shuffled with the seed
+     * @param users how many users POST and QUERY pick from
+     * @param exponent of the Zipf distribution, 0 picks uniformly
+     */
+    Workload(String mix, List<String> ids, int users, double exponent, long seed)
+    {
+        this.random = new Random(seed);
+        Map<Operation, Integer> weights = parseMix(mix);
+        this.operations = weights.keySet().toArray(new Operation[weights.size()]);
+        this.cumulativeWeights = new int[operations.length];
+        int total = 0;
+        for (int i = 0; i < operations.length; i++) {
+            total += weights.get(operations[i]);
+            cumulativeWeights[i] = total;
+        }
+        this.ids = new ArrayList<String>(ids);
+        Collections.shuffle(this.ids, random);
+        this.idDistribution = zipf(ids.size(), exponent);
+        this.users = users;
+        this.userDistribution = zipf(users, exponent);
+        if (ids.isEmpty() && (weights.containsKey(Operation.GET) || weights.containsKey(Operation.PUT))) {
+            throw new IllegalArgumentException("get and put need sessions to pick from");
+        }
+    }
+
+    static Map<Operation, Integer> parseMix(String mix)
+    {
+        Map<Operation, Integer> weights = new LinkedHashMap<Operation, Integer>();
+        for (String entry : mix.split(",")) {
+            String[] pair = entry.trim().split(":");
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("invalid mix entry '" + entry + "', expected operation:weight");
+            }
+            int weight = Integer.parseInt(pair[1].trim());
+            if (weight < 0) {
+                throw new IllegalArgumentException("invalid weight in mix entry '" + entry + "'");
+            }
+            if (weight > 0) {
+                weights.put(Operation.valueOf(pair[0].trim().toUpperCase()), weight);
+            }
+        }
+        if (weights.isEmpty()) {
+            throw new IllegalArgumentException("mix '" + mix + "' has no operations");
+        }
+        return weights;
+    }
+
+    /*
+     * Cumulative probabilities of ranks 0 to n - 1, rank k having weight
+     * 1 / (k + 1)^exponent.
+     */
+    private static double[] zipf(int n, double exponent)
+    {
+        double[] cumulative = new double[n];
+        double total = 0;
+        for (int k = 0; k < n; k++) {
+            total += 1 / Math.pow(k + 1, exponent);
+            cumulative[k] = total;
+        }
+        for (int k = 0; k < n; k++) {
+            cumulative[k] /= total;
+        }
+        return cumulative;
+    }
+
+    private int pick(double[] cumulative)
+    {
+        double p = random.nextDouble();
+        int low = 0;
+        int high = cumulative.length - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (cumulative[middle] < p) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    static String userID(int user)
+    {
+        return "user" + user + "@example.org";
+    }
+
+    /**
+     * Not thread safe; the requests are drawn by the thread that
+     * schedules them.
+     */
+    Request next()
+    {
+        int weight = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+        Operation operation = operations[operations.length - 1];
+        for (int i = 0; i < operations.length; i++) {
+            if (weight < cumulativeWeights[i]) {
+                operation = operations[i];
+                break;
+            }
+        }
+        String id = null;
+        String userID = null;
+        switch (operation) {
+        case GET:
+            id = ids.get(pick(idDistribution));
+            break;
+        case PUT:
+            id = ids.get(pick(idDistribution));
+            userID = userID(pick(userDistribution));
+            break;
+        default:
+            userID = userID(pick(userDistribution));
+            break;
+        }
+        return new Request(operation, id, userID, sequence++);
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.springframework.boot.autoconfigure.EnableAutoConfigurationImportSelector;
+import org.springframework.context.annotation.ComponentScan;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.FilterType;
+import org.springframework.context.annotation.Import;
+import org.springframework.core.annotation.AnnotationAttributes;
+import org.springframework.core.type.AnnotationMetadata;
+
+/**
+ * {@link SessionService} with only the auto-configuration it uses, instead
+ * of every candidate on the classpath, for --session.service.fast-start.
+ * spring.autoconfigure.exclude still applies, so the "embedded" profile
+ * works the same.  An auto-configuration the service comes to depend on
+ * has to be added to AUTO_CONFIGURATIONS.
+ */
+@Configuration
+@ComponentScan(excludeFilters = @ComponentScan.Filter(type = FilterType.ASSIGNABLE_TYPE, classes = SessionService.class))
+@Import(FastSessionService.AutoConfigurationSelector.class)
+public class FastSessionService
+{
+    static final List<String> AUTO_CONFIGURATIONS = Arrays.asList(
+        "org.springframework.boot.autoconfigure.PropertyPlaceholderAutoConfiguration",
+        "org.springframework.boot.autoconfigure.jackson.JacksonAutoConfiguration",
+        "org.springframework.boot.autoconfigure.mongo.MongoAutoConfiguration",
+        "org.springframework.boot.autoconfigure.mongo.embedded.EmbeddedMongoAutoConfiguration",
+        "org.springframework.boot.autoconfigure.data.mongo.MongoDataAutoConfiguration",
+        "org.springframework.boot.autoconfigure.dao.PersistenceExceptionTranslationAutoConfiguration",
+        "org.springframework.boot.autoconfigure.web.EmbeddedServletContainerAutoConfiguration",
+        "org.springframework.boot.autoconfigure.web.DispatcherServletAutoConfiguration",
+        "org.springframework.boot.autoconfigure.web.ServerPropertiesAutoConfiguration",
+        "org.springframework.boot.autoconfigure.web.HttpEncodingAutoConfiguration",
+        "org.springframework.boot.autoconfigure.web.HttpMessageConvertersAutoConfiguration",
+        "org.springframework.boot.autoconfigure.web.WebMvcAutoConfiguration",
+        "org.springframework.boot.autoconfigure.web.ErrorMvcAutoConfiguration",
+        // /health and /metrics
+        "org.springframework.boot.actuate.autoconfigure.EndpointAutoConfiguration",
+        "org.springframework.boot.actuate.autoconfigure.EndpointWebMvcAutoConfiguration",
+        "org.springframework.boot.actuate.autoconfigure.HealthIndicatorAutoConfiguration",
+        "org.springframework.boot.actuate.autoconfigure.ManagementServerPropertiesAutoConfiguration",
+        "org.springframework.boot.actuate.autoconfigure.PublicMetricsAutoConfiguration");
+
+    /**
+     * Selects AUTO_CONFIGURATIONS the way @EnableAutoConfiguration selects
+     * all candidates: ordered, with exclusions, and conditions evaluated.
+     */
+    static class AutoConfigurationSelector extends EnableAutoConfigurationImportSelector
+    {
+        @Override
+        protected AnnotationAttributes getAttributes(AnnotationMetadata metadata)
+        {
+            AnnotationAttributes attributes = new AnnotationAttributes();
+            attributes.put("exclude", new String[0]);
+            attributes.put("excludeName", new String[0]);
+            return attributes;
+        }
+
+        @Override
+        protected List<String> getCandidateConfigurations(AnnotationMetadata metadata, AnnotationAttributes attributes)
+        {
+            return new ArrayList<String>(AUTO_CONFIGURATIONS);
+        }
+    }
+}
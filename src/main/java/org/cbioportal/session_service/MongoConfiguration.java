@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service;
+
+import org.cbioportal.session_service.metrics.MongoPoolMetrics;
+import org.cbioportal.session_service.web.RequestExecutor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+
+import com.mongodb.MongoClientOptions;
+import com.mongodb.WriteConcern;
+
+/**
+ * Options of the MongoDB client, which Spring Boot's auto-configuration
+ * builds from spring.data.mongodb.*, with its connection pool, timeouts
+ * and write concern from session.service.mongo.*.  Options given in
+ * spring.data.mongodb.uri take precedence.
+ *
+ * The pool holds connections-per-host connections to each server; when
+ * all are in use at most threads-allowed-to-block-multiplier times as many
+ * threads wait for one, each at most max-wait-ms.  Beyond that a request
+ * is answered at once with 503, see {@link RequestExecutor}.  The pool is
+ * published to /metrics as session.mongo.pool.*, see
+ * {@link MongoPoolMetrics}.
+ */
+@Configuration
+@Profile("!embedded")
+public class MongoConfiguration
+{
+    @Bean
+    public MongoClientOptions mongoClientOptions(
+        @Value("${session.service.mongo.connections-per-host:100}") int connectionsPerHost,
+        @Value("${session.service.mongo.min-connections-per-host:0}") int minConnectionsPerHost,
+        @Value("${session.service.mongo.threads-allowed-to-block-multiplier:5}") int threadsAllowedToBlockMultiplier,
+        @Value("${session.service.mongo.max-wait-ms:5000}") int maxWaitMillis,
+        @Value("${session.service.mongo.connect-timeout-ms:10000}") int connectTimeoutMillis,
+        @Value("${session.service.mongo.socket-timeout-ms:0}") int socketTimeoutMillis,
+        @Value("${session.service.mongo.max-connection-idle-ms:0}") int maxConnectionIdleMillis,
+        @Value("${session.service.mongo.write-concern:ACKNOWLEDGED}") String writeConcern,
+        @Value("${session.service.mongo.write-concern-timeout-ms:0}") int writeConcernTimeoutMillis)
+    {
+        return MongoClientOptions.builder()
+            .connectionsPerHost(connectionsPerHost)
+            .minConnectionsPerHost(minConnectionsPerHost)
+            .threadsAllowedToBlockForConnectionMultiplier(threadsAllowedToBlockMultiplier)
+            .maxWaitTime(maxWaitMillis)
+            .connectTimeout(connectTimeoutMillis)
+            .socketTimeout(socketTimeoutMillis)
+            .maxConnectionIdleTime(maxConnectionIdleMillis)
+            .writeConcern(writeConcern(writeConcern, writeConcernTimeoutMillis))
+            .build();
+    }
+
+    /**
+     * @param name a constant of WriteConcern such as MAJORITY, or a number
+     *  of servers
+     */
+    static WriteConcern writeConcern(String name, int timeoutMillis)
+    {
+        WriteConcern writeConcern = WriteConcern.valueOf(name.trim());
+        if (writeConcern == null) {
+            try {
+                writeConcern = new WriteConcern(Integer.parseInt(name.trim()));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("unknown write concern '" + name + "'");
+            }
+        }
+        if (timeoutMillis <= 0) {
+            return writeConcern;
+        }
+        if (writeConcern.getWObject() instanceof String) {
+            return new WriteConcern(writeConcern.getWString(), timeoutMillis, writeConcern.getFsync(), writeConcern.getJ());
+        }
+        return new WriteConcern(writeConcern.getW(), timeoutMillis, writeConcern.getFsync(), writeConcern.getJ());
+    }
+}
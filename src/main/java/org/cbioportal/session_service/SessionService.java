@@ -33,11 +33,21 @@
 package org.cbioportal.session_service;
 
 
+import java.util.Collections;
+
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.context.web.SpringBootServletInitializer;
+import org.springframework.core.env.SimpleCommandLinePropertySource;
+import org.springframework.core.env.StandardEnvironment;
 
 /**
+ * Started with --session.service.fast-start=true (or the same system
+ * property) the server runs as {@link FastSessionService} and warms up
+ * before it reports itself ready, see
+ * {@link org.cbioportal.session_service.domain.SessionWarmup}.  The
+ * option is read before any properties file, so it can not be set in one.
+ *
  * @author Manda Wilson 
  */
 @SpringBootApplication // shorthand for @Configuration, @EnableAutoConfiguration, @ComponentScan
@@ -45,6 +55,15 @@ public class SessionService extends SpringBootServletInitializer
 {
     public static void main(String[] args)
     {
-        SpringApplication.run(SessionService.class, args);
+        StandardEnvironment environment = new StandardEnvironment();
+        environment.getPropertySources().addFirst(new SimpleCommandLinePropertySource(args));
+        if (environment.getProperty("session.service.fast-start", Boolean.class, false)) {
+            SpringApplication application = new SpringApplication(FastSessionService.class);
+            application.setDefaultProperties(Collections.<String, Object>singletonMap(
+                "session.service.warmup.enabled", "true"));
+            application.run(args);
+        } else {
+            SpringApplication.run(SessionService.class, args);
+        }
     }
 }
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.domain;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.bson.types.ObjectId;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+
+/**
+ * One insert or delete of a bulk request, written back to the client
+ * with the outcome that {@link SessionRepository#bulkWrite} set.  A
+ * restore inserts a session under the id it already has, see
+ * {@link SessionImporter}.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+@JsonPropertyOrder({"operation", "id", "status", "error"})
+public class BulkOperation
+{
+    public enum Type { INSERT, DELETE, RESTORE }
+
+    public enum Status { CREATED, EXISTING, DELETED, NOT_FOUND, FAILED }
+
+    private final Type type;
+    private final Session session;
+    private String id;
+    private Status status;
+    private String error;
+
+    private BulkOperation(Type type, Session session, String id)
+    {
+        this.type = type;
+        this.session = session;
+        this.id = id;
+    }
+
+    /**
+     * Parses a JSON array of operations like
+     * <code>[{"insert": {...}}, {"delete": "id"}]</code>.
+     * Session data is parsed the same way as for a single session.
+     *
+     * @throws IllegalArgumentException if the JSON is valid but is not
+     *         an array of operations
+     */
+    public static List<BulkOperation> parse(String json)
+    {
+        return parse(SessionDataParser.parse(json));
+    }
+
+    static List<BulkOperation> parse(Object parsed)
+    {
+        if (!(parsed instanceof List)) {
+            throw new IllegalArgumentException("expected an array of operations.");
+        }
+        List<?> items = (List<?>) parsed;
+        List<BulkOperation> operations = new ArrayList<BulkOperation>(items.size());
+        for (Object item : items) {
+            if (!(item instanceof Map) || ((Map<?, ?>) item).size() != 1) {
+                throw new IllegalArgumentException("operation " + operations.size()
+                    + " must be an object with a single 'insert' or 'delete' field.");
+            }
+            Map.Entry<?, ?> field = ((Map<?, ?>) item).entrySet().iterator().next();
+            if ("insert".equals(field.getKey())) {
+                operations.add(new BulkOperation(Type.INSERT, Session.withParsedData(field.getValue()), null));
+            } else if ("delete".equals(field.getKey()) && field.getValue() instanceof String) {
+                operations.add(new BulkOperation(Type.DELETE, null, (String) field.getValue()));
+            } else {
+                throw new IllegalArgumentException("operation " + operations.size()
+                    + " must be {\"insert\": <data>} or {\"delete\": \"<id>\"}.");
+            }
+        }
+        return operations;
+    }
+
+    /**
+     * An insert of session whose id is assigned now instead of when it
+     * is written, so that it can be handed out before the write.
+     */
+    public static BulkOperation insert(Session session)
+    {
+        session.setId(new ObjectId().toString());
+        return new BulkOperation(Type.INSERT, session, session.getId());
+    }
+
+    /**
+     * An insert of session under its own id, which leaves an existing
+     * session with that id as it is (status EXISTING), so that running
+     * the same restore twice writes nothing the second time.  Restores
+     * are never deduplicated.
+     */
+    public static BulkOperation restore(Session session)
+    {
+        return new BulkOperation(Type.RESTORE, session, session.getId());
+    }
+
+    @JsonIgnore
+    public Type getType()
+    {
+        return type;
+    }
+
+    @JsonProperty("operation")
+    public String getOperation()
+    {
+        return type.name().toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Null for deletes.
+     */
+    @JsonIgnore
+    public Session getSession()
+    {
+        return session;
+    }
+
+    /**
+     * For inserts, the id of the new session (or of the existing one if
+     * the data was deduplicated), once written, or as assigned by
+     * {@link #insert(Session)}.  For restores, the id of the session.
+     */
+    public String getId()
+    {
+        return id;
+    }
+
+    @JsonIgnore
+    public Status getStatus()
+    {
+        return status;
+    }
+
+    @JsonProperty("status")
+    public String getStatusName()
+    {
+        return (status == null) ? null : status.name().toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Set if status is FAILED.
+     */
+    public String getError()
+    {
+        return error;
+    }
+
+    void succeeded(String id, Status status)
+    {
+        this.id = id;
+        this.status = status;
+    }
+
+    void failed(String error)
+    {
+        this.status = Status.FAILED;
+        this.error = error;
+    }
+}
@@ -0,0 +1,1065 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.domain;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.bson.BasicBSONEncoder;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.InvalidDataAccessApiUsageException;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.stereotype.Repository;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.SetMultimap;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import com.mongodb.LazyDBCallback;
+import com.mongodb.LazyDBObject;
+
+/**
+ * Stores sessions in a {@link SessionLog} in the directory
+ * session.service.embedded.directory when the "embedded" profile is
+ * active, for deployments that are too small to need MongoDB.  Sessions
+ * are stored as the same BSON documents as in MongoDB.  Where the latest
+ * record of each session is, and the checksums and the values of the
+ * paths in session.service.indexes that lookups need, are kept in memory
+ * and rebuilt from the log at startup.
+ *
+ * Reads run concurrently, writes one at a time.  Every
+ * session.service.embedded.maintenance-seconds expired sessions are
+ * deleted, and the log is compacted once records that are no longer
+ * needed take more space than the sessions, and at least
+ * session.service.embedded.compaction-min-bytes.  Reads and writes wait
+ * while the log is compacted.
+ */
+@Repository
+@Profile("embedded")
+public class FileSessionRepository implements SessionRepository, DisposableBean {
+
+	private static final Logger log = LoggerFactory.getLogger(FileSessionRepository.class);
+
+	private final SessionCompressor sessionCompressor;
+	private final SessionExpiry sessionExpiry;
+	private final long compactionMinBytes;
+	private final List<String> indexedPaths;
+	private final SessionLog sessionLog;
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	// ObjectId hex strings sort in the same order as ObjectIds
+	private final NavigableMap<String, Entry> entries = new TreeMap<String, Entry>();
+	private final SetMultimap<String, String> idsByChecksum = HashMultimap.create();
+	// for each indexed path, the ids of the sessions with each value
+	private final Map<String, SetMultimap<String, String>> idsByValue =
+		new HashMap<String, SetMultimap<String, String>>();
+	private final ScheduledExecutorService maintenance;
+	private long garbageBytes; // records in the log that are no longer needed
+
+	@Autowired
+	public FileSessionRepository(SessionCompressor sessionCompressor, SessionExpiry sessionExpiry,
+		@Value("${session.service.embedded.directory:session-data}") String directory,
+		@Value("${session.service.embedded.sync:false}") boolean sync,
+		@Value("${session.service.embedded.compaction-min-bytes:1048576}") long compactionMinBytes,
+		@Value("${session.service.embedded.maintenance-seconds:60}") long maintenanceSeconds,
+		@Value("${session.service.indexes:virtualCohort.userID}") String[] indexes) throws IOException {
+		this.sessionCompressor = sessionCompressor;
+		this.sessionExpiry = sessionExpiry;
+		this.compactionMinBytes = compactionMinBytes;
+		Set<String> paths = new LinkedHashSet<String>();
+		paths.add(USER_ID);
+		for (String path : indexes) {
+			if (!path.trim().isEmpty()) {
+				paths.add(path.trim());
+			}
+		}
+		this.indexedPaths = new ArrayList<String>(paths);
+		for (String path : indexedPaths) {
+			idsByValue.put(path, HashMultimap.<String, String>create());
+		}
+		File dir = new File(directory);
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("could not create " + dir);
+		}
+		File file = new File(dir, "sessions.log");
+		sessionLog = new SessionLog(file, sync);
+		try {
+			sessionLog.replay(new SessionLog.Visitor() {
+				@Override
+				public void record(byte type, byte[] document, long offset, int length) {
+					replay(type, decode(document), offset, length);
+				}
+			});
+		} catch (IOException e) {
+			sessionLog.close();
+			throw e;
+		}
+		log.info("opened " + file + " with " + entries.size() + " sessions");
+
+		maintenance = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "session-log-maintenance");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		maintenance.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					maintain();
+				} catch (IOException e) {
+					log.warn("could not maintain session log", e);
+				} catch (RuntimeException e) {
+					log.warn("could not maintain session log", e);
+				}
+			}
+		}, maintenanceSeconds, maintenanceSeconds, TimeUnit.SECONDS);
+	}
+
+	/*
+	 * What the log says about one session: where its latest document is,
+	 * and the fields that are looked up without reading it.
+	 */
+	private static final class Entry {
+		final String id;
+		final Long version;
+		final String checksum;
+		// the string values at each indexed path, including array elements
+		final Map<String, Set<String>> values;
+		final boolean compressed;
+		final boolean pinned;
+		final Date createdAt;
+		final Long ttl;
+		long offset;
+		int length;
+		// changed by ACCESS records written after the document
+		Date lastAccessedAt;
+		Date expiresAt;
+		int accessLength;
+
+		Entry(DBObject document, List<String> indexedPaths, boolean pinned, long offset, int length) {
+			Session session = Session.fromDocument(document);
+			this.id = session.getId();
+			this.version = session.getVersion();
+			this.checksum = session.getChecksum();
+			this.values = new HashMap<String, Set<String>>();
+			for (String path : indexedPaths) {
+				Set<String> pathValues = new HashSet<String>();
+				collect(document.get("data"), path.split("\\."), 0, pathValues);
+				if (!pathValues.isEmpty()) {
+					values.put(path, pathValues);
+				}
+			}
+			this.compressed = document.containsField("compressed");
+			this.pinned = pinned;
+			this.createdAt = session.getCreatedAt();
+			this.ttl = session.getTtl();
+			this.lastAccessedAt = session.getLastAccessedAt();
+			this.expiresAt = session.getExpiresAt();
+			this.offset = offset;
+			this.length = length;
+		}
+
+		boolean isExpired(Date now) {
+			return expiresAt != null && !expiresAt.after(now);
+		}
+	}
+
+	// the path findVCByUserID queries, always indexed
+	private static final String USER_ID = "virtualCohort.userID";
+
+	private static void collect(Object value, String[] path, int depth, Set<String> values) {
+		if (value instanceof List) {
+			for (Object element : (List<?>) value) {
+				collect(element, path, depth, values);
+			}
+		} else if (depth == path.length) {
+			if (value instanceof String) {
+				values.add((String) value);
+			}
+		} else if (value instanceof Map) {
+			collect(((Map<?, ?>) value).get(path[depth]), path, depth + 1, values);
+		}
+	}
+
+	private void replay(byte type, DBObject document, long offset, int length) {
+		String id = document.get("_id").toString();
+		switch (type) {
+		case SessionLog.PUT:
+			index(new Entry(document, indexedPaths, sessionExpiry.isPinned(document.get("data")), offset, length));
+			break;
+		case SessionLog.DELETE:
+			unindex(id);
+			garbageBytes += length;
+			break;
+		case SessionLog.ACCESS:
+			Entry entry = entries.get(id);
+			if (entry == null) {
+				garbageBytes += length;
+			} else {
+				setAccess(entry, (Date) document.get("lastAccessedAt"), (Date) document.get("expiresAt"), length);
+			}
+			break;
+		default:
+			throw new IllegalStateException("unknown record type " + type + " at offset " + offset);
+		}
+	}
+
+	private void index(Entry entry) {
+		Entry previous = entries.put(entry.id, entry);
+		if (previous != null) {
+			unindexFields(previous);
+		}
+		idsByChecksum.put(entry.checksum, entry.id);
+		for (Map.Entry<String, Set<String>> values : entry.values.entrySet()) {
+			for (String value : values.getValue()) {
+				idsByValue.get(values.getKey()).put(value, entry.id);
+			}
+		}
+	}
+
+	private void unindex(String id) {
+		Entry previous = entries.remove(id);
+		if (previous != null) {
+			unindexFields(previous);
+		}
+	}
+
+	private void unindexFields(Entry entry) {
+		idsByChecksum.remove(entry.checksum, entry.id);
+		for (Map.Entry<String, Set<String>> values : entry.values.entrySet()) {
+			for (String value : values.getValue()) {
+				idsByValue.get(values.getKey()).remove(value, entry.id);
+			}
+		}
+		garbageBytes += entry.length + entry.accessLength;
+	}
+
+	private void setAccess(Entry entry, Date lastAccessedAt, Date expiresAt, int length) {
+		garbageBytes += entry.accessLength;
+		entry.lastAccessedAt = lastAccessedAt;
+		entry.expiresAt = expiresAt;
+		entry.accessLength = length;
+	}
+
+	/*
+	 * Writes the whole document of a session, compressed if it is large.
+	 * Durable after the next sync.
+	 */
+	private void put(DBObject document) throws IOException {
+		boolean pinned = sessionExpiry.isPinned(document.get("data"));
+		sessionCompressor.compress(document);
+		byte[] bson = encode(document);
+		long offset = sessionLog.append(SessionLog.PUT, bson);
+		index(new Entry(document, indexedPaths, pinned, offset, SessionLog.RECORD_HEADER_BYTES + bson.length));
+	}
+
+	private void remove(String id) throws IOException {
+		byte[] bson = encode(new BasicDBObject("_id", toKey(id)));
+		sessionLog.append(SessionLog.DELETE, bson);
+		garbageBytes += SessionLog.RECORD_HEADER_BYTES + bson.length;
+		unindex(id);
+	}
+
+	private Session insert(Session session) throws IOException {
+		sessionExpiry.initialize(session);
+		DBObject document = new BasicDBObject("_id", (session.getId() != null) ? toKey(session.getId()) : new ObjectId())
+			.append("data", session.getData())
+			.append("checksum", session.getChecksum())
+			.append("version", 0L)
+			.append("createdAt", session.getCreatedAt())
+			.append("lastAccessedAt", session.getLastAccessedAt());
+		putIfNotNull(document, "expiresAt", session.getExpiresAt());
+		putIfNotNull(document, "ttl", session.getTtl());
+		Session inserted = Session.fromDocument(document);
+		put(document);
+		return inserted;
+	}
+
+	private Session replace(Entry entry, Object data, String checksum) throws IOException {
+		DBObject document = new BasicDBObject("_id", toKey(entry.id))
+			.append("data", data)
+			.append("checksum", checksum)
+			// like $inc, which starts sessions without a version at 1
+			.append("version", (entry.version == null) ? 1L : entry.version + 1);
+		putIfNotNull(document, "createdAt", entry.createdAt);
+		putIfNotNull(document, "lastAccessedAt", entry.lastAccessedAt);
+		if (!sessionExpiry.isPinned(data)) {
+			putIfNotNull(document, "expiresAt", entry.expiresAt);
+		}
+		putIfNotNull(document, "ttl", entry.ttl);
+		Session replaced = Session.fromDocument(document);
+		put(document);
+		return replaced;
+	}
+
+	private static void putIfNotNull(DBObject document, String key, Object value) {
+		if (value != null) {
+			document.put(key, value);
+		}
+	}
+
+	private Entry live(String id) {
+		Entry entry = entries.get(id);
+		return (entry == null || entry.isExpired(new Date())) ? null : entry;
+	}
+
+	private static boolean matches(Entry entry, Long version) {
+		return version == null || version.equals(entry.version);
+	}
+
+	// the stored document with the latest access times
+	private DBObject document(Entry entry) throws IOException {
+		DBObject document = decode(sessionLog.read(entry.offset, entry.length));
+		document.removeField("lastAccessedAt");
+		document.removeField("expiresAt");
+		putIfNotNull(document, "lastAccessedAt", entry.lastAccessedAt);
+		putIfNotNull(document, "expiresAt", entry.expiresAt);
+		return document;
+	}
+
+	private Session session(Entry entry) throws IOException {
+		return Session.fromDocument(document(entry));
+	}
+
+	private RawSession rawSession(Entry entry) throws IOException {
+		byte[] bson = sessionLog.read(entry.offset, entry.length);
+		byte[] compressed = entry.compressed ?
+			(byte[]) new LazyDBObject(bson, new LazyDBCallback(null)).get("compressed") : null;
+		return new RawSession(entry.id, bson, entry.version, entry.checksum, compressed, entry.expiresAt);
+	}
+
+	// same conversion Spring Data applies to ids
+	private static Object toKey(String id) {
+		return ObjectId.isValid(id) ? new ObjectId(id) : id;
+	}
+
+	private static DBObject decode(byte[] bson) {
+		return new DefaultDBDecoder().decode(bson, (DBCollection) null);
+	}
+
+	private static byte[] encode(DBObject document) {
+		return new BasicBSONEncoder().encode(document);
+	}
+
+	private static DataAccessResourceFailureException failure(IOException e) {
+		return new DataAccessResourceFailureException("could not access session log: " + e.getMessage(), e);
+	}
+
+	@Override
+	public Session save(Session session) {
+		lock.writeLock().lock();
+		try {
+			Session saved = insert(session);
+			sessionLog.sync();
+			return saved;
+		} catch (IOException e) {
+			throw failure(e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public Session findOne(String id) {
+		lock.readLock().lock();
+		try {
+			Entry entry = live(id);
+			return (entry == null) ? null : session(entry);
+		} catch (IOException e) {
+			throw failure(e);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean exists(String id) {
+		lock.readLock().lock();
+		try {
+			return live(id) != null;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public List<Session> findVCByUserID(String userID) {
+		lock.readLock().lock();
+		try {
+			List<Session> sessions = new ArrayList<Session>();
+			for (String id : new TreeSet<String>(idsByValue.get(USER_ID).get(userID))) {
+				Entry entry = live(id);
+				if (entry != null) {
+					sessions.add(session(entry));
+				}
+			}
+			return sessions;
+		} catch (IOException e) {
+			throw failure(e);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public List<Session> findVCByUserID(String userID, List<String> fields) {
+		List<Session> sessions = findVCByUserID(userID);
+		for (Session session : sessions) {
+			session.projectData(fields);
+		}
+		return sessions;
+	}
+
+	/**
+	 * The sessions are read one at a time as the iterator advances;
+	 * sessions deleted in the meantime are left out.
+	 */
+	@Override
+	public CloseableIterator<Session> streamVCs(final List<String> fields) {
+		final List<String> ids = new ArrayList<String>();
+		lock.readLock().lock();
+		try {
+			for (Entry entry : entries.values()) {
+				if (entry.values.containsKey(USER_ID)) {
+					ids.add(entry.id);
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return new CloseableIterator<Session>() {
+			private final Iterator<String> iterator = ids.iterator();
+			private Session next = advance();
+
+			private Session advance() {
+				while (iterator.hasNext()) {
+					Session session = findOne(iterator.next());
+					if (session != null) {
+						session.projectData(fields);
+						return session;
+					}
+				}
+				return null;
+			}
+
+			@Override
+			public boolean hasNext() {
+				return next != null;
+			}
+
+			@Override
+			public Session next() {
+				Session session = next;
+				next = advance();
+				return session;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+	}
+
+	/**
+	 * Only the sessions whose indexed values match are read.  Sorting by
+	 * a field other than id reads all of them before the limit applies.
+	 *
+	 * @throws InvalidDataAccessApiUsageException if the query uses a
+	 *         field that is not in session.service.indexes
+	 */
+	@Override
+	public List<Session> find(SessionQuery query) {
+		lock.readLock().lock();
+		try {
+			Set<String> ids = null;
+			for (Map.Entry<String, List<String>> predicate : query.getPredicates().entrySet()) {
+				SetMultimap<String, String> index = index(predicate.getKey());
+				Set<String> matching = new HashSet<String>();
+				for (String value : predicate.getValue()) {
+					matching.addAll(index.get(value));
+				}
+				if (ids == null) {
+					ids = matching;
+				} else {
+					ids.retainAll(matching);
+				}
+			}
+			if (ids == null) {
+				throw new InvalidDataAccessApiUsageException("a query needs at least one predicate");
+			}
+			List<String> ordered = new ArrayList<String>(new TreeSet<String>(ids));
+			if (query.isDescending()) {
+				Collections.reverse(ordered);
+			}
+			boolean byId = query.getSortField().equals("id");
+			String[] sortPath = null;
+			if (!byId) {
+				index(query.getSortField()); // refuses fields that are not indexed
+				sortPath = query.getSortField().substring("data.".length()).split("\\.");
+			}
+			int limit = (query.getLimit() > 0) ? query.getLimit() : Integer.MAX_VALUE;
+			List<Session> sessions = new ArrayList<Session>();
+			for (String id : ordered) {
+				if (byId && sessions.size() == limit) {
+					break;
+				}
+				Entry entry = live(id);
+				if (entry != null) {
+					sessions.add(session(entry));
+				}
+			}
+			if (!byId) {
+				// stable, so sessions with equal values stay in id order
+				Comparator<Session> comparator = new SortValueComparator(sortPath);
+				Collections.sort(sessions, query.isDescending() ? Collections.reverseOrder(comparator) : comparator);
+			}
+			if (sessions.size() > limit) {
+				sessions = new ArrayList<Session>(sessions.subList(0, limit));
+			}
+			if (!query.getFields().isEmpty()) {
+				for (Session session : sessions) {
+					session.projectData(query.getFields());
+				}
+			}
+			return sessions;
+		} catch (IOException e) {
+			throw failure(e);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private SetMultimap<String, String> index(String field) {
+		SetMultimap<String, String> index = field.startsWith("data.") ?
+			idsByValue.get(field.substring("data.".length())) : null;
+		if (index == null) {
+			throw new InvalidDataAccessApiUsageException(field + " is not in session.service.indexes");
+		}
+		return index;
+	}
+
+	/*
+	 * Orders values the way MongoDB orders BSON types: missing and null
+	 * first, then numbers, strings, objects, arrays, booleans and dates.
+	 * An array is compared by its first element.
+	 */
+	private static final class SortValueComparator implements Comparator<Session> {
+		private final String[] path;
+
+		SortValueComparator(String[] path) {
+			this.path = path;
+		}
+
+		@Override
+		public int compare(Session a, Session b) {
+			Object x = value(a.getData());
+			Object y = value(b.getData());
+			int rank = rank(x) - rank(y);
+			if (rank != 0) {
+				return rank;
+			}
+			if (x instanceof Number) {
+				return Double.compare(((Number) x).doubleValue(), ((Number) y).doubleValue());
+			}
+			if (x instanceof String) {
+				return ((String) x).compareTo((String) y);
+			}
+			if (x instanceof Boolean) {
+				return ((Boolean) x).compareTo((Boolean) y);
+			}
+			if (x instanceof Date) {
+				return ((Date) x).compareTo((Date) y);
+			}
+			return 0;
+		}
+
+		private Object value(Object data) {
+			Object value = data;
+			for (String key : path) {
+				if (value instanceof List && !((List<?>) value).isEmpty()) {
+					value = ((List<?>) value).get(0);
+				}
+				value = (value instanceof Map) ? ((Map<?, ?>) value).get(key) : null;
+			}
+			if (value instanceof List && !((List<?>) value).isEmpty()) {
+				value = ((List<?>) value).get(0);
+			}
+			return value;
+		}
+
+		private static int rank(Object value) {
+			if (value == null) {
+				return 0;
+			} else if (value instanceof Number) {
+				return 1;
+			} else if (value instanceof String) {
+				return 2;
+			} else if (value instanceof Map) {
+				return 3;
+			} else if (value instanceof List) {
+				return 4;
+			} else if (value instanceof Boolean) {
+				return 5;
+			} else if (value instanceof Date) {
+				return 6;
+			}
+			return 7;
+		}
+	}
+
+	/**
+	 * Sessions are always returned in id order, the sort of pageable is
+	 * ignored.
+	 */
+	@Override
+	public List<Session> findAllBy(Pageable pageable) {
+		lock.readLock().lock();
+		try {
+			return page(entries.values(), pageable);
+		} catch (IOException e) {
+			throw failure(e);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public List<Session> findByIdGreaterThan(String id, Pageable pageable) {
+		lock.readLock().lock();
+		try {
+			return page(entries.tailMap(id, false).values(), pageable);
+		} catch (IOException e) {
+			throw failure(e);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private List<Session> page(Collection<Entry> entries, Pageable pageable) throws IOException {
+		Date now = new Date();
+		List<Session> sessions = new ArrayList<Session>(pageable.getPageSize());
+		int skip = pageable.getOffset();
+		for (Entry entry : entries) {
+			if (sessions.size() == pageable.getPageSize()) {
+				break;
+			}
+			if (entry.isExpired(now)) {
+				continue;
+			}
+			if (skip > 0) {
+				skip--;
+			} else {
+				sessions.add(session(entry));
+			}
+		}
+		return sessions;
+	}
+
+	/**
+	 * The sessions are read one at a time as the iterator advances;
+	 * sessions deleted in the meantime are left out.
+	 */
+	@Override
+	public CloseableIterator<RawSession> streamAll() {
+		final List<String> ids;
+		lock.readLock().lock();
+		try {
+			ids = new ArrayList<String>(entries.keySet());
+		} finally {
+			lock.readLock().unlock();
+		}
+		return new CloseableIterator<RawSession>() {
+			private final Iterator<String> iterator = ids.iterator();
+			private RawSession next = advance();
+
+			private RawSession advance() {
+				while (iterator.hasNext()) {
+					RawSession session = findRawById(iterator.next());
+					if (session != null) {
+						return session;
+					}
+				}
+				return null;
+			}
+
+			@Override
+			public boolean hasNext() {
+				return next != null;
+			}
+
+			@Override
+			public RawSession next() {
+				RawSession session = next;
+				next = advance();
+				return session;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+	}
+
+	@Override
+	public RawSession findRawById(String id) {
+		lock.readLock().lock();
+		try {
+			Entry entry = live(id);
+			return (entry == null) ? null : rawSession(entry);
+		} catch (IOException e) {
+			throw failure(e);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public Session findVersionById(String id) {
+		lock.readLock().lock();
+		try {
+			Entry entry = live(id);
+			if (entry == null) {
+				return null;
+			}
+			DBObject document = new BasicDBObject("_id", entry.id);
+			putIfNotNull(document, "version", entry.version);
+			putIfNotNull(document, "checksum", entry.checksum);
+			return Session.fromDocument(document);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public List<RawSession> findRawByIds(Collection<String> ids) {
+		lock.readLock().lock();
+		try {
+			List<RawSession> sessions = new ArrayList<RawSession>(ids.size());
+			for (String id : ids) {
+				Entry entry = live(id);
+				if (entry != null) {
+					sessions.add(rawSession(entry));
+				}
+			}
+			return sessions;
+		} catch (IOException e) {
+			throw failure(e);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public Session insertIfAbsent(Session session) {
+		lock.writeLock().lock();
+		try {
+			Entry existing = findByChecksum(session.getChecksum());
+			if (existing != null) {
+				return session(existing);
+			}
+			Session inserted = insert(session);
+			sessionLog.sync();
+			return inserted;
+		} catch (IOException e) {
+			throw failure(e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private Entry findByChecksum(String checksum) {
+		for (String id : idsByChecksum.get(checksum)) {
+			Entry entry = live(id);
+			if (entry != null) {
+				return entry;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public Session updateData(String id, Session session, Long version) {
+		lock.writeLock().lock();
+		try {
+			Entry entry = live(id);
+			if (entry == null || !matches(entry, version)) {
+				return null;
+			}
+			Session updated = replace(entry, session.getData(), session.getChecksum());
+			sessionLog.sync();
+			return updated;
+		} catch (IOException e) {
+			throw failure(e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Patches are always applied to the whole data, there is no partial
+	 * update to translate them to.
+	 */
+	@Override
+	public Session patchData(String id, SessionPatch patch, Long version) {
+		lock.writeLock().lock();
+		try {
+			Entry entry = live(id);
+			if (entry == null || !matches(entry, version)) {
+				return null;
+			}
+			Object data = patch.apply(session(entry).getData());
+			Session patched = replace(entry, data, SessionChecksum.compute(data));
+			sessionLog.sync();
+			return patched;
+		} catch (IOException e) {
+			throw failure(e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean delete(String id, Long version) {
+		lock.writeLock().lock();
+		try {
+			Entry entry = live(id);
+			if (entry == null || !matches(entry, version)) {
+				return false;
+			}
+			remove(id);
+			sessionLog.sync();
+			return true;
+		} catch (IOException e) {
+			throw failure(e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void bulkWrite(List<BulkOperation> operations, boolean deduplicate) {
+		lock.writeLock().lock();
+		try {
+			for (BulkOperation operation : operations) {
+				try {
+					bulkWrite(operation, deduplicate);
+				} catch (IOException e) {
+					operation.failed(e.getMessage());
+				}
+			}
+			sessionLog.sync();
+		} catch (IOException e) {
+			throw failure(e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void bulkWrite(BulkOperation operation, boolean deduplicate) throws IOException {
+		if (operation.getType() == BulkOperation.Type.DELETE) {
+			if (live(operation.getId()) == null) {
+				operation.succeeded(operation.getId(), BulkOperation.Status.NOT_FOUND);
+			} else {
+				remove(operation.getId());
+				operation.succeeded(operation.getId(), BulkOperation.Status.DELETED);
+			}
+			return;
+		}
+		if (operation.getType() == BulkOperation.Type.RESTORE) {
+			if (live(operation.getId()) != null) {
+				operation.succeeded(operation.getId(), BulkOperation.Status.EXISTING);
+			} else {
+				operation.succeeded(insert(operation.getSession()).getId(), BulkOperation.Status.CREATED);
+			}
+			return;
+		}
+		Entry existing = deduplicate ? findByChecksum(operation.getSession().getChecksum()) : null;
+		if (existing != null) {
+			operation.succeeded(existing.id, BulkOperation.Status.EXISTING);
+		} else {
+			operation.succeeded(insert(operation.getSession()).getId(), BulkOperation.Status.CREATED);
+		}
+	}
+
+	@Override
+	public void recordAccesses(Collection<String> ids, Date accessedAt) {
+		lock.writeLock().lock();
+		try {
+			for (String id : ids) {
+				Entry entry = live(id);
+				if (entry == null) {
+					continue;
+				}
+				Date expiresAt = entry.expiresAt;
+				Date idleExpiry = sessionExpiry.idleExpiry(accessedAt);
+				if (entry.ttl == null && !entry.pinned && idleExpiry != null) {
+					expiresAt = idleExpiry;
+				}
+				DBObject document = new BasicDBObject("_id", toKey(id)).append("lastAccessedAt", accessedAt);
+				putIfNotNull(document, "expiresAt", expiresAt);
+				byte[] bson = encode(document);
+				sessionLog.append(SessionLog.ACCESS, bson);
+				setAccess(entry, accessedAt, expiresAt, SessionLog.RECORD_HEADER_BYTES + bson.length);
+			}
+			sessionLog.sync();
+		} catch (IOException e) {
+			throw failure(e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Deletes expired sessions, and compacts the log if enough of it is
+	 * no longer needed.
+	 */
+	void maintain() throws IOException {
+		lock.writeLock().lock();
+		try {
+			Date now = new Date();
+			List<String> expired = new ArrayList<String>();
+			for (Entry entry : entries.values()) {
+				if (entry.isExpired(now)) {
+					expired.add(entry.id);
+				}
+			}
+			for (String id : expired) {
+				remove(id);
+			}
+			sessionLog.sync();
+			long liveBytes = sessionLog.size() - SessionLog.headerSize() - garbageBytes;
+			if (garbageBytes >= compactionMinBytes && garbageBytes > liveBytes) {
+				compact();
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/*
+	 * Writes the latest document of every session, with its access times,
+	 * to a new log.
+	 */
+	private void compact() throws IOException {
+		long size = sessionLog.size();
+		List<Entry> compacted = new ArrayList<Entry>(entries.size());
+		long[] offsets = new long[entries.size()];
+		int[] lengths = new int[entries.size()];
+		SessionLog.Compaction compaction = sessionLog.compact();
+		try {
+			for (Entry entry : entries.values()) {
+				byte[] bson = encode(document(entry));
+				offsets[compacted.size()] = compaction.append(SessionLog.PUT, bson);
+				lengths[compacted.size()] = SessionLog.RECORD_HEADER_BYTES + bson.length;
+				compacted.add(entry);
+			}
+			compaction.commit();
+		} finally {
+			compaction.close();
+		}
+		for (int i = 0; i < compacted.size(); i++) {
+			Entry entry = compacted.get(i);
+			entry.offset = offsets[i];
+			entry.length = lengths[i];
+			entry.accessLength = 0;
+		}
+		garbageBytes = 0;
+		log.info("compacted session log from " + size + " to " + sessionLog.size() + " bytes");
+	}
+
+	/**
+	 * @return bytes in the log that compaction would remove
+	 */
+	long getGarbageBytes() {
+		lock.readLock().lock();
+		try {
+			return garbageBytes;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void destroy() throws IOException {
+		maintenance.shutdownNow();
+		lock.writeLock().lock();
+		try {
+			sessionLog.close();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+}
@@ -0,0 +1,683 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.domain;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.MongoDbFactory;
+import org.springframework.data.mongodb.core.CollectionCallback;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.stereotype.Repository;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.BulkWriteResult;
+import com.mongodb.BulkWriteUpsert;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.LazyDBDecoder;
+import com.mongodb.LazyDBObject;
+import com.mongodb.ReadPreference;
+
+/**
+ * Stores sessions in MongoDB, unless the "embedded" profile is active.
+ * Reads use session.service.read-preference (e.g. secondaryPreferred),
+ * except those of sessions and users written in the last
+ * read-your-writes-seconds, which go to the primary; every write is
+ * reported to the {@link SessionChangeFeed}.
+ */
+@Repository
+@Profile("!embedded")
+public class MongoSessionRepository implements SessionRepository {
+
+	private static final int MAX_PATCH_ATTEMPTS = 10;
+	private static final ObjectId MIN_OBJECT_ID = new ObjectId("000000000000000000000000");
+
+	private final MongoOperations mongoOperations;
+	private final SessionCompressor sessionCompressor;
+	private final SessionExpiry sessionExpiry;
+	private final SessionChangeFeed changeFeed;
+	// mongoOperations itself if the read preference is primary
+	private final MongoOperations readOperations;
+
+	@Autowired
+	public MongoSessionRepository(MongoOperations mongoOperations, SessionCompressor sessionCompressor,
+		SessionExpiry sessionExpiry, SessionChangeFeed changeFeed, MongoDbFactory mongoDbFactory,
+		@Value("${session.service.read-preference:primary}") String readPreference) {
+		this.mongoOperations = mongoOperations;
+		this.sessionCompressor = sessionCompressor;
+		this.sessionExpiry = sessionExpiry;
+		this.changeFeed = changeFeed;
+		ReadPreference preference = ReadPreference.valueOf(readPreference);
+		if (preference.equals(ReadPreference.primary())) {
+			this.readOperations = mongoOperations;
+		} else {
+			MongoTemplate template = new MongoTemplate(mongoDbFactory, mongoOperations.getConverter());
+			template.setReadPreference(preference);
+			this.readOperations = template;
+		}
+	}
+
+	// where to read the session with the given id
+	private MongoOperations readerOf(String id) {
+		return changeFeed.isRecent(id) ? mongoOperations : readOperations;
+	}
+
+	private MongoOperations readerOfUser(String userID) {
+		return changeFeed.isRecentUser(userID) ? mongoOperations : readOperations;
+	}
+
+	@Override
+	public Session save(Session session) {
+		mongoOperations.insert(session);
+		changeFeed.changed(SessionChangeFeed.Change.written(session.getId(), session.getData()));
+		return session;
+	}
+
+	@Override
+	public Session findOne(String id) {
+		return readerOf(id).findById(id, Session.class);
+	}
+
+	@Override
+	public boolean exists(String id) {
+		return readerOf(id).exists(new Query(where("id").is(id)), Session.class);
+	}
+
+	@Override
+	public List<Session> findVCByUserID(String userID) {
+		return readerOfUser(userID).find(new Query(where("data.virtualCohort.userID").is(userID)), Session.class);
+	}
+
+	@Override
+	public List<Session> findAllBy(Pageable pageable) {
+		return readOperations.find(new Query().with(pageable), Session.class);
+	}
+
+	/*
+	 * MongoDB sorts string ids before ObjectIds and only compares ids of
+	 * the same type, so the ids after a string are the greater strings
+	 * and every ObjectId.
+	 */
+	@Override
+	public List<Session> findByIdGreaterThan(String id, Pageable pageable) {
+		Object key = toKey(id);
+		Criteria criteria = (key instanceof ObjectId) ? where("id").gt(key)
+			: new Criteria().orOperator(where("id").gt(key), where("id").gte(MIN_OBJECT_ID));
+		return readOperations.find(new Query(criteria).with(pageable), Session.class);
+	}
+
+	@Override
+	public CloseableIterator<RawSession> streamAll() {
+		final DBCursor cursor = readOperations.execute(Session.class, new CollectionCallback<DBCursor>() {
+			@Override
+			public DBCursor doInCollection(DBCollection collection) {
+				return collection.find().setDecoderFactory(LazyDBDecoder.FACTORY);
+			}
+		});
+		return new CloseableIterator<RawSession>() {
+			@Override
+			public boolean hasNext() {
+				return cursor.hasNext();
+			}
+
+			@Override
+			public RawSession next() {
+				return toRawSession((LazyDBObject) cursor.next());
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public void close() {
+				cursor.close();
+			}
+		};
+	}
+
+	@Override
+	public RawSession findRawById(final String id) {
+		return readerOf(id).execute(Session.class, new CollectionCallback<RawSession>() {
+			@Override
+			public RawSession doInCollection(DBCollection collection) {
+				DBCursor cursor = collection.find(new BasicDBObject("_id", toKey(id)))
+					.limit(-1)
+					.setDecoderFactory(LazyDBDecoder.FACTORY);
+				try {
+					return cursor.hasNext() ? toRawSession((LazyDBObject) cursor.next()) : null;
+				} finally {
+					cursor.close();
+				}
+			}
+		});
+	}
+
+	@Override
+	public Session findVersionById(String id) {
+		Query query = new Query(where("id").is(id));
+		query.fields().include("version").include("checksum");
+		return readerOf(id).findOne(query, Session.class);
+	}
+
+	@Override
+	public List<RawSession> findRawByIds(final Collection<String> ids) {
+		MongoOperations reader = readOperations;
+		for (String id : ids) {
+			if (changeFeed.isRecent(id)) {
+				reader = mongoOperations;
+				break;
+			}
+		}
+		return reader.execute(Session.class, new CollectionCallback<List<RawSession>>() {
+			@Override
+			public List<RawSession> doInCollection(DBCollection collection) {
+				DBCursor cursor = collection.find(new BasicDBObject("_id", new BasicDBObject("$in", toKeys(ids))))
+					.setDecoderFactory(LazyDBDecoder.FACTORY);
+				try {
+					List<RawSession> sessions = new ArrayList<RawSession>(ids.size());
+					while (cursor.hasNext()) {
+						sessions.add(toRawSession((LazyDBObject) cursor.next()));
+					}
+					return sessions;
+				} finally {
+					cursor.close();
+				}
+			}
+		});
+	}
+
+	// same conversion Spring Data applies to ids
+	private static Object toKey(String id) {
+		return ObjectId.isValid(id) ? new ObjectId(id) : id;
+	}
+
+	private static List<Object> toKeys(Collection<String> ids) {
+		List<Object> keys = new ArrayList<Object>(ids.size());
+		for (String id : ids) {
+			keys.add(toKey(id));
+		}
+		return keys;
+	}
+
+	private static RawSession toRawSession(LazyDBObject document) {
+		ByteArrayOutputStream bson = new ByteArrayOutputStream(document.getBSONSize());
+		try {
+			document.pipe(bson);
+		} catch (IOException e) {
+			throw new IllegalStateException(e); // can not happen writing to memory
+		}
+		Number version = (Number) document.get("version");
+		return new RawSession(document.get("_id").toString(), bson.toByteArray(),
+			(version == null) ? null : version.longValue(), (String) document.get("checksum"),
+			(byte[]) document.get("compressed"), (Date) document.get("expiresAt"));
+	}
+
+	@Override
+	public Session insertIfAbsent(Session session) {
+		Query query = new Query(where("checksum").is(session.getChecksum()));
+		Update update = new Update();
+		ObjectId id = new ObjectId();
+		DBObject document = new BasicDBObject("_id", id).append("data", session.getData());
+		if (sessionCompressor.compress(document)) {
+			update.setOnInsert("_id", id).setOnInsert("compressed", document.get("compressed"));
+		}
+		update.setOnInsert("data", document.get("data"))
+			.setOnInsert("checksum", session.getChecksum())
+			.setOnInsert("version", 0L);
+		sessionExpiry.initialize(session);
+		update.setOnInsert("createdAt", session.getCreatedAt())
+			.setOnInsert("lastAccessedAt", session.getLastAccessedAt());
+		if (session.getExpiresAt() != null) {
+			update.setOnInsert("expiresAt", session.getExpiresAt());
+		}
+		if (session.getTtl() != null) {
+			update.setOnInsert("ttl", session.getTtl());
+		}
+		Session inserted = mongoOperations.findAndModify(query, update,
+			FindAndModifyOptions.options().upsert(true).returnNew(true), Session.class);
+		// an existing session was created before this call
+		if (session.getCreatedAt().equals(inserted.getCreatedAt())) {
+			changeFeed.changed(SessionChangeFeed.Change.written(inserted.getId(), session.getData()));
+		}
+		return inserted;
+	}
+
+	@Override
+	public List<Session> findVCByUserID(String userID, List<String> fields) {
+		List<Session> sessions = readerOfUser(userID).find(
+			withFields(new Query(where("data.virtualCohort.userID").is(userID)), fields), Session.class);
+		for (Session session : sessions) {
+			projectCompressed(session, fields);
+		}
+		return sessions;
+	}
+
+	@Override
+	public CloseableIterator<Session> streamVCs(final List<String> fields) {
+		Query query = withFields(new Query(where("data.virtualCohort.userID").exists(true)), fields);
+		query.fields().include("version").include("expiresAt");
+		final CloseableIterator<Session> sessions = readOperations.stream(query, Session.class);
+		return new CloseableIterator<Session>() {
+			@Override
+			public boolean hasNext() {
+				return sessions.hasNext();
+			}
+
+			@Override
+			public Session next() {
+				return projectCompressed(sessions.next(), fields);
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public void close() {
+				sessions.close();
+			}
+		};
+	}
+
+	@Override
+	public List<Session> find(SessionQuery sessionQuery) {
+		Query query = new Query();
+		for (Map.Entry<String, List<String>> predicate : sessionQuery.getPredicates().entrySet()) {
+			List<String> values = predicate.getValue();
+			query.addCriteria((values.size() == 1) ?
+				where(predicate.getKey()).is(values.get(0)) : where(predicate.getKey()).in(values));
+		}
+		Sort.Direction direction = sessionQuery.isDescending() ? Sort.Direction.DESC : Sort.Direction.ASC;
+		query.with(new Sort(direction, sessionQuery.getSortField()));
+		if (!sessionQuery.getSortField().equals("id")) {
+			query.with(new Sort(direction, "id"));
+		}
+		if (sessionQuery.getLimit() > 0) {
+			query.limit(sessionQuery.getLimit());
+		}
+		MongoOperations reader = readOperations;
+		List<String> userIDs = sessionQuery.getPredicates().get("data.virtualCohort.userID");
+		if (userIDs != null) {
+			for (String userID : userIDs) {
+				if (changeFeed.isRecentUser(userID)) {
+					reader = mongoOperations;
+					break;
+				}
+			}
+		}
+		List<String> fields = sessionQuery.getFields();
+		if (fields.isEmpty()) {
+			return reader.find(query, Session.class);
+		}
+		List<Session> sessions = reader.find(withFields(query, fields), Session.class);
+		for (Session session : sessions) {
+			projectCompressed(session, fields);
+		}
+		return sessions;
+	}
+
+	private static Query withFields(Query query, List<String> fields) {
+		for (String field : fields) {
+			query.fields().include(field);
+		}
+		// compressed sessions have to be projected here
+		query.fields().include("compressed");
+		return query;
+	}
+
+	private static Session projectCompressed(Session session, List<String> fields) {
+		if (session.isCompressed()) {
+			session.projectData(fields);
+		}
+		return session;
+	}
+
+	@Override
+	public Session updateData(String id, Session session, Long version) {
+		DBObject document = new BasicDBObject("_id", toKey(id)).append("data", session.getData());
+		return replaceData(byIdAndVersion(id, version), id, session, document, sessionCompressor.compress(document));
+	}
+
+	/*
+	 * The patch is applied to the session as read, and written back only
+	 * if the session has not changed since, as update operators where it
+	 * has them and the data stays uncompressed, otherwise as the whole
+	 * data.  Either way the checksum, compression and expiry of the
+	 * patched data are set in the same update.
+	 */
+	@Override
+	public Session patchData(String id, SessionPatch patch, Long version) {
+		for (int attempt = 0; attempt < MAX_PATCH_ATTEMPTS; attempt++) {
+			Session current = mongoOperations.findOne(byIdAndVersion(id, version), Session.class);
+			if (current == null) {
+				return null;
+			}
+			// compressed data can only be patched as a whole; the paths the
+			// operators need exist, as apply checks them on the same version
+			Update update = current.isCompressed() ? null : patch.toUpdate(new HashSet<String>());
+			Session patched = Session.withParsedData(patch.apply(current.getData()));
+			DBObject document = new BasicDBObject("_id", toKey(id)).append("data", patched.getData());
+			boolean compressed = sessionCompressor.compress(document);
+			Session written = null;
+			boolean inPlace = update != null && !compressed;
+			if (inPlace) {
+				try {
+					written = modifyData(asRead(current), update.set("checksum", patched.getChecksum()), id, patched);
+				} catch (DataAccessException e) {
+					// e.g. MongoDB does not apply an operator the same way, write the whole data
+					inPlace = false;
+				}
+			}
+			if (!inPlace) {
+				written = replaceData(asRead(current), id, patched, document, compressed);
+			}
+			if (written != null || version != null) {
+				return written;
+			}
+			// changed since it was read, try again
+		}
+		throw new SessionPatch.ConflictException("session '" + id + "' is being changed concurrently.");
+	}
+
+	private Session replaceData(Query query, String id, Session session, DBObject document, boolean compressed) {
+		Update update = new Update();
+		if (compressed) {
+			update.set("compressed", document.get("compressed"));
+		} else {
+			update.unset("compressed");
+		}
+		update.set("data", document.get("data")).set("checksum", session.getChecksum());
+		return modifyData(query, update, id, session);
+	}
+
+	private Session modifyData(Query query, Update update, String id, Session session) {
+		update.inc("version", 1);
+		if (sessionExpiry.isPinned(session.getData())) {
+			update.unset("expiresAt");
+		}
+		Session updated = mongoOperations.findAndModify(query, update,
+			FindAndModifyOptions.options().returnNew(true), Session.class);
+		if (updated != null) {
+			changeFeed.changed(SessionChangeFeed.Change.written(id, session.getData()));
+		}
+		return updated;
+	}
+
+	@Override
+	public boolean delete(String id, Long version) {
+		if (mongoOperations.remove(byIdAndVersion(id, version), Session.class).getN() == 0) {
+			return false;
+		}
+		changeFeed.changed(SessionChangeFeed.Change.deleted(id));
+		return true;
+	}
+
+	@Override
+	public void bulkWrite(final List<BulkOperation> operations, final boolean deduplicate) {
+		mongoOperations.execute(Session.class, new CollectionCallback<Void>() {
+			@Override
+			public Void doInCollection(DBCollection collection) {
+				bulkWrite(collection, operations, deduplicate);
+				changed(operations);
+				return null;
+			}
+		});
+	}
+
+	private void bulkWrite(DBCollection collection, List<BulkOperation> operations, boolean deduplicate) {
+		// a bulk write only counts the removed documents, so find out
+		// up front which of the sessions to delete exist
+		Set<Object> existing = findExistingKeys(collection, operations);
+
+		BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+		List<BulkOperation> requests = new ArrayList<BulkOperation>(operations.size());
+		List<ObjectId> insertedIds = new ArrayList<ObjectId>(operations.size());
+		for (BulkOperation operation : operations) {
+			ObjectId insertedId = null;
+			if (operation.getType() == BulkOperation.Type.DELETE) {
+				Object key = toKey(operation.getId());
+				if (!existing.remove(key)) {
+					operation.succeeded(operation.getId(), BulkOperation.Status.NOT_FOUND);
+					continue;
+				}
+				bulk.find(new BasicDBObject("_id", key)).removeOne();
+			} else if (operation.getType() == BulkOperation.Type.RESTORE) {
+				// the upsert takes the _id from the query, and leaves an existing session alone;
+				// the id is set first, since compressed data includes it
+				Object key = toKey(operation.getId());
+				DBObject document = toDocument(operation.getSession(), key);
+				document.removeField("_id");
+				bulk.find(new BasicDBObject("_id", key))
+					.upsert()
+					.updateOne(new BasicDBObject("$setOnInsert", document));
+			} else {
+				// ids are assigned here, unless they were already, so that
+				// they are known even when the bulk write only partially succeeds
+				insertedId = (operation.getId() != null) ? new ObjectId(operation.getId()) : new ObjectId();
+				DBObject document = toDocument(operation.getSession(), insertedId);
+				if (deduplicate) {
+					bulk.find(new BasicDBObject("checksum", operation.getSession().getChecksum()))
+						.upsert()
+						.updateOne(new BasicDBObject("$setOnInsert", document));
+				} else {
+					bulk.insert(document);
+				}
+			}
+			requests.add(operation);
+			insertedIds.add(insertedId);
+		}
+		if (requests.isEmpty()) {
+			return;
+		}
+
+		BulkWriteResult result;
+		List<BulkWriteError> errors;
+		try {
+			result = bulk.execute();
+			errors = Collections.emptyList();
+		} catch (BulkWriteException e) {
+			result = e.getWriteResult();
+			errors = e.getWriteErrors();
+		}
+		for (BulkWriteError error : errors) {
+			requests.get(error.getIndex()).failed(error.getMessage());
+		}
+		Set<Integer> upserted = new HashSet<Integer>();
+		for (BulkWriteUpsert upsert : result.getUpserts()) {
+			upserted.add(upsert.getIndex());
+		}
+		List<BulkOperation> deduplicated = new ArrayList<BulkOperation>();
+		for (int i = 0; i < requests.size(); i++) {
+			BulkOperation operation = requests.get(i);
+			if (operation.getStatus() == BulkOperation.Status.FAILED) {
+				continue;
+			}
+			if (operation.getType() == BulkOperation.Type.DELETE) {
+				operation.succeeded(operation.getId(), BulkOperation.Status.DELETED);
+			} else if (operation.getType() == BulkOperation.Type.RESTORE) {
+				operation.succeeded(operation.getId(),
+					upserted.contains(i) ? BulkOperation.Status.CREATED : BulkOperation.Status.EXISTING);
+			} else if (!deduplicate || upserted.contains(i)) {
+				operation.succeeded(insertedIds.get(i).toString(), BulkOperation.Status.CREATED);
+			} else {
+				deduplicated.add(operation);
+			}
+		}
+		if (!deduplicated.isEmpty()) {
+			setExistingIds(collection, deduplicated);
+		}
+	}
+
+	private void changed(List<BulkOperation> operations) {
+		List<SessionChangeFeed.Change> changes = new ArrayList<SessionChangeFeed.Change>();
+		for (BulkOperation operation : operations) {
+			if (operation.getStatus() == BulkOperation.Status.CREATED) {
+				changes.add(SessionChangeFeed.Change.written(operation.getId(), operation.getSession().getData()));
+			} else if (operation.getStatus() == BulkOperation.Status.DELETED) {
+				changes.add(SessionChangeFeed.Change.deleted(operation.getId()));
+			}
+		}
+		changeFeed.changed(changes);
+	}
+
+	private static Set<Object> findExistingKeys(DBCollection collection, List<BulkOperation> operations) {
+		List<Object> keys = new ArrayList<Object>();
+		for (BulkOperation operation : operations) {
+			if (operation.getType() == BulkOperation.Type.DELETE) {
+				keys.add(toKey(operation.getId()));
+			}
+		}
+		Set<Object> existing = new HashSet<Object>();
+		if (keys.isEmpty()) {
+			return existing;
+		}
+		DBCursor cursor = collection.find(new BasicDBObject("_id", new BasicDBObject("$in", keys)),
+			new BasicDBObject("_id", 1));
+		try {
+			while (cursor.hasNext()) {
+				existing.add(cursor.next().get("_id"));
+			}
+		} finally {
+			cursor.close();
+		}
+		return existing;
+	}
+
+	private static void setExistingIds(DBCollection collection, List<BulkOperation> operations) {
+		List<String> checksums = new ArrayList<String>(operations.size());
+		for (BulkOperation operation : operations) {
+			checksums.add(operation.getSession().getChecksum());
+		}
+		Map<Object, String> ids = new HashMap<Object, String>();
+		DBCursor cursor = collection.find(new BasicDBObject("checksum", new BasicDBObject("$in", checksums)),
+			new BasicDBObject("checksum", 1));
+		try {
+			while (cursor.hasNext()) {
+				DBObject document = cursor.next();
+				ids.put(document.get("checksum"), document.get("_id").toString());
+			}
+		} finally {
+			cursor.close();
+		}
+		for (BulkOperation operation : operations) {
+			String id = ids.get(operation.getSession().getChecksum());
+			if (id == null) {
+				// deleted again before we could look it up
+				operation.failed("session was deleted concurrently.");
+			} else {
+				operation.succeeded(id, BulkOperation.Status.EXISTING);
+			}
+		}
+	}
+
+	// what save(session) would write for a new session
+	private DBObject toDocument(Session session, Object id) {
+		BasicDBObject document = new BasicDBObject();
+		sessionExpiry.initialize(session);
+		mongoOperations.getConverter().write(session, document);
+		document.put("_id", id);
+		document.put("version", 0L);
+		sessionCompressor.compress(document);
+		return document;
+	}
+
+	@Override
+	public void recordAccesses(Collection<String> ids, Date accessedAt) {
+		mongoOperations.updateMulti(new Query(where("id").in(ids)),
+			new Update().set("lastAccessedAt", accessedAt), Session.class);
+		Date expiresAt = sessionExpiry.idleExpiry(accessedAt);
+		if (expiresAt != null) {
+			Criteria idle = where("id").in(ids).and("ttl").exists(false);
+			for (String path : sessionExpiry.getPinnedPaths()) {
+				idle = idle.and("data." + path).exists(false);
+			}
+			mongoOperations.updateMulti(new Query(idle), new Update().set("expiresAt", expiresAt), Session.class);
+		}
+	}
+
+	/*
+	 * Matches the session only while it is unchanged since it was read.
+	 * Every write increments the version, so a session written before
+	 * versioning is unchanged as long as it has no version and the same
+	 * checksum.
+	 */
+	private Query asRead(Session current) {
+		Criteria criteria = where("id").is(current.getId());
+		if (current.getVersion() != null) {
+			criteria = criteria.and("version").is(current.getVersion());
+		} else {
+			criteria = criteria.and("version").exists(false).and("checksum").is(current.getChecksum());
+		}
+		return new Query(criteria);
+	}
+
+	private Query byIdAndVersion(String id, Long version) {
+		Criteria criteria = where("id").is(id);
+		if (version != null) {
+			criteria = criteria.and("version").is(version);
+		}
+		return new Query(criteria);
+	}
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.domain;
+
+import java.util.Date;
+
+/**
+ * A session document exactly as MongoDB returned it, as BSON bytes.
+ * Write it as JSON with {@link SessionJsonWriter}.
+ */
+public class RawSession
+{
+    private final String id;
+    private final byte[] bson;
+    private final Long version;
+    private final String checksum;
+    private final byte[] compressed;
+    private final Date expiresAt;
+
+    public RawSession(String id, byte[] bson, Long version, String checksum, byte[] compressed, Date expiresAt)
+    {
+        this.id = id;
+        this.bson = bson;
+        this.version = version;
+        this.checksum = checksum;
+        this.compressed = compressed;
+        this.expiresAt = expiresAt;
+    }
+
+    public String getId()
+    {
+        return id;
+    }
+
+    public byte[] getBson()
+    {
+        return bson;
+    }
+
+    /**
+     * @see Session#getVersion()
+     */
+    public Long getVersion()
+    {
+        return version;
+    }
+
+    /**
+     * @see Session#getChecksum()
+     */
+    public String getChecksum()
+    {
+        return checksum;
+    }
+
+    /**
+     * The session as gzipped JSON if it is stored compressed, otherwise
+     * null.
+     *
+     * @see SessionCompressor
+     */
+    public byte[] getCompressed()
+    {
+        return compressed;
+    }
+
+    /**
+     * @see Session#getExpiresAt()
+     */
+    public Date getExpiresAt()
+    {
+        return expiresAt;
+    }
+}
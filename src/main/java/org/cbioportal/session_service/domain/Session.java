@@ -32,9 +32,17 @@
 
 package org.cbioportal.session_service.domain;
 
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
 import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.Version;
+import org.springframework.data.mongodb.core.index.Indexed;
 
-import com.mongodb.util.JSON; // save as JSON, not String of JSON
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.mongodb.DBObject;
 
 /**
 * @author Manda Wilson 
@@ -44,6 +52,16 @@ public class Session
     @Id
     private String id;
     private Object data;
+    @Indexed
+    private String checksum; // hash of data, see SessionChecksum
+    @Version
+    private Long version; // incremented on every update
+    private byte[] compressed; // gzipped JSON of the session, see SessionCompressor
+    private Date createdAt;
+    private Date lastAccessedAt; // updated in batches, see SessionExpiry
+    @Indexed(expireAfterSeconds = 0)
+    private Date expiresAt; // MongoDB deletes the session after this, never if null
+    private Long ttl; // seconds, if given when the session was created
 
     public Session() 
     {
@@ -51,7 +69,40 @@ public class Session
 
     public Session(String data)
     {
-        this.data = JSON.parse(data);
+        setData(data);
+    }
+
+    /**
+     * For data that has already been parsed, e.g. by {@link BulkOperation}.
+     */
+    static Session withParsedData(Object data)
+    {
+        Session session = new Session();
+        session.data = data;
+        session.checksum = SessionChecksum.compute(data);
+        return session;
+    }
+
+    /**
+     * For sessions stored as documents outside of MongoDB, see
+     * {@link FileSessionRepository}.  Fields missing from the document
+     * stay null.
+     */
+    static Session fromDocument(DBObject document)
+    {
+        Session session = new Session();
+        session.id = document.get("_id").toString();
+        session.data = document.get("data");
+        session.checksum = (String) document.get("checksum");
+        Number version = (Number) document.get("version");
+        session.version = (version == null) ? null : version.longValue();
+        session.compressed = (byte[]) document.get("compressed");
+        session.createdAt = (Date) document.get("createdAt");
+        session.lastAccessedAt = (Date) document.get("lastAccessedAt");
+        session.expiresAt = (Date) document.get("expiresAt");
+        Number ttl = (Number) document.get("ttl");
+        session.ttl = (ttl == null) ? null : ttl.longValue();
+        return session;
     }
 
     public String getId()
@@ -59,19 +110,118 @@ public class Session
         return id;
     }
 
+    void setId(String id)
+    {
+        this.id = id;
+    }
+
     public void setData(String data)
     {
-        this.data = JSON.parse(data);
+        this.data = SessionDataParser.parse(data); // save as JSON, not String of JSON
+        this.checksum = SessionChecksum.compute(this.data);
+    }
+
+    /**
+     * After data was changed in place, e.g. by a {@link SessionPatch}.
+     */
+    void updateChecksum()
+    {
+        this.checksum = SessionChecksum.compute(getData());
     }
 
     public Object getData()
     {
+        if (compressed != null) {
+            // data only holds the indexed paths until decompressed
+            String json = new String(SessionCompressor.gunzip(compressed), Charset.forName("UTF-8"));
+            data = ((DBObject) SessionDataParser.parse(json)).get("data");
+            compressed = null;
+        }
         return data;
     }
 
+    boolean isCompressed()
+    {
+        return compressed != null;
+    }
+
+    /**
+     * Keeps only the given paths of data, e.g. data.virtualCohort.name.
+     */
+    void projectData(List<String> fields)
+    {
+        if (!fields.contains("data")) {
+            List<String> paths = new ArrayList<String>(fields.size());
+            for (String field : fields) {
+                paths.add(field.substring("data.".length()));
+            }
+            data = SessionProjection.project(getData(), paths);
+        }
+    }
+
+    /**
+     * Same for any two sessions whose data is equal JSON, regardless of 
+     * key order or number formatting.
+     */
+    @JsonIgnore
+    public String getChecksum()
+    {
+        return checksum;
+    }
+
+    /**
+     * Null for sessions written before versioning was added, until
+     * they are first updated.
+     */
+    @JsonIgnore
+    public Long getVersion()
+    {
+        return version;
+    }
+
+    @JsonIgnore
+    public Date getCreatedAt()
+    {
+        return createdAt;
+    }
+
+    @JsonIgnore
+    public Date getLastAccessedAt()
+    {
+        return lastAccessedAt;
+    }
+
+    @JsonIgnore
+    public Date getExpiresAt()
+    {
+        return expiresAt;
+    }
+
+    /**
+     * Seconds after its creation this session expires, instead of after
+     * it was last accessed, or null.
+     */
+    @JsonIgnore
+    public Long getTtl()
+    {
+        return ttl;
+    }
+
+    public void setTtl(Long ttl)
+    {
+        this.ttl = ttl;
+    }
+
+    void setCreated(Date createdAt, Date expiresAt)
+    {
+        this.createdAt = createdAt;
+        this.lastAccessedAt = createdAt;
+        this.expiresAt = expiresAt;
+    }
+
     @Override
     public String toString()
     {
-        return data.toString();
+        return getData().toString();
     }
 }
@@ -0,0 +1,444 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.domain;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.mongodb.core.CollectionOptions;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.stereotype.Component;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.mongodb.BasicDBObject;
+import com.mongodb.Bytes;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+/**
+ * Tells the other servers of a deployment which sessions this one wrote,
+ * if session.service.change-feed.enabled is true, by appending them to a
+ * capped collection (session.service.change-feed.collection) that every
+ * server tails.  Servers that can not create capped collections poll a
+ * plain one instead, whose events expire after an hour; it is read in id
+ * order, so an event may be missed if the clocks of the servers differ.
+ * A capped collection is read in insertion order, which is the same for
+ * every server.
+ * Changes written by other servers are published as
+ * {@link ChangeEvent}s, so that what a server keeps in memory, such as
+ * {@link UserSessionIndex}, follows them within moments.
+ *
+ * Also remembers for session.service.read-your-writes-seconds the ids and
+ * users of the sessions written here or, with the feed, elsewhere, so that
+ * {@link MongoSessionRepository} reads them from the primary while
+ * secondaries may not have the write yet.  Not used by the "embedded"
+ * profile, which has only one server.
+ */
+@Component
+@Profile("!embedded")
+public class SessionChangeFeed implements SmartLifecycle
+{
+    private static final Logger log = LoggerFactory.getLogger(SessionChangeFeed.class);
+    private static final String USER_ID_PATH = "virtualCohort.userID";
+    private static final long POLL_MILLIS = 500;
+    private static final int PLAIN_EXPIRY_SECONDS = 3600;
+
+    private final MongoOperations mongoOperations;
+    private final ApplicationEventPublisher eventPublisher;
+    private final boolean enabled;
+    private final String collectionName;
+    private final long sizeBytes;
+    private final String instance = new ObjectId().toString();
+    // null if read-your-writes-seconds is 0
+    private final Cache<String, Boolean> recentIds;
+    private final Cache<String, Boolean> recentUserIDs;
+    private volatile boolean running;
+    private volatile DBCursor cursor;
+    private Thread thread;
+
+    @Autowired
+    public SessionChangeFeed(MongoOperations mongoOperations, ApplicationEventPublisher eventPublisher,
+        @Value("${session.service.change-feed.enabled:false}") boolean enabled,
+        @Value("${session.service.change-feed.collection:session_changes}") String collectionName,
+        @Value("${session.service.change-feed.size-bytes:1048576}") long sizeBytes,
+        @Value("${session.service.read-your-writes-seconds:10}") long readYourWritesSeconds)
+    {
+        this.mongoOperations = mongoOperations;
+        this.eventPublisher = eventPublisher;
+        this.enabled = enabled;
+        this.collectionName = collectionName;
+        this.sizeBytes = sizeBytes;
+        if (readYourWritesSeconds > 0) {
+            recentIds = CacheBuilder.newBuilder().expireAfterWrite(readYourWritesSeconds, TimeUnit.SECONDS).build();
+            recentUserIDs = CacheBuilder.newBuilder().expireAfterWrite(readYourWritesSeconds, TimeUnit.SECONDS).build();
+        } else {
+            recentIds = null;
+            recentUserIDs = null;
+        }
+    }
+
+    /**
+     * True if the session with the given id was written recently.
+     */
+    public boolean isRecent(String id)
+    {
+        return recentIds != null && recentIds.getIfPresent(id) != null;
+    }
+
+    /**
+     * True if a session of the given user was written recently.
+     */
+    public boolean isRecentUser(String userID)
+    {
+        return recentUserIDs != null && recentUserIDs.getIfPresent(userID) != null;
+    }
+
+    /**
+     * Records the given changes after they were written, and tells the
+     * other servers about them.  Failing to tell them is only logged,
+     * since the changes are written already.
+     */
+    public void changed(List<Change> changes)
+    {
+        if (changes.isEmpty()) {
+            return;
+        }
+        List<DBObject> events = new ArrayList<DBObject>(changes.size());
+        for (Change change : changes) {
+            remember(change);
+            DBObject event = new BasicDBObject("instance", instance)
+                .append("at", new Date())
+                .append("session", change.id)
+                .append("deleted", change.deleted);
+            if (change.userID != null) {
+                event.put("userID", change.userID);
+            }
+            events.add(event);
+        }
+        if (!running) {
+            return;
+        }
+        try {
+            mongoOperations.getCollection(collectionName).insert(events);
+        } catch (RuntimeException e) {
+            log.warn("could not publish " + changes.size() + " session changes", e);
+        }
+    }
+
+    public void changed(Change change)
+    {
+        changed(Collections.singletonList(change));
+    }
+
+    private void remember(Change change)
+    {
+        if (recentIds != null) {
+            recentIds.put(change.id, Boolean.TRUE);
+            if (change.userID != null) {
+                recentUserIDs.put(change.userID, Boolean.TRUE);
+            }
+        }
+    }
+
+    /**
+     * @return true if the collection is capped
+     */
+    private boolean createCollection()
+    {
+        if (mongoOperations.collectionExists(collectionName)) {
+            return isCapped();
+        }
+        try {
+            mongoOperations.createCollection(collectionName, new CollectionOptions((int) sizeBytes, null, true));
+            return true;
+        } catch (RuntimeException e) {
+            if (mongoOperations.collectionExists(collectionName)) {
+                // another server created it first
+                return isCapped();
+            }
+            log.warn("could not create capped collection " + collectionName + ", polling a plain one", e);
+        }
+        DBCollection collection = mongoOperations.getCollection(collectionName);
+        collection.createIndex(new BasicDBObject("at", 1), new BasicDBObject("expireAfterSeconds", PLAIN_EXPIRY_SECONDS));
+        return false;
+    }
+
+    private boolean isCapped()
+    {
+        try {
+            return mongoOperations.getCollection(collectionName).isCapped();
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Publishes the changes written by other servers after last, until
+     * the feed is stopped.  The cursor of a capped collection dies if the
+     * collection is empty, or if it falls so far behind that the
+     * collection wrapped around; either way it is opened again.  The ids
+     * are made by each server, so they do not follow the order in which
+     * events were inserted; a capped collection is read again from its
+     * start in insertion order, skipping the events up to last.
+     */
+    private void tail(DBCollection collection, boolean capped, Object last)
+    {
+        while (running) {
+            DBCursor cursor;
+            boolean skipping = false;
+            try {
+                if (capped) {
+                    // if last is overwritten while skipping, the cursor dies before,
+                    // as a capped collection overwrites in insertion order
+                    skipping = (last != null) && collection.findOne(new BasicDBObject("_id", last)) != null;
+                    if (last != null && !skipping) {
+                        log.warn("the session change feed fell behind by more than "
+                            + collectionName + " holds, changes of other servers may have been missed");
+                    }
+                    cursor = collection.find().sort(new BasicDBObject("$natural", 1))
+                        .addOption(Bytes.QUERYOPTION_TAILABLE)
+                        .addOption(Bytes.QUERYOPTION_AWAITDATA);
+                } else {
+                    DBObject query = (last == null) ? new BasicDBObject()
+                        : new BasicDBObject("_id", new BasicDBObject("$gt", last));
+                    cursor = collection.find(query).sort(new BasicDBObject("_id", 1));
+                }
+            } catch (RuntimeException e) {
+                log.warn("could not open the session change feed, trying again", e);
+                if (!pause()) {
+                    return;
+                }
+                continue;
+            }
+            this.cursor = cursor;
+            try {
+                while (running && cursor.hasNext()) {
+                    DBObject event = cursor.next();
+                    if (skipping) {
+                        // read before the cursor was reopened
+                        skipping = !last.equals(event.get("_id"));
+                        continue;
+                    }
+                    last = event.get("_id");
+                    if (!instance.equals(event.get("instance"))) {
+                        received(event);
+                    }
+                }
+            } catch (RuntimeException e) {
+                if (running) {
+                    log.warn("lost the session change feed, reopening it", e);
+                }
+            } finally {
+                cursor.close();
+            }
+            if (!pause()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return false if the feed was stopped meanwhile
+     */
+    private boolean pause()
+    {
+        if (running) {
+            try {
+                Thread.sleep(POLL_MILLIS);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return running;
+    }
+
+    private void received(DBObject event)
+    {
+        Change change = new Change((String) event.get("session"), (String) event.get("userID"),
+            Boolean.TRUE.equals(event.get("deleted")));
+        remember(change);
+        try {
+            eventPublisher.publishEvent(new ChangeEvent(this, change));
+        } catch (RuntimeException e) {
+            log.warn("could not apply the change of session " + change.id, e);
+        }
+    }
+
+    @Override
+    public synchronized void start()
+    {
+        if (!enabled) {
+            return;
+        }
+        final boolean capped = createCollection();
+        final DBCollection collection = mongoOperations.getCollection(collectionName);
+        DBCursor newest = collection.find().sort(new BasicDBObject(capped ? "$natural" : "_id", -1)).limit(1);
+        final Object last;
+        try {
+            last = newest.hasNext() ? newest.next().get("_id") : null;
+        } finally {
+            newest.close();
+        }
+        running = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run()
+            {
+                tail(collection, capped, last);
+            }
+        }, "session-change-feed");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public synchronized void stop()
+    {
+        if (thread == null) {
+            return;
+        }
+        running = false;
+        DBCursor current = cursor;
+        if (current != null) {
+            current.close();
+        }
+        thread.interrupt();
+        thread = null;
+    }
+
+    @Override
+    public void stop(Runnable callback)
+    {
+        stop();
+        callback.run();
+    }
+
+    @Override
+    public synchronized boolean isRunning()
+    {
+        return thread != null;
+    }
+
+    @Override
+    public boolean isAutoStartup()
+    {
+        return true;
+    }
+
+    @Override
+    public int getPhase()
+    {
+        return 0;
+    }
+
+    /**
+     * A session that was written or deleted, and the user it belongs to
+     * (the data.virtualCohort.userID of the session) if known.
+     */
+    public static class Change
+    {
+        private final String id;
+        private final String userID;
+        private final boolean deleted;
+
+        private Change(String id, String userID, boolean deleted)
+        {
+            this.id = id;
+            this.userID = userID;
+            this.deleted = deleted;
+        }
+
+        public static Change written(String id, Object data)
+        {
+            Object value = data;
+            for (String segment : USER_ID_PATH.split("\\.")) {
+                value = (value instanceof Map) ? ((Map<?, ?>) value).get(segment) : null;
+            }
+            return new Change(id, (value instanceof String) ? (String) value : null, false);
+        }
+
+        public static Change deleted(String id)
+        {
+            return new Change(id, null, true);
+        }
+
+        public String getId()
+        {
+            return id;
+        }
+
+        public String getUserID()
+        {
+            return userID;
+        }
+
+        public boolean isDeleted()
+        {
+            return deleted;
+        }
+    }
+
+    /**
+     * A change written by another server.
+     */
+    public static class ChangeEvent extends ApplicationEvent
+    {
+        private final Change change;
+
+        public ChangeEvent(Object source, Change change)
+        {
+            super(source);
+            this.change = change;
+        }
+
+        public Change getChange()
+        {
+            return change;
+        }
+    }
+}
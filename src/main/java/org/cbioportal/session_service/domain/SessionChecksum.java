@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.domain;
+
+import java.math.BigDecimal;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Computes a stable SHA-256 hash of parsed session data.  The hash does
+ * not depend on the order of keys in objects or on how numbers are
+ * written, so {"a": 1, "b": 2.0} and {"b": 2, "a": 1.00} hash the same.
+ */
+final class SessionChecksum
+{
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private SessionChecksum()
+    {
+    }
+
+    static String compute(Object data)
+    {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every JVM must provide SHA-256
+        }
+        update(digest, data);
+        byte[] hash = digest.digest();
+        char[] hex = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            hex[2 * i] = HEX[(hash[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX[hash[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    /*
+     * Every value is written as a one character type tag followed by its
+     * content.  Strings are length prefixed so that no two different
+     * values produce the same byte sequence.
+     */
+    private static void update(MessageDigest digest, Object value)
+    {
+        if (value == null) {
+            digest.update((byte) 'z');
+        } else if (value instanceof Map) {
+            // sort keys
+            TreeMap<String, Object> sorted = new TreeMap<String, Object>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                sorted.put(String.valueOf(entry.getKey()), entry.getValue());
+            }
+            digest.update((byte) '{');
+            for (Map.Entry<String, Object> entry : sorted.entrySet()) {
+                updateString(digest, entry.getKey());
+                update(digest, entry.getValue());
+            }
+            digest.update((byte) '}');
+        } else if (value instanceof List) {
+            digest.update((byte) '[');
+            for (Object element : (List<?>) value) {
+                update(digest, element);
+            }
+            digest.update((byte) ']');
+        } else if (value instanceof String) {
+            digest.update((byte) 's');
+            updateString(digest, (String) value);
+        } else if (value instanceof Boolean) {
+            digest.update((byte) (((Boolean) value) ? 't' : 'f'));
+        } else if (value instanceof Number) {
+            digest.update((byte) 'n');
+            updateString(digest, normalize((Number) value));
+        } else {
+            // anything else JSON.parse can produce, e.g. ObjectId or Date
+            digest.update((byte) 'o');
+            updateString(digest, value.getClass().getName());
+            updateString(digest, value.toString());
+        }
+    }
+
+    private static void updateString(MessageDigest digest, String value)
+    {
+        byte[] bytes = value.getBytes(UTF_8);
+        digest.update(Integer.toString(bytes.length).getBytes(UTF_8));
+        digest.update((byte) ':');
+        digest.update(bytes);
+    }
+
+    /*
+     * 1, 1.0 and 1e0 all become "1".
+     */
+    static String normalize(Number number)
+    {
+        if (number instanceof Integer || number instanceof Long
+            || number instanceof Short || number instanceof Byte) {
+            return Long.toString(number.longValue());
+        }
+        double d = number.doubleValue();
+        if (Double.isNaN(d) || Double.isInfinite(d)) {
+            return Double.toString(d);
+        }
+        BigDecimal decimal = (number instanceof BigDecimal) ?
+            (BigDecimal) number : new BigDecimal(Double.toString(d));
+        if (decimal.signum() == 0) {
+            return "0";
+        }
+        return decimal.stripTrailingZeros().toPlainString();
+    }
+}
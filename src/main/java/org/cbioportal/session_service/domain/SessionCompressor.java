@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.domain;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.bson.BasicBSONEncoder;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.mapping.event.AbstractMongoEventListener;
+import org.springframework.data.mongodb.core.mapping.event.BeforeSaveEvent;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * Stores sessions whose JSON is at least session.service.compression.min-bytes
+ * long as gzipped JSON in a "compressed" field, if
+ * session.service.compression.enabled is true.  The gzipped bytes are
+ * exactly the response to GET /api/sessions/:session_id, so they can be
+ * sent as they are to clients that accept gzip.  The "data" field of a
+ * compressed session only keeps the paths in session.service.indexes,
+ * virtualCohort.userID and session.service.expiry.pinned-paths, so that
+ * queries on them still match and pinned sessions still look pinned.
+ *
+ * Sessions saved through the repository are compressed on the way to
+ * MongoDB by {@link #onBeforeSave}; other writes call {@link #compress}.
+ */
+@Component
+public class SessionCompressor extends AbstractMongoEventListener<Session>
+{
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final String USER_ID_PATH = "virtualCohort.userID";
+
+    private final boolean enabled;
+    private final int minBytes;
+    private final List<String> keptPaths;
+
+    @Autowired
+    public SessionCompressor(@Value("${session.service.compression.enabled:false}") boolean enabled,
+        @Value("${session.service.compression.min-bytes:16384}") int minBytes,
+        @Value("${session.service.indexes:virtualCohort.userID}") String[] dataIndexes,
+        @Value("${session.service.expiry.pinned-paths:virtualCohort.userID}") String[] pinnedPaths)
+    {
+        this.enabled = enabled;
+        this.minBytes = minBytes;
+        this.keptPaths = new ArrayList<String>();
+        // userid queries are always allowed, whatever the indexes
+        keep(USER_ID_PATH);
+        for (String path : dataIndexes) {
+            keep(path);
+        }
+        for (String path : pinnedPaths) {
+            keep(path);
+        }
+    }
+
+    private void keep(String path)
+    {
+        if (!path.trim().isEmpty() && !keptPaths.contains(path.trim())) {
+            keptPaths.add(path.trim());
+        }
+    }
+
+    /**
+     * Compresses the data of a session document if compression is on
+     * and the data is large enough.
+     *
+     * @param document with the final _id and the data of the session
+     * @return true if document now has a "compressed" field and its data
+     *  was replaced by the kept paths
+     */
+    boolean compress(DBObject document)
+    {
+        if (!enabled) {
+            return false;
+        }
+        BasicDBObject session = new BasicDBObject("_id", document.get("_id")).append("data", document.get("data"));
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        try {
+            JsonGenerator generator = JSON_FACTORY.createGenerator(json);
+            SessionJsonWriter.write(new BasicBSONEncoder().encode(session), generator);
+            generator.close();
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // can not happen writing to memory
+        }
+        if (json.size() < minBytes) {
+            return false;
+        }
+        document.put("data", SessionProjection.project(document.get("data"), keptPaths));
+        document.put("compressed", gzip(json.toByteArray()));
+        return true;
+    }
+
+    @Override
+    public void onBeforeSave(BeforeSaveEvent<Session> event)
+    {
+        DBObject document = event.getDBObject();
+        if (enabled && document.get("_id") == null) {
+            // the compressed JSON includes the id, so assign it now
+            document.put("_id", new ObjectId());
+        }
+        compress(document);
+    }
+
+    static byte[] gzip(byte[] bytes)
+    {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 4);
+        try {
+            GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+            gzip.write(bytes);
+            gzip.close();
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // can not happen writing to memory
+        }
+        return compressed.toByteArray();
+    }
+
+    public static byte[] gunzip(byte[] compressed)
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(compressed.length * 4);
+        try {
+            InputStream gzip = new GZIPInputStream(new ByteArrayInputStream(compressed));
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = gzip.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("corrupt compressed session", e);
+        }
+        return bytes.toByteArray();
+    }
+}
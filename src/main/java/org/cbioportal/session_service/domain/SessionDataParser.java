@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.domain;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.util.JSON;
+import com.mongodb.util.JSONParseException;
+
+/**
+ * Parses session JSON into the BasicDBObject/BasicDBList tree that is
+ * saved to MongoDB, in a single pass over a streaming Jackson parser.
+ * This is several times cheaper than com.mongodb.util.JSON.parse and
+ * produces the same objects, converting extended JSON such as
+ * {"$oid": ...} the same way.  Invalid JSON still results in a
+ * com.mongodb.util.JSONParseException.
+ */
+final class SessionDataParser
+{
+    private static final JsonFactory JSON_FACTORY = new JsonFactory()
+        // JSON.parse accepted these, so clients may rely on them
+        .enable(JsonParser.Feature.ALLOW_UNQUOTED_FIELD_NAMES)
+        .enable(JsonParser.Feature.ALLOW_SINGLE_QUOTES);
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private SessionDataParser()
+    {
+    }
+
+    static Object parse(String json)
+    {
+        try {
+            return parse(JSON_FACTORY.createParser(json), 0, 0, 0);
+        } catch (JsonProcessingException e) {
+            throw new JSONParseException(json, (int) e.getLocation().getCharOffset(), e);
+        } catch (IOException e) {
+            throw new JSONParseException(json, 0, e); // can not happen reading a String
+        }
+    }
+
+    /**
+     * Parses JSON as it is read from in, which is not closed.
+     *
+     * @param charset of the JSON, or null to detect the Unicode encoding
+     * @param maxDepth of nested objects and arrays, 0 for any
+     * @param maxArrayLength 0 for any
+     * @throws SessionDataReader.TooLargeException if data exceeds a limit
+     */
+    static Object parse(InputStream in, Charset charset, int maxDepth, int maxArrayLength) throws IOException
+    {
+        return parse(in, charset, maxDepth, maxArrayLength, 0);
+    }
+
+    /**
+     * Like {@link #parse(InputStream, Charset, int, int)}, for a request
+     * that is an array of at most maxItems items, e.g. bulk operations.
+     * The parse stops at the first item too many.
+     *
+     * @param maxItems of a top-level array, 0 for maxArrayLength
+     * @throws SessionDataReader.TooManyItemsException if there are more
+     */
+    static Object parse(InputStream in, Charset charset, int maxDepth, int maxArrayLength, int maxItems)
+        throws IOException
+    {
+        try {
+            return parse((charset == null || charset.equals(UTF_8)) ?
+                JSON_FACTORY.createParser(in) : JSON_FACTORY.createParser(new InputStreamReader(in, charset)),
+                maxDepth, maxArrayLength, maxItems);
+        } catch (JsonProcessingException e) {
+            throw new JSONParseException("request body, at byte " + e.getLocation().getByteOffset(), 0, e);
+        }
+    }
+
+    private static Object parse(JsonParser parser, int maxDepth, int maxArrayLength, int maxItems)
+        throws IOException
+    {
+        parser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+        try {
+            if (parser.nextToken() == null) {
+                throw new JsonParseException("no content", parser.getCurrentLocation());
+            }
+            Object value;
+            if (maxItems > 0 && parser.getCurrentToken() == JsonToken.START_ARRAY) {
+                value = readItems(parser, maxDepth, maxArrayLength, maxItems);
+            } else {
+                value = readValue(parser, 1, maxDepth, maxArrayLength);
+            }
+            if (parser.nextToken() != null) {
+                throw new JsonParseException("trailing content", parser.getTokenLocation());
+            }
+            return value;
+        } finally {
+            parser.close();
+        }
+    }
+
+    private static BasicDBList readItems(JsonParser parser, int maxDepth, int maxArrayLength, int maxItems)
+        throws IOException
+    {
+        checkDepth(1, maxDepth);
+        BasicDBList items = new BasicDBList();
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            if (items.size() == maxItems) {
+                throw new SessionDataReader.TooManyItemsException(maxItems);
+            }
+            items.add(readValue(parser, 2, maxDepth, maxArrayLength));
+        }
+        return items;
+    }
+
+    private static Object readValue(JsonParser parser, int depth, int maxDepth, int maxArrayLength)
+        throws IOException
+    {
+        switch (parser.getCurrentToken()) {
+            case START_OBJECT:
+                checkDepth(depth, maxDepth);
+                BasicDBObject object = new BasicDBObject();
+                boolean extended = false;
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String name = parser.getCurrentName();
+                    extended |= name.startsWith("$");
+                    parser.nextToken();
+                    object.put(name, readValue(parser, depth + 1, maxDepth, maxArrayLength));
+                }
+                // e.g. {"$oid": ...}, which only JSON.parse knows how to convert
+                return extended ? JSON.parse(JSON.serialize(object)) : object;
+            case START_ARRAY:
+                checkDepth(depth, maxDepth);
+                BasicDBList list = new BasicDBList();
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    if (maxArrayLength > 0 && list.size() == maxArrayLength) {
+                        throw new SessionDataReader.TooLargeException(
+                            "arrays can have at most " + maxArrayLength + " elements.");
+                    }
+                    list.add(readValue(parser, depth + 1, maxDepth, maxArrayLength));
+                }
+                return list;
+            case VALUE_STRING:
+                return parser.getText();
+            case VALUE_NUMBER_INT:
+                switch (parser.getNumberType()) {
+                    case INT:
+                        return parser.getIntValue();
+                    case LONG:
+                        return parser.getLongValue();
+                    default:
+                        return parser.getDoubleValue();
+                }
+            case VALUE_NUMBER_FLOAT:
+                return parser.getDoubleValue();
+            case VALUE_TRUE:
+                return Boolean.TRUE;
+            case VALUE_FALSE:
+                return Boolean.FALSE;
+            case VALUE_NULL:
+                return null;
+            default:
+                throw new JsonParseException("unexpected " + parser.getCurrentToken(), parser.getCurrentLocation());
+        }
+    }
+
+    private static void checkDepth(int depth, int maxDepth)
+    {
+        if (maxDepth > 0 && depth > maxDepth) {
+            throw new SessionDataReader.TooLargeException(
+                "objects and arrays can be nested at most " + maxDepth + " deep.");
+        }
+    }
+}
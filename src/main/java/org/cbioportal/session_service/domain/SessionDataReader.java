@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.domain;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Parses session data while it is read from a request body, so that the
+ * body is never held as a whole next to the parsed data.  Data is
+ * rejected with a {@link TooLargeException} as soon as more than
+ * session.service.limits.max-bytes have been read, objects and arrays
+ * are nested deeper than max-depth, or an array has more than
+ * max-array-length elements.  A limit of 0 is off.  The same limits
+ * apply to the other request bodies that carry session data: bulk
+ * requests, patches and lists of ids.
+ */
+@Component
+public class SessionDataReader
+{
+    private final long maxBytes;
+    private final int maxDepth;
+    private final int maxArrayLength;
+
+    @Autowired
+    public SessionDataReader(@Value("${session.service.limits.max-bytes:16777216}") long maxBytes,
+        @Value("${session.service.limits.max-depth:100}") int maxDepth,
+        @Value("${session.service.limits.max-array-length:1000000}") int maxArrayLength)
+    {
+        this.maxBytes = maxBytes;
+        this.maxDepth = maxDepth;
+        this.maxArrayLength = maxArrayLength;
+    }
+
+    /**
+     * @param body JSON, not closed
+     * @param contentLength of body if known, otherwise -1
+     * @param charset of body, or null to detect the Unicode encoding
+     * @return a new session with the data
+     * @throws TooLargeException if the data exceeds a limit
+     * @throws com.mongodb.util.JSONParseException if body is not JSON
+     */
+    public Session read(InputStream body, long contentLength, Charset charset) throws IOException
+    {
+        return Session.withParsedData(readJson(body, contentLength, charset, 0, 0));
+    }
+
+    /**
+     * Reads a bulk request, see {@link BulkOperation#parse(String)}.
+     * Session data may be nested max-depth deep within each operation.
+     *
+     * @throws TooManyItemsException as soon as an operation more than
+     *         maxOperations is read
+     * @throws IllegalArgumentException if the JSON is valid but is not
+     *         an array of operations
+     */
+    public List<BulkOperation> readBulk(InputStream body, long contentLength, Charset charset, int maxOperations)
+        throws IOException
+    {
+        return BulkOperation.parse(readJson(body, contentLength, charset, 2, maxOperations));
+    }
+
+    /**
+     * Reads a JSON Patch, or a JSON Merge Patch if merge is true, see
+     * {@link SessionPatch}.
+     *
+     * @throws IllegalArgumentException if a JSON Patch is valid JSON but
+     *         not an array of operations
+     */
+    public SessionPatch readPatch(InputStream body, long contentLength, Charset charset, boolean merge)
+        throws IOException
+    {
+        if (merge) {
+            return SessionPatch.mergePatch(readJson(body, contentLength, charset, 0, 0));
+        }
+        return SessionPatch.jsonPatch(readJson(body, contentLength, charset, 2, 0));
+    }
+
+    /**
+     * Reads a JSON array of session ids.
+     *
+     * @throws TooManyItemsException as soon as an id more than maxIds
+     *         is read
+     * @throws IllegalArgumentException if the JSON is valid but is not
+     *         an array of strings
+     */
+    public List<String> readIds(InputStream body, long contentLength, Charset charset, int maxIds)
+        throws IOException
+    {
+        Object parsed = readJson(body, contentLength, charset, 1, maxIds);
+        if (!(parsed instanceof List)) {
+            throw new IllegalArgumentException("expected an array of ids.");
+        }
+        List<String> ids = new ArrayList<String>();
+        for (Object id : (List<?>) parsed) {
+            if (!(id instanceof String)) {
+                throw new IllegalArgumentException("ids must be strings.");
+            }
+            ids.add((String) id);
+        }
+        return ids;
+    }
+
+    /*
+     * Parses within the limits; extraDepth is the nesting of session
+     * data inside the request, which does not count against max-depth.
+     */
+    private Object readJson(InputStream body, long contentLength, Charset charset, int extraDepth, int maxItems)
+        throws IOException
+    {
+        if (maxBytes > 0 && contentLength > maxBytes) {
+            throw tooManyBytes();
+        }
+        InputStream in = (maxBytes > 0) ? new LimitedInputStream(body) : body;
+        return SessionDataParser.parse(in, charset, (maxDepth > 0) ? maxDepth + extraDepth : 0,
+            maxArrayLength, maxItems);
+    }
+
+    /**
+     * @return session.service.limits.max-bytes, 0 if off
+     */
+    public long getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+    private TooLargeException tooManyBytes()
+    {
+        return new TooLargeException("session data can be at most " + maxBytes + " bytes.");
+    }
+
+    // counts what the parser reads, which is at most one buffer ahead of the data it parsed
+    private class LimitedInputStream extends FilterInputStream
+    {
+        private long count;
+
+        LimitedInputStream(InputStream in)
+        {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            int b = super.read();
+            if (b >= 0) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException
+        {
+            int n = super.read(buffer, offset, length);
+            if (n > 0) {
+                count(n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException
+        {
+            long skipped = super.skip(n);
+            count(skipped);
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported()
+        {
+            return false;
+        }
+
+        private void count(long n)
+        {
+            count += n;
+            if (count > maxBytes) {
+                throw tooManyBytes();
+            }
+        }
+    }
+
+    public static class TooLargeException extends RuntimeException
+    {
+        public TooLargeException(String message)
+        {
+            super(message);
+        }
+    }
+
+    /**
+     * A request had more items than it may have, see
+     * {@link #readBulk} and {@link #readIds}.
+     */
+    public static class TooManyItemsException extends TooLargeException
+    {
+        private final int maxItems;
+
+        public TooManyItemsException(int maxItems)
+        {
+            super("at most " + maxItems + " items are allowed per request.");
+            this.maxItems = maxItems;
+        }
+
+        public int getMaxItems()
+        {
+            return maxItems;
+        }
+    }
+}
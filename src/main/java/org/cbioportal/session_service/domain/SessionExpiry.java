@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.domain;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.data.mongodb.core.mapping.event.AbstractMongoEventListener;
+import org.springframework.data.mongodb.core.mapping.event.BeforeConvertEvent;
+import org.springframework.stereotype.Component;
+
+/**
+ * Decides when sessions expire; MongoDB's TTL monitor, or the
+ * {@link FileSessionRepository}, deletes a session once its expiresAt
+ * has passed.  A session created with a ttl expires
+ * that many seconds after its creation.  Other sessions expire
+ * session.service.expiry.idle-seconds after they were last accessed,
+ * or never if that is 0.  Sessions whose data has one of the
+ * session.service.expiry.pinned-paths, such as virtual cohorts with a
+ * userID, never expire.
+ *
+ * Accesses are only collected in memory by {@link #touch} and written
+ * every access-flush-seconds with one update for all sessions accessed
+ * since, so reading a session never waits for a write.  The last
+ * accesses are written when the application stops, before the
+ * repository is closed.
+ */
+@Component
+public class SessionExpiry extends AbstractMongoEventListener<Session> implements SmartLifecycle
+{
+    private static final Logger log = LoggerFactory.getLogger(SessionExpiry.class);
+    private static final int MAX_IDS_PER_UPDATE = 1000;
+
+    private final SessionRepository sessionRepository;
+    private final long idleMillis;
+    private final List<String> pinnedPaths = new ArrayList<String>();
+    private final long accessFlushSeconds;
+    private ScheduledExecutorService scheduler;
+    private volatile Set<String> accessed = newAccessedSet();
+
+    // the repository needs this to initialize new sessions
+    @Autowired
+    public SessionExpiry(@Lazy SessionRepository sessionRepository,
+        @Value("${session.service.expiry.idle-seconds:0}") long idleSeconds,
+        @Value("${session.service.expiry.pinned-paths:virtualCohort.userID}") String[] pinnedPaths,
+        @Value("${session.service.expiry.access-flush-seconds:60}") long accessFlushSeconds)
+    {
+        this.sessionRepository = sessionRepository;
+        this.idleMillis = TimeUnit.SECONDS.toMillis(idleSeconds);
+        for (String path : pinnedPaths) {
+            if (!path.trim().isEmpty()) {
+                this.pinnedPaths.add(path.trim());
+            }
+        }
+        this.accessFlushSeconds = accessFlushSeconds;
+    }
+
+    @Override
+    public synchronized void start()
+    {
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "session-access-flush");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run()
+            {
+                try {
+                    flushAccesses();
+                } catch (RuntimeException e) {
+                    log.warn("could not record session accesses", e);
+                }
+            }
+        }, accessFlushSeconds, accessFlushSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Sets the creation time and expiry of a new session, unless they
+     * are set already.
+     */
+    public void initialize(Session session)
+    {
+        if (session.getCreatedAt() != null) {
+            return;
+        }
+        Date now = new Date();
+        Date expiresAt = null;
+        if (isPinned(session.getData())) {
+            // never expires
+        } else if (session.getTtl() != null) {
+            expiresAt = new Date(now.getTime() + TimeUnit.SECONDS.toMillis(session.getTtl()));
+        } else if (idleMillis > 0) {
+            expiresAt = new Date(now.getTime() + idleMillis);
+        }
+        session.setCreated(now, expiresAt);
+    }
+
+    @Override
+    public void onBeforeConvert(BeforeConvertEvent<Session> event)
+    {
+        initialize(event.getSource());
+    }
+
+    /**
+     * When a session that expires when idle and was accessed at
+     * accessedAt expires, or null if idle sessions never expire.
+     */
+    public Date idleExpiry(Date accessedAt)
+    {
+        return (idleMillis > 0) ? new Date(accessedAt.getTime() + idleMillis) : null;
+    }
+
+    /**
+     * Paths inside session data that keep a session from expiring, e.g.
+     * virtualCohort.userID.
+     */
+    public List<String> getPinnedPaths()
+    {
+        return pinnedPaths;
+    }
+
+    public boolean isPinned(Object data)
+    {
+        for (String path : pinnedPaths) {
+            Object value = data;
+            for (String segment : path.split("\\.")) {
+                value = (value instanceof Map) ? ((Map<?, ?>) value).get(segment) : null;
+            }
+            if (value != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Records that the session with the given id was accessed.
+     */
+    public void touch(String id)
+    {
+        accessed.add(id);
+    }
+
+    /**
+     * Writes the accesses recorded since the last call: lastAccessedAt of
+     * every accessed session, and expiresAt of those that expire when
+     * idle.
+     */
+    public void flushAccesses()
+    {
+        Set<String> ids = accessed;
+        if (ids.isEmpty()) {
+            return;
+        }
+        accessed = newAccessedSet();
+        Date now = new Date();
+        List<String> batch = new ArrayList<String>(Math.min(ids.size(), MAX_IDS_PER_UPDATE));
+        for (String id : ids) {
+            batch.add(id);
+            if (batch.size() == MAX_IDS_PER_UPDATE) {
+                flushAccesses(batch, now);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            flushAccesses(batch, now);
+        }
+    }
+
+    private void flushAccesses(List<String> ids, Date now)
+    {
+        sessionRepository.recordAccesses(ids, now);
+    }
+
+    private static Set<String> newAccessedSet()
+    {
+        return Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    }
+
+    @Override
+    public synchronized void stop()
+    {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            scheduler = null;
+            flushAccesses();
+        }
+    }
+
+    @Override
+    public void stop(Runnable callback)
+    {
+        stop();
+        callback.run();
+    }
+
+    @Override
+    public synchronized boolean isRunning()
+    {
+        return scheduler != null;
+    }
+
+    @Override
+    public boolean isAutoStartup()
+    {
+        return true;
+    }
+
+    @Override
+    public int getPhase()
+    {
+        return 0;
+    }
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.domain;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+
+/**
+ * Imports sessions from newline delimited JSON, one {"id": ..., "data": ...}
+ * per line as GET /api/sessions/_export writes them.  Lines are read one
+ * at a time and written with {@link BulkOperation#restore(Session)} in
+ * bulk writes of session.service.import.batch-size sessions, so memory
+ * does not grow with the size of the import.  A session whose id already
+ * exists is left as it is, which makes an import idempotent: an
+ * interrupted import can be run again from the start, or from the last
+ * line it logged with skip.  A line that can not be imported (invalid
+ * JSON, no id, over session.service.limits.max-bytes) is counted as
+ * failed and does not stop the import.
+ */
+@Component
+public class SessionImporter
+{
+    private static final Logger log = LoggerFactory.getLogger(SessionImporter.class);
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int MAX_ERRORS = 10;
+
+    private final SessionRepository sessionRepository;
+    private final SessionDataReader sessionDataReader;
+    private final UserSessionIndex userSessionIndex;
+    private final int batchSize;
+    private final int logEvery;
+
+    @Autowired
+    public SessionImporter(SessionRepository sessionRepository, SessionDataReader sessionDataReader,
+        UserSessionIndex userSessionIndex,
+        @Value("${session.service.import.batch-size:1000}") int batchSize,
+        @Value("${session.service.import.log-every:100000}") int logEvery)
+    {
+        this.sessionRepository = sessionRepository;
+        this.sessionDataReader = sessionDataReader;
+        this.userSessionIndex = userSessionIndex;
+        this.batchSize = batchSize;
+        this.logEvery = logEvery;
+    }
+
+    /**
+     * @param in NDJSON, read to the end but not closed
+     * @param skip number of lines at the start of in to pass over
+     */
+    public Result importSessions(InputStream in, long skip) throws IOException
+    {
+        Import current = new Import(skip);
+        LineReader lines = new LineReader(new BufferedInputStream(in), sessionDataReader.getMaxBytes());
+        byte[] line;
+        while ((line = lines.next()) != null) {
+            current.line(line, lines.length());
+        }
+        current.flush();
+        Result result = current.result();
+        log.info("imported {} lines in {} ms, {} sessions/s: {} created, {} existing, {} failed",
+            result.lines, result.millis, result.sessionsPerSecond, result.created, result.existing, result.failed);
+        return result;
+    }
+
+    private class Import
+    {
+        private final long skip;
+        private final long start = System.nanoTime();
+        private final List<BulkOperation> operations = new ArrayList<BulkOperation>(batchSize);
+        private final List<Long> lineNumbers = new ArrayList<Long>(batchSize);
+        private final Result result = new Result();
+
+        Import(long skip)
+        {
+            this.skip = skip;
+        }
+
+        void line(byte[] line, int length) throws IOException
+        {
+            long lineNumber = ++result.lines;
+            if (lineNumber <= skip) {
+                return;
+            }
+            if (length < 0) {
+                failed(lineNumber, "lines can be at most " + sessionDataReader.getMaxBytes() + " bytes.");
+                return;
+            }
+            if (isBlank(line, length)) {
+                return;
+            }
+            Session session;
+            try {
+                session = parse(line, length);
+            } catch (RuntimeException e) {
+                failed(lineNumber, e.getMessage());
+                return;
+            }
+            operations.add(BulkOperation.restore(session));
+            lineNumbers.add(lineNumber);
+            if (operations.size() >= batchSize) {
+                flush();
+            }
+        }
+
+        void flush()
+        {
+            if (operations.isEmpty()) {
+                return;
+            }
+            sessionRepository.bulkWrite(operations, false);
+            for (int i = 0; i < operations.size(); i++) {
+                BulkOperation operation = operations.get(i);
+                if (operation.getStatus() == BulkOperation.Status.CREATED) {
+                    result.created++;
+                    userSessionIndex.put(operation.getId(), operation.getSession());
+                } else if (operation.getStatus() == BulkOperation.Status.EXISTING) {
+                    result.existing++;
+                } else {
+                    failed(lineNumbers.get(i), operation.getError());
+                }
+            }
+            long imported = result.created + result.existing;
+            if (logEvery > 0 && imported / logEvery != (imported - operations.size()) / logEvery) {
+                log.info("imported up to line {}, {} sessions/s", lineNumbers.get(lineNumbers.size() - 1),
+                    sessionsPerSecond(imported));
+            }
+            operations.clear();
+            lineNumbers.clear();
+        }
+
+        Result result()
+        {
+            result.millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            result.sessionsPerSecond = sessionsPerSecond(result.created + result.existing);
+            return result;
+        }
+
+        private long sessionsPerSecond(long sessions)
+        {
+            long nanos = Math.max(1, System.nanoTime() - start);
+            return sessions * TimeUnit.SECONDS.toNanos(1) / nanos;
+        }
+
+        private void failed(long lineNumber, String error)
+        {
+            result.failed++;
+            if (result.errors.size() < MAX_ERRORS) {
+                result.errors.add("line " + lineNumber + ": " + error);
+            }
+        }
+    }
+
+    private Session parse(byte[] line, int length) throws IOException
+    {
+        Object record = sessionDataReader.read(new ByteArrayInputStream(line, 0, length), length, UTF_8).getData();
+        if (!(record instanceof Map)) {
+            throw new IllegalArgumentException("expected {\"id\": ..., \"data\": ...}.");
+        }
+        Object id = ((Map<?, ?>) record).get("id");
+        if (!(id instanceof String) || ((String) id).isEmpty()) {
+            throw new IllegalArgumentException("a session must have an id.");
+        }
+        Session session = Session.withParsedData(((Map<?, ?>) record).get("data"));
+        session.setId((String) id);
+        return session;
+    }
+
+    private static boolean isBlank(byte[] line, int length)
+    {
+        for (int i = 0; i < length; i++) {
+            if (line[i] != ' ' && line[i] != '\t' && line[i] != '\r') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Reads lines into one reused buffer.  A line longer than maxBytes
+     * (if not 0) is passed over instead of buffered, and has length -1.
+     */
+    private static class LineReader
+    {
+        private final InputStream in;
+        private final long maxBytes;
+        private byte[] buffer = new byte[8192];
+        private int length;
+
+        LineReader(InputStream in, long maxBytes)
+        {
+            this.in = in;
+            this.maxBytes = maxBytes;
+        }
+
+        byte[] next() throws IOException
+        {
+            length = 0;
+            boolean tooLong = false;
+            int b = in.read();
+            if (b == -1) {
+                return null;
+            }
+            while (b != -1 && b != '\n') {
+                if (!tooLong) {
+                    if (maxBytes > 0 && length == maxBytes) {
+                        tooLong = true;
+                    } else {
+                        if (length == buffer.length) {
+                            buffer = Arrays.copyOf(buffer, (int) Math.min(2L * length, Integer.MAX_VALUE - 8));
+                        }
+                        buffer[length++] = (byte) b;
+                    }
+                }
+                b = in.read();
+            }
+            if (tooLong) {
+                length = -1;
+            }
+            return buffer;
+        }
+
+        int length()
+        {
+            return length;
+        }
+    }
+
+    /**
+     * What an import did, and how fast.
+     */
+    @JsonPropertyOrder({"lines", "created", "existing", "failed", "millis", "sessionsPerSecond", "errors"})
+    public static class Result
+    {
+        private long lines;
+        private long created;
+        private long existing;
+        private long failed;
+        private long millis;
+        private long sessionsPerSecond;
+        private final List<String> errors = new ArrayList<String>();
+
+        /**
+         * Lines read, including skipped and blank lines.
+         */
+        public long getLines()
+        {
+            return lines;
+        }
+
+        public long getCreated()
+        {
+            return created;
+        }
+
+        /**
+         * Sessions that were not written because their id already exists.
+         */
+        public long getExisting()
+        {
+            return existing;
+        }
+
+        public long getFailed()
+        {
+            return failed;
+        }
+
+        public long getMillis()
+        {
+            return millis;
+        }
+
+        public long getSessionsPerSecond()
+        {
+            return sessionsPerSecond;
+        }
+
+        /**
+         * The first errors, with their line numbers.
+         */
+        public List<String> getErrors()
+        {
+            return errors;
+        }
+    }
+}
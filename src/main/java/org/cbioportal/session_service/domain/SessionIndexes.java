@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.domain;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.health.AbstractHealthIndicator;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.CollectionCallback;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Component;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+
+/**
+ * Creates the indexes the repository queries need when the application 
+ * starts, data.virtualCohort.userID and the paths in
+ * session.service.indexes, and checks with explain() that none of those queries would
+ * scan the whole collection.  Depending on session.service.query-plan-check
+ * a collection scan fails startup ("fail"), is logged ("warn"), or the
+ * check is skipped ("off").  The same check is reported by /health.
+ */
+@Component
+@Profile("!embedded")
+public class SessionIndexes extends AbstractHealthIndicator
+{
+    private static final Logger log = LoggerFactory.getLogger(SessionIndexes.class);
+    private static final String USER_ID_PATH = "virtualCohort.userID";
+
+    private final MongoOperations mongoOperations;
+    private final Set<String> dataIndexes;
+    private final String queryPlanCheck;
+
+    @Autowired
+    public SessionIndexes(MongoOperations mongoOperations,
+        @Value("${session.service.indexes:virtualCohort.userID}") String[] dataIndexes,
+        @Value("${session.service.query-plan-check:warn}") String queryPlanCheck)
+    {
+        this.mongoOperations = mongoOperations;
+        this.dataIndexes = new LinkedHashSet<String>();
+        // findVCByUserID is always allowed, whatever the configured indexes
+        this.dataIndexes.add(USER_ID_PATH);
+        for (String path : dataIndexes) {
+            if (!path.trim().isEmpty()) {
+                this.dataIndexes.add(path.trim());
+            }
+        }
+        this.queryPlanCheck = queryPlanCheck;
+    }
+
+    /**
+     * The queries the repository runs, with placeholder values, keyed by
+     * the repository method that runs them.  find gets one for each
+     * path it may filter on.
+     */
+    Map<String, Query> queries()
+    {
+        Map<String, Query> queries = new LinkedHashMap<String, Query>();
+        queries.put("findVCByUserID", new Query(where("data." + USER_ID_PATH).is("")));
+        queries.put("insertIfAbsent", new Query(where("checksum").is("")));
+        for (String path : dataIndexes) {
+            queries.put("find(data." + path + ")", new Query(where("data." + path).is("")));
+        }
+        return queries;
+    }
+
+    @PostConstruct
+    public void ensureIndexes()
+    {
+        for (String path : dataIndexes) {
+            mongoOperations.indexOps(Session.class).ensureIndex(new Index("data." + path, Sort.Direction.ASC));
+        }
+        if (queryPlanCheck.equals("off")) {
+            return;
+        }
+        for (Map.Entry<String, String> plan : checkQueryPlans().entrySet()) {
+            if (plan.getValue().equals("COLLSCAN")) {
+                String message = plan.getKey() + " would scan the whole session collection, "
+                    + "add an index for it to session.service.indexes";
+                if (queryPlanCheck.equals("fail")) {
+                    throw new IllegalStateException(message);
+                }
+                log.warn(message);
+            }
+        }
+    }
+
+    @Override
+    protected void doHealthCheck(Health.Builder builder) throws Exception
+    {
+        Map<String, String> plans = checkQueryPlans();
+        builder.up();
+        for (Map.Entry<String, String> plan : plans.entrySet()) {
+            builder.withDetail(plan.getKey(), plan.getValue());
+            if (plan.getValue().equals("COLLSCAN")) {
+                builder.outOfService();
+            }
+        }
+    }
+
+    /**
+     * @return for each query "IXSCAN", "COLLSCAN", or "UNKNOWN" if the
+     *  server could not explain it
+     */
+    Map<String, String> checkQueryPlans()
+    {
+        Map<String, String> plans = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, Query> query : queries().entrySet()) {
+            String plan;
+            try {
+                plan = isCollectionScan(explain(query.getValue())) ? "COLLSCAN" : "IXSCAN";
+            } catch (RuntimeException e) {
+                log.info("could not explain " + query.getKey() + ": " + e.getMessage());
+                plan = "UNKNOWN";
+            }
+            plans.put(query.getKey(), plan);
+        }
+        return plans;
+    }
+
+    private DBObject explain(final Query query)
+    {
+        return mongoOperations.execute(Session.class, new CollectionCallback<DBObject>() {
+            @Override
+            public DBObject doInCollection(DBCollection collection)
+            {
+                return collection.find(query.getQueryObject()).explain();
+            }
+        });
+    }
+
+    /*
+     * MongoDB 2.x reports a "cursor" of BasicCursor for collection scans,
+     * 3.x and later a COLLSCAN stage somewhere in the winning plan.
+     */
+    static boolean isCollectionScan(DBObject explain)
+    {
+        Object cursor = explain.get("cursor");
+        if (cursor != null) {
+            return cursor.toString().startsWith("BasicCursor");
+        }
+        DBObject queryPlanner = (DBObject) explain.get("queryPlanner");
+        return queryPlanner != null && hasCollectionScan((DBObject) queryPlanner.get("winningPlan"));
+    }
+
+    private static boolean hasCollectionScan(DBObject stage)
+    {
+        if (stage == null) {
+            return false;
+        }
+        if ("COLLSCAN".equals(stage.get("stage"))) {
+            return true;
+        }
+        if (hasCollectionScan((DBObject) stage.get("inputStage"))) {
+            return true;
+        }
+        Object inputStages = stage.get("inputStages");
+        if (inputStages instanceof List) {
+            for (Object inputStage : (List<?>) inputStages) {
+                if (hasCollectionScan((DBObject) inputStage)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.domain;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import org.bson.types.ObjectId;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Writes a session stored as BSON (see {@link SessionRepository#findRawById})
+ * as JSON, reading the BSON bytes directly without decoding them into
+ * DBObjects first.  The output is the same as Jackson's serialization of
+ * the mapped {@link Session}: {"id": ..., "data": ...}.  For a session
+ * stored compressed (see {@link SessionCompressor}) the decompressed JSON
+ * is written as it is.
+ */
+public final class SessionJsonWriter
+{
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private SessionJsonWriter()
+    {
+    }
+
+    /**
+     * @param bson a complete BSON session document
+     * @param generator must write to an OutputStream, strings are copied
+     *  to it as UTF-8 bytes without decoding
+     */
+    public static void write(byte[] bson, JsonGenerator generator) throws IOException
+    {
+        new Reader(bson, generator).writeSession();
+    }
+
+    /*
+     * See http://bsonspec.org/spec.html for the format.
+     */
+    private static class Reader
+    {
+        private final byte[] bson;
+        private final JsonGenerator generator;
+        private int position;
+
+        Reader(byte[] bson, JsonGenerator generator)
+        {
+            this.bson = bson;
+            this.generator = generator;
+        }
+
+        void writeSession() throws IOException
+        {
+            byte[] compressed = findCompressed();
+            if (compressed != null) {
+                generator.writeRawValue(new String(SessionCompressor.gunzip(compressed), UTF_8));
+                return;
+            }
+            int end = readInt32() - 1; // position of the document's trailing 0
+            boolean wroteData = false;
+            generator.writeStartObject();
+            while (position < end) {
+                byte type = bson[position++];
+                int nameStart = position;
+                int nameLength = skipCString();
+                if (isName(nameStart, nameLength, "_id")) {
+                    generator.writeFieldName("id");
+                    writeValue(type);
+                } else if (isName(nameStart, nameLength, "data")) {
+                    generator.writeFieldName("data");
+                    writeValue(type);
+                    wroteData = true;
+                } else {
+                    skipValue(type);
+                }
+            }
+            if (!wroteData) {
+                generator.writeNullField("data");
+            }
+            generator.writeEndObject();
+        }
+
+        private byte[] findCompressed() throws IOException
+        {
+            int end = readInt32() - 1;
+            try {
+                while (position < end) {
+                    byte type = bson[position++];
+                    int nameStart = position;
+                    int nameLength = skipCString();
+                    if (type == 0x05 && isName(nameStart, nameLength, "compressed")) {
+                        int size = readInt32();
+                        position++; // subtype
+                        byte[] compressed = new byte[size];
+                        System.arraycopy(bson, position, compressed, 0, size);
+                        return compressed;
+                    }
+                    skipValue(type);
+                }
+                return null;
+            } finally {
+                position = 0;
+            }
+        }
+
+        private void writeDocument(boolean array) throws IOException
+        {
+            int end = position + readInt32() - 1;
+            if (array) {
+                generator.writeStartArray();
+            } else {
+                generator.writeStartObject();
+            }
+            while (position < end) {
+                byte type = bson[position++];
+                int nameStart = position;
+                int nameLength = skipCString();
+                if (!array) {
+                    generator.writeFieldName(new String(bson, nameStart, nameLength, UTF_8));
+                }
+                writeValue(type);
+            }
+            position++; // trailing 0
+            if (array) {
+                generator.writeEndArray();
+            } else {
+                generator.writeEndObject();
+            }
+        }
+
+        private void writeValue(byte type) throws IOException
+        {
+            switch (type) {
+                case 0x01: // double
+                    generator.writeNumber(Double.longBitsToDouble(readInt64()));
+                    break;
+                case 0x02: // string
+                case 0x0D: // JavaScript code
+                case 0x0E: // symbol
+                    int length = readInt32() - 1;
+                    generator.writeUTF8String(bson, position, length);
+                    position += length + 1;
+                    break;
+                case 0x03: // document
+                    writeDocument(false);
+                    break;
+                case 0x04: // array
+                    writeDocument(true);
+                    break;
+                case 0x05: // binary
+                    int size = readInt32();
+                    position++; // subtype
+                    generator.writeBinary(bson, position, size);
+                    position += size;
+                    break;
+                case 0x06: // undefined
+                case 0x0A: // null
+                case (byte) 0xFF: // min key
+                case 0x7F: // max key
+                    generator.writeNull();
+                    break;
+                case 0x07: // ObjectId
+                    byte[] id = new byte[12];
+                    System.arraycopy(bson, position, id, 0, 12);
+                    position += 12;
+                    generator.writeString(new ObjectId(id).toHexString());
+                    break;
+                case 0x08: // boolean
+                    generator.writeBoolean(bson[position++] != 0);
+                    break;
+                case 0x09: // UTC datetime, milliseconds as Jackson writes Dates
+                case 0x11: // timestamp
+                case 0x12: // int64
+                    generator.writeNumber(readInt64());
+                    break;
+                case 0x10: // int32
+                    generator.writeNumber(readInt32());
+                    break;
+                default:
+                    // regular expression and code with scope can not come from JSON
+                    throw new IOException("unsupported BSON type " + type + " at " + (position - 1));
+            }
+        }
+
+        private void skipValue(byte type) throws IOException
+        {
+            int start = position;
+            switch (type) {
+                case 0x01:
+                case 0x09:
+                case 0x11:
+                case 0x12:
+                    position += 8;
+                    break;
+                case 0x02:
+                case 0x0D:
+                case 0x0E:
+                    position = start + 4 + readInt32();
+                    break;
+                case 0x03:
+                case 0x04:
+                case 0x0F: // code with scope
+                    position = start + readInt32();
+                    break;
+                case 0x05:
+                    position = start + 4 + 1 + readInt32();
+                    break;
+                case 0x06:
+                case 0x0A:
+                case (byte) 0xFF:
+                case 0x7F:
+                    break;
+                case 0x07:
+                    position += 12;
+                    break;
+                case 0x08:
+                    position++;
+                    break;
+                case 0x0B: // regular expression
+                    skipCString();
+                    skipCString();
+                    break;
+                case 0x10:
+                    position += 4;
+                    break;
+                default:
+                    throw new IOException("unsupported BSON type " + type + " at " + (position - 1));
+            }
+        }
+
+        private boolean isName(int start, int length, String name)
+        {
+            if (length != name.length()) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (bson[start + i] != name.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /*
+         * Returns the length of the string, not counting the terminating 0.
+         */
+        private int skipCString()
+        {
+            int start = position;
+            while (bson[position] != 0) {
+                position++;
+            }
+            return position++ - start;
+        }
+
+        private int readInt32()
+        {
+            int value = (bson[position] & 0xff)
+                | (bson[position + 1] & 0xff) << 8
+                | (bson[position + 2] & 0xff) << 16
+                | (bson[position + 3] & 0xff) << 24;
+            position += 4;
+            return value;
+        }
+
+        private long readInt64()
+        {
+            long low = readInt32() & 0xffffffffL;
+            long high = readInt32() & 0xffffffffL;
+            return high << 32 | low;
+        }
+    }
+}
@@ -0,0 +1,390 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.domain;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An append-only file of session records, the storage of
+ * {@link FileSessionRepository}.  After a short header each record is
+ *
+ *   int length | int CRC32 | byte type | BSON document
+ *
+ * where length and the CRC cover the type and the document.  Records are
+ * never changed once written, so a crash can only leave the last record
+ * partly written; {@link #replay} cuts such a record off when the log is
+ * opened again.  A bad record with valid records after it is not the
+ * result of a crash, and the log is then left as it is for an operator
+ * to look at.  Records that are no longer needed stay in the file until
+ * {@link #compact} copies the ones still needed into a new file and
+ * renames it over the old one.
+ *
+ * Not thread-safe, except that {@link #read} may be called concurrently.
+ */
+final class SessionLog implements Closeable
+{
+    /** A whole session document. */
+    static final byte PUT = 1;
+    /** The _id of a deleted session. */
+    static final byte DELETE = 2;
+    /** The _id, lastAccessedAt and expiresAt of a session. */
+    static final byte ACCESS = 3;
+
+    static final int RECORD_HEADER_BYTES = 9;
+
+    private static final Logger log = LoggerFactory.getLogger(SessionLog.class);
+    private static final byte[] MAGIC = "SESSLOG1".getBytes(Charset.forName("US-ASCII"));
+
+    /**
+     * Receives the records of the log in the order they were written.
+     */
+    interface Visitor
+    {
+        void record(byte type, byte[] document, long offset, int length);
+    }
+
+    private final File file;
+    private final boolean sync;
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+    private long size;
+
+    /**
+     * Opens the log in the given file, creating it if necessary.  Unless
+     * sync is true, records are only written to the operating system, and
+     * a crash of the machine, but not of the process, can lose the last
+     * ones.
+     */
+    SessionLog(File file, boolean sync) throws IOException
+    {
+        this.file = file;
+        this.sync = sync;
+        // left over if the process died while compacting, the log itself is intact
+        Files.deleteIfExists(compactedFile().toPath());
+        open();
+        if (size < MAGIC.length) {
+            // new, or the process died while creating it
+            channel.truncate(0);
+            channel.write(ByteBuffer.wrap(MAGIC), 0);
+            size = MAGIC.length;
+            force();
+        }
+    }
+
+    private void open() throws IOException
+    {
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        channel = randomAccessFile.getChannel();
+        size = channel.size();
+    }
+
+    private File compactedFile()
+    {
+        return new File(file.getPath() + ".compacting");
+    }
+
+    /**
+     * Reads all records from the start of the log.  A record at the end
+     * of the log that was only partly written is removed from the file.
+     * Call this once, before appending.
+     *
+     * @throws IOException if a record in the middle of the log is
+     *         corrupt, without changing the file
+     */
+    void replay(Visitor visitor) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        long offset = MAGIC.length;
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException(file + " is not a session log");
+            }
+            while (offset < size) {
+                byte[] record = readRecord(in, offset, size - offset);
+                if (record == null) {
+                    log.warn("ignoring " + (size - offset) + " bytes of incomplete or corrupt records at the end of "
+                        + file + ", offset " + offset);
+                    channel.truncate(offset);
+                    size = offset;
+                    force();
+                    break;
+                }
+                int length = RECORD_HEADER_BYTES + record.length - 1;
+                visitor.record(record[0], Arrays.copyOfRange(record, 1, record.length), offset, length);
+                offset += length;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /*
+     * Returns the type followed by the document, or null if the record is
+     * the last one and was torn: its header is incomplete, it runs past
+     * the end of the log, or it ends there and fails its CRC.  The file
+     * system may also have left zeros where the last record should be.
+     */
+    private byte[] readRecord(DataInputStream in, long offset, long remaining) throws IOException
+    {
+        if (remaining < RECORD_HEADER_BYTES) {
+            return null;
+        }
+        int length = in.readInt();
+        int crc = in.readInt();
+        if (length > remaining - RECORD_HEADER_BYTES + 1) {
+            return null;
+        }
+        if (length < 1) {
+            if (length == 0 && crc == 0 && isZeros(in, remaining - 8)) {
+                return null;
+            }
+            throw corrupt(offset);
+        }
+        byte[] record = new byte[length];
+        in.readFully(record);
+        if (crc(record, 0, length) == crc) {
+            return record;
+        }
+        if (length == remaining - RECORD_HEADER_BYTES + 1) {
+            return null;
+        }
+        throw corrupt(offset);
+    }
+
+    private static boolean isZeros(DataInputStream in, long count) throws IOException
+    {
+        for (long i = 0; i < count; i++) {
+            if (in.readByte() != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private IOException corrupt(long offset)
+    {
+        return new IOException("corrupt record at offset " + offset + " of " + file
+            + ", followed by more records; restore the file from a backup or remove the record");
+    }
+
+    private static int crc(byte[] bytes, int offset, int length)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Appends a record, which is durable after the next {@link #sync}.
+     *
+     * @return the offset of the record
+     */
+    long append(byte type, byte[] document) throws IOException
+    {
+        long offset = size;
+        size += write(channel, offset, type, document);
+        return offset;
+    }
+
+    private static int write(FileChannel channel, long offset, byte type, byte[] document) throws IOException
+    {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_BYTES + document.length);
+        record.putInt(document.length + 1).putInt(0).put(type).put(document);
+        record.putInt(4, crc(record.array(), 8, document.length + 1));
+        record.flip();
+        long position = offset;
+        while (record.hasRemaining()) {
+            position += channel.write(record, position);
+        }
+        return record.limit();
+    }
+
+    /**
+     * Makes the records appended so far durable, if this log syncs.
+     */
+    void sync() throws IOException
+    {
+        if (sync) {
+            force();
+        }
+    }
+
+    private void force() throws IOException
+    {
+        channel.force(false);
+    }
+
+    /*
+     * Makes a rename in the directory of the log durable.  Without it a
+     * crash of the machine right after compacting could leave the old log
+     * in place, or no log at all.  Some platforms (Windows) can not open
+     * directories; there the rename is durable once the OS writes it.
+     */
+    private void forceDirectory() throws IOException
+    {
+        FileChannel directory;
+        try {
+            directory = FileChannel.open(file.getAbsoluteFile().getParentFile().toPath(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            log.debug("can not sync directory of " + file, e);
+            return;
+        }
+        try {
+            directory.force(true);
+        } finally {
+            directory.close();
+        }
+    }
+
+    /**
+     * @return the document of the record at offset
+     */
+    byte[] read(long offset, int length) throws IOException
+    {
+        ByteBuffer record = ByteBuffer.allocate(length);
+        while (record.hasRemaining()) {
+            if (channel.read(record, offset + record.position()) < 0) {
+                throw new EOFException("no session record at offset " + offset + " of " + file);
+            }
+        }
+        return Arrays.copyOfRange(record.array(), RECORD_HEADER_BYTES, length);
+    }
+
+    /**
+     * @return bytes in the log, including the header
+     */
+    long size()
+    {
+        return size;
+    }
+
+    /**
+     * @return bytes of the header, the size of an empty log
+     */
+    static long headerSize()
+    {
+        return MAGIC.length;
+    }
+
+    /**
+     * Starts writing a new log.  Nothing changes until
+     * {@link Compaction#commit} replaces this log by the new one.
+     */
+    Compaction compact() throws IOException
+    {
+        return new Compaction();
+    }
+
+    /**
+     * A new log, written next to the current one.
+     */
+    final class Compaction implements Closeable
+    {
+        private final RandomAccessFile compacted;
+        private final FileChannel compactedChannel;
+        private long compactedSize;
+
+        private Compaction() throws IOException
+        {
+            compacted = new RandomAccessFile(compactedFile(), "rw");
+            compactedChannel = compacted.getChannel();
+            compactedChannel.truncate(0);
+            compactedChannel.write(ByteBuffer.wrap(MAGIC), 0);
+            compactedSize = MAGIC.length;
+        }
+
+        /**
+         * @return the offset of the record in the new log
+         */
+        long append(byte type, byte[] document) throws IOException
+        {
+            long offset = compactedSize;
+            compactedSize += write(compactedChannel, offset, type, document);
+            return offset;
+        }
+
+        /**
+         * Replaces the log by the new one.  Offsets returned by
+         * {@link #append} are valid afterwards, all others are not.
+         */
+        void commit() throws IOException
+        {
+            compactedChannel.force(false);
+            compacted.close();
+            Files.move(compactedFile().toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            forceDirectory();
+            randomAccessFile.close();
+            open();
+        }
+
+        /**
+         * Discards the new log, unless it was committed.
+         */
+        @Override
+        public void close() throws IOException
+        {
+            if (compactedChannel.isOpen()) {
+                compacted.close();
+                Files.deleteIfExists(compactedFile().toPath());
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        force();
+        randomAccessFile.close();
+    }
+}
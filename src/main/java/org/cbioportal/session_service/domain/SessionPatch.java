@@ -0,0 +1,447 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.domain;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.springframework.data.mongodb.core.query.Update;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+
+/**
+ * A change to session data, either an RFC 6902 JSON Patch or an RFC 7396
+ * JSON Merge Patch.  {@link #toUpdate} translates the patch into MongoDB
+ * update operators on data.* where their meaning is the same, so that
+ * MongoDB changes the document in place; otherwise the patch is applied
+ * to the whole data by {@link #apply}.
+ */
+public class SessionPatch
+{
+    private final boolean merge;
+    private final Object patch;
+
+    private SessionPatch(boolean merge, Object patch)
+    {
+        this.merge = merge;
+        this.patch = patch;
+    }
+
+    /**
+     * Parses a JSON Patch like
+     * <code>[{"op": "replace", "path": "/virtualCohort/name", "value": "new name"}]</code>.
+     *
+     * @throws IllegalArgumentException if the JSON is valid but is not
+     *         an array of operations
+     */
+    public static SessionPatch jsonPatch(String json)
+    {
+        return jsonPatch(SessionDataParser.parse(json));
+    }
+
+    static SessionPatch jsonPatch(Object parsed)
+    {
+        if (!(parsed instanceof List)) {
+            throw new IllegalArgumentException("expected an array of operations.");
+        }
+        List<Operation> operations = new ArrayList<Operation>();
+        for (Object item : (List<?>) parsed) {
+            operations.add(Operation.parse(item, operations.size()));
+        }
+        return new SessionPatch(false, operations);
+    }
+
+    /**
+     * Parses a JSON Merge Patch, the JSON to merge into data, with null
+     * for members to remove.
+     */
+    public static SessionPatch mergePatch(String json)
+    {
+        return mergePatch(SessionDataParser.parse(json));
+    }
+
+    static SessionPatch mergePatch(Object parsed)
+    {
+        return new SessionPatch(true, parsed);
+    }
+
+    /**
+     * Returns the operators that make this change in MongoDB, adding the
+     * data.* paths that must exist for them to mean the same as the patch
+     * to mustExist, or null if the patch has to be applied by
+     * {@link #apply}.
+     */
+    Update toUpdate(Set<String> mustExist)
+    {
+        Update update = new Update();
+        List<String> paths = new ArrayList<String>();
+        if (merge) {
+            if (!(patch instanceof Map)) {
+                update.set("data", patch);
+                return update;
+            }
+            if (!mergeToUpdate((Map<?, ?>) patch, "data", update, paths)) {
+                return null;
+            }
+        } else {
+            @SuppressWarnings("unchecked")
+            List<Operation> operations = (List<Operation>) patch;
+            for (Operation operation : operations) {
+                if (!operation.toUpdate(update, paths, mustExist)) {
+                    return null;
+                }
+            }
+        }
+        // MongoDB rejects an update that changes a path and one inside it
+        for (int i = 0; i < paths.size(); i++) {
+            for (int j = 0; j < paths.size(); j++) {
+                if (i != j && (paths.get(i).equals(paths.get(j)) || paths.get(j).startsWith(paths.get(i) + "."))) {
+                    return null;
+                }
+            }
+        }
+        return update;
+    }
+
+    private static boolean mergeToUpdate(Map<?, ?> patch, String prefix, Update update, List<String> paths)
+    {
+        for (Map.Entry<?, ?> member : patch.entrySet()) {
+            String name = String.valueOf(member.getKey());
+            // numeric names would address array elements in MongoDB
+            if (!isPlainName(name) || isIndex(name)) {
+                return false;
+            }
+            String path = prefix + "." + name;
+            Object value = member.getValue();
+            if (value == null) {
+                update.unset(path);
+                paths.add(path);
+            } else if (value instanceof Map) {
+                // {} keeps an existing object but replaces anything else
+                if (((Map<?, ?>) value).isEmpty() || !mergeToUpdate((Map<?, ?>) value, path, update, paths)) {
+                    return false;
+                }
+            } else {
+                update.set(path, value);
+                paths.add(path);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns data with this patch applied.  data may be changed.
+     *
+     * @throws ConflictException if the patch does not fit data, e.g. a
+     *         path does not exist or a test fails
+     */
+    Object apply(Object data)
+    {
+        if (merge) {
+            return mergePatch(data, patch);
+        }
+        @SuppressWarnings("unchecked")
+        List<Operation> operations = (List<Operation>) patch;
+        for (Operation operation : operations) {
+            data = operation.apply(data);
+        }
+        return data;
+    }
+
+    private static Object mergePatch(Object target, Object patch)
+    {
+        if (!(patch instanceof Map)) {
+            return patch;
+        }
+        @SuppressWarnings("unchecked")
+        Map<String, Object> result = (target instanceof Map) ? (Map<String, Object>) target : new BasicDBObject();
+        for (Map.Entry<?, ?> member : ((Map<?, ?>) patch).entrySet()) {
+            String name = String.valueOf(member.getKey());
+            if (member.getValue() == null) {
+                result.remove(name);
+            } else {
+                result.put(name, mergePatch(result.get(name), member.getValue()));
+            }
+        }
+        return result;
+    }
+
+    private static boolean isPlainName(String name)
+    {
+        return !name.isEmpty() && name.indexOf('.') < 0 && !name.startsWith("$");
+    }
+
+    private static boolean isIndex(String name)
+    {
+        return name.matches("0|[1-9][0-9]*");
+    }
+
+    /**
+     * The patch does not fit the session it is applied to.
+     */
+    public static class ConflictException extends RuntimeException
+    {
+        ConflictException(String message)
+        {
+            super(message);
+        }
+    }
+
+    private static class Operation
+    {
+        private final String op;
+        private final List<String> path;
+        private final List<String> from;
+        private final Object value;
+
+        private Operation(String op, List<String> path, List<String> from, Object value)
+        {
+            this.op = op;
+            this.path = path;
+            this.from = from;
+            this.value = value;
+        }
+
+        static Operation parse(Object item, int index)
+        {
+            if (!(item instanceof Map) || !(((Map<?, ?>) item).get("op") instanceof String)
+                || !(((Map<?, ?>) item).get("path") instanceof String)) {
+                throw new IllegalArgumentException("operation " + index
+                    + " must be an object with 'op' and 'path' strings.");
+            }
+            Map<?, ?> operation = (Map<?, ?>) item;
+            String op = (String) operation.get("op");
+            List<String> path = parsePointer((String) operation.get("path"), index);
+            List<String> from = null;
+            if (op.equals("move") || op.equals("copy")) {
+                if (!(operation.get("from") instanceof String)) {
+                    throw new IllegalArgumentException("operation " + index + " must have a 'from' string.");
+                }
+                from = parsePointer((String) operation.get("from"), index);
+            } else if (op.equals("add") || op.equals("replace") || op.equals("test")) {
+                if (!operation.containsKey("value")) {
+                    throw new IllegalArgumentException("operation " + index + " must have a 'value'.");
+                }
+            } else if (!op.equals("remove")) {
+                throw new IllegalArgumentException("operation " + index + " has unknown op '" + op + "'.");
+            }
+            return new Operation(op, path, from, operation.get("value"));
+        }
+
+        // "/a/b~1c" -> [a, b/c]
+        private static List<String> parsePointer(String pointer, int index)
+        {
+            if (pointer.isEmpty()) {
+                return Collections.emptyList();
+            }
+            if (!pointer.startsWith("/")) {
+                throw new IllegalArgumentException("operation " + index + " has invalid path '" + pointer + "'.");
+            }
+            List<String> segments = new ArrayList<String>();
+            for (String segment : pointer.substring(1).split("/", -1)) {
+                segments.add(segment.replace("~1", "/").replace("~0", "~"));
+            }
+            return segments;
+        }
+
+        boolean toUpdate(Update update, List<String> paths, Set<String> mustExist)
+        {
+            StringBuilder key = new StringBuilder("data");
+            for (int i = 0; i < path.size(); i++) {
+                String segment = path.get(i);
+                boolean last = (i == path.size() - 1);
+                if (last && op.equals("add") && segment.equals("-") && i > 0) {
+                    // append to an existing array
+                    mustExist.add(key.toString());
+                    update.push(key.toString(), value);
+                    paths.add(key.toString());
+                    return true;
+                }
+                // add and remove shift array elements, which $set and $unset do not
+                if (!isPlainName(segment) || segment.equals("-")
+                    || (last && isIndex(segment) && !op.equals("replace"))) {
+                    return false;
+                }
+                key.append('.').append(segment);
+            }
+            String parent = key.substring(0, Math.max(key.lastIndexOf("."), "data".length()));
+            if (op.equals("add")) {
+                if (path.isEmpty()) {
+                    update.set("data", value);
+                } else {
+                    if (!parent.equals("data")) {
+                        mustExist.add(parent);
+                    }
+                    update.set(key.toString(), value);
+                }
+            } else if (op.equals("replace") && !path.isEmpty()) {
+                mustExist.add(key.toString());
+                update.set(key.toString(), value);
+            } else if (op.equals("remove") && !path.isEmpty()) {
+                mustExist.add(key.toString());
+                update.unset(key.toString());
+            } else {
+                return false; // test, move, copy
+            }
+            paths.add(key.toString());
+            return true;
+        }
+
+        Object apply(Object data)
+        {
+            if (op.equals("test")) {
+                Object current = get(data, path);
+                if (!SessionChecksum.compute(current).equals(SessionChecksum.compute(value))) {
+                    throw new ConflictException("test of '" + pointer(path) + "' failed.");
+                }
+                return data;
+            }
+            if (op.equals("remove")) {
+                return remove(data, path);
+            }
+            if (op.equals("replace")) {
+                if (path.isEmpty()) {
+                    return copy(value);
+                }
+                remove(data, path);
+                return add(data, path, value);
+            }
+            if (op.equals("move")) {
+                Object moved = get(data, from);
+                if (pointer(path).startsWith(pointer(from) + "/")) {
+                    throw new ConflictException("can not move '" + pointer(from) + "' into itself.");
+                }
+                data = remove(data, from);
+                return add(data, path, moved);
+            }
+            if (op.equals("copy")) {
+                return add(data, path, copy(get(data, from)));
+            }
+            return add(data, path, copy(value));
+        }
+
+        private static Object get(Object data, List<String> path)
+        {
+            Object value = data;
+            for (int i = 0; i < path.size(); i++) {
+                value = child(value, path.get(i), path.subList(0, i + 1));
+            }
+            return value;
+        }
+
+        private static Object child(Object container, String segment, List<String> path)
+        {
+            if (container instanceof Map && ((Map<?, ?>) container).containsKey(segment)) {
+                return ((Map<?, ?>) container).get(segment);
+            }
+            if (container instanceof List && isIndex(segment)
+                && Integer.parseInt(segment) < ((List<?>) container).size()) {
+                return ((List<?>) container).get(Integer.parseInt(segment));
+            }
+            throw new ConflictException("path '" + pointer(path) + "' does not exist.");
+        }
+
+        @SuppressWarnings("unchecked")
+        private static Object add(Object data, List<String> path, Object value)
+        {
+            if (path.isEmpty()) {
+                return value;
+            }
+            Object parent = get(data, path.subList(0, path.size() - 1));
+            String name = path.get(path.size() - 1);
+            if (parent instanceof Map) {
+                ((Map<String, Object>) parent).put(name, value);
+            } else if (parent instanceof List) {
+                List<Object> list = (List<Object>) parent;
+                if (name.equals("-")) {
+                    list.add(value);
+                } else if (isIndex(name) && Integer.parseInt(name) <= list.size()) {
+                    list.add(Integer.parseInt(name), value);
+                } else {
+                    throw new ConflictException("path '" + pointer(path) + "' is not a valid array index.");
+                }
+            } else {
+                throw new ConflictException("path '" + pointer(path.subList(0, path.size() - 1)) + "' is not an object or array.");
+            }
+            return data;
+        }
+
+        private static Object remove(Object data, List<String> path)
+        {
+            if (path.isEmpty()) {
+                throw new ConflictException("the whole data can not be removed.");
+            }
+            Object parent = get(data, path.subList(0, path.size() - 1));
+            String name = path.get(path.size() - 1);
+            child(parent, name, path); // must exist
+            if (parent instanceof Map) {
+                ((Map<?, ?>) parent).remove(name);
+            } else {
+                ((List<?>) parent).remove(Integer.parseInt(name));
+            }
+            return data;
+        }
+
+        private static Object copy(Object value)
+        {
+            if (value instanceof Map) {
+                BasicDBObject copy = new BasicDBObject();
+                for (Map.Entry<?, ?> member : ((Map<?, ?>) value).entrySet()) {
+                    copy.put(String.valueOf(member.getKey()), copy(member.getValue()));
+                }
+                return copy;
+            }
+            if (value instanceof List) {
+                BasicDBList copy = new BasicDBList();
+                for (Object element : (List<?>) value) {
+                    copy.add(copy(element));
+                }
+                return copy;
+            }
+            return value;
+        }
+
+        private static String pointer(List<String> path)
+        {
+            StringBuilder pointer = new StringBuilder();
+            for (String segment : path) {
+                pointer.append('/').append(segment.replace("~", "~0").replace("/", "~1"));
+            }
+            return pointer.toString();
+        }
+    }
+}
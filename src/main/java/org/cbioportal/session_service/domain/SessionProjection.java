@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.domain;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+
+/**
+ * Copies the parts of session data at given paths, the way a MongoDB
+ * projection such as { "data.virtualCohort.name": 1 } would.  Used where
+ * the projection can not be left to MongoDB because the data is stored
+ * compressed.
+ */
+final class SessionProjection
+{
+    private SessionProjection()
+    {
+    }
+
+    /**
+     * @param data parsed session data
+     * @param paths dotted paths relative to data, e.g. virtualCohort.name
+     * @return the projected data, or null if data is not an object
+     */
+    static Object project(Object data, Collection<String> paths)
+    {
+        List<String[]> segments = new ArrayList<String[]>(paths.size());
+        for (String path : paths) {
+            segments.add(path.split("\\."));
+        }
+        return (data instanceof Map) ? project(data, segments, 0) : null;
+    }
+
+    private static Object project(Object value, List<String[]> paths, int depth)
+    {
+        if (value instanceof List) {
+            // like MongoDB, descend into the documents of an array
+            BasicDBList projected = new BasicDBList();
+            for (Object element : (List<?>) value) {
+                if (element instanceof Map || element instanceof List) {
+                    projected.add(project(element, paths, depth));
+                }
+            }
+            return projected;
+        }
+        Map<?, ?> document = (Map<?, ?>) value;
+        Map<String, List<String[]>> children = new LinkedHashMap<String, List<String[]>>();
+        BasicDBObject projected = new BasicDBObject();
+        for (String[] path : paths) {
+            String key = path[depth];
+            if (!document.containsKey(key)) {
+                continue;
+            }
+            if (path.length == depth + 1) {
+                projected.put(key, document.get(key));
+            } else {
+                List<String[]> childPaths = children.get(key);
+                if (childPaths == null) {
+                    childPaths = new ArrayList<String[]>();
+                    children.put(key, childPaths);
+                }
+                childPaths.add(path);
+            }
+        }
+        for (Map.Entry<String, List<String[]>> child : children.entrySet()) {
+            Object childValue = document.get(child.getKey());
+            if (!projected.containsField(child.getKey())
+                && (childValue instanceof Map || childValue instanceof List)) {
+                projected.put(child.getKey(), project(childValue, child.getValue(), depth + 1));
+            }
+        }
+        return projected;
+    }
+}
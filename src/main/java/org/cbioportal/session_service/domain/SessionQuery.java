@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.domain;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A query on session data from GET /api/sessions/query: the values fields
+ * of data must have, the fields to return, the order and how many
+ * sessions at most.  Fields are named as in the response, e.g.
+ * data.virtualCohort.userID.  Which fields may be filtered and sorted
+ * on is up to the caller, see {@link SessionRepository#find}.
+ */
+public final class SessionQuery
+{
+    private final Map<String, List<String>> predicates = new LinkedHashMap<String, List<String>>();
+    private List<String> fields = Collections.emptyList();
+    private String sortField = "id";
+    private boolean descending;
+    private int limit;
+
+    /**
+     * Only sessions where field equals one of values match.  A field that
+     * is an array matches if one of its elements does, as in MongoDB.
+     */
+    public SessionQuery where(String field, List<String> values)
+    {
+        predicates.put(field, values);
+        return this;
+    }
+
+    /**
+     * Only the given fields of data are returned; all of data if empty.
+     */
+    public SessionQuery fields(List<String> fields)
+    {
+        this.fields = fields;
+        return this;
+    }
+
+    /**
+     * Sessions are returned ordered by field, then by id.  By default
+     * they are in id order.
+     */
+    public SessionQuery sort(String field, boolean descending)
+    {
+        this.sortField = field;
+        this.descending = descending;
+        return this;
+    }
+
+    /**
+     * At most limit sessions are returned; all that match if 0.
+     */
+    public SessionQuery limit(int limit)
+    {
+        this.limit = limit;
+        return this;
+    }
+
+    public Map<String, List<String>> getPredicates()
+    {
+        return predicates;
+    }
+
+    public List<String> getFields()
+    {
+        return fields;
+    }
+
+    public String getSortField()
+    {
+        return sortField;
+    }
+
+    public boolean isDescending()
+    {
+        return descending;
+    }
+
+    public int getLimit()
+    {
+        return limit;
+    }
+}
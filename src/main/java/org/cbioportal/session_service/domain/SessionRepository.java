@@ -32,22 +32,215 @@
 
 package org.cbioportal.session_service.domain;
 
+import java.util.Collection;
+import java.util.Date;
 import java.util.List;
 
-import org.springframework.data.mongodb.repository.MongoRepository;
-import org.springframework.data.mongodb.repository.Query;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.util.CloseableIterator;
 
 /**
+ * Where sessions are stored.  {@link MongoSessionRepository} keeps them in
+ * MongoDB, {@link FileSessionRepository} in a local file when the
+ * "embedded" profile is active.
+ *
  * @author Manda Wilson
  */
-public interface SessionRepository extends MongoRepository<Session, String> {
-	/* Includes standard CRUD operations. */
+public interface SessionRepository {
+	/**
+	 * This method stores a new session and sets its id and version.
+	 * 
+	 * @param session
+	 * @return Session
+	 */
+	Session save(Session session);
+
+	/**
+	 * @param id
+	 * @return Session, or null if there is no such session
+	 */
+	Session findOne(String id);
+
+	/**
+	 * @param id
+	 * @return true if there is a session with the given id
+	 */
+	boolean exists(String id);
+
 	/**
 	 * This method returns list of sessions(virtual cohorts) created by the user
 	 * 
 	 * @param virtualCohortID
 	 * @return List<Session>
 	 */
-	@Query(value = "{ 'data.virtualCohort.userID' : ?0 }")
 	List<Session> findVCByUserID(String virtualCohortID);
+
+	/**
+	 * This method returns the first page of sessions in id order.  Unlike
+	 * a Spring Data findAll(Pageable) it does not count the sessions.
+	 * 
+	 * @param pageable
+	 * @return List<Session>
+	 */
+	List<Session> findAllBy(Pageable pageable);
+
+	/**
+	 * This method returns the page of sessions whose id comes after the
+	 * given id (keyset pagination), so no sessions are skipped over.  The
+	 * id need not be an ObjectId, sessions restored with their ids may
+	 * have any string.
+	 * 
+	 * @param id
+	 * @param pageable
+	 * @return List<Session>
+	 */
+	List<Session> findByIdGreaterThan(String id, Pageable pageable);
+
+	/**
+	 * This method returns a cursor over all sessions, as BSON.  Sessions
+	 * are read in batches as the iterator advances, so callers
+	 * never hold the whole collection in memory. The iterator must be
+	 * closed when done.
+	 * 
+	 * @return CloseableIterator<RawSession>
+	 */
+	CloseableIterator<RawSession> streamAll();
+
+	/**
+	 * This method returns the session with the given id as BSON, without
+	 * decoding it into objects.
+	 * 
+	 * @param id
+	 * @return RawSession, or null if there is no such session
+	 */
+	RawSession findRawById(String id);
+
+	/**
+	 * This method returns the session with the given id with only its
+	 * id, version and checksum read, enough to compare
+	 * ETags without transferring the data.
+	 * 
+	 * @param id
+	 * @return Session without data, or null if there is no such session
+	 */
+	Session findVersionById(String id);
+
+	/**
+	 * This method returns the sessions with the given ids as BSON, read
+	 * with a single query.  Ids that match no session are left out.
+	 * 
+	 * @param ids
+	 * @return List<RawSession>, in no particular order
+	 */
+	List<RawSession> findRawByIds(Collection<String> ids);
+
+	/**
+	 * This method returns the existing session with the same checksum
+	 * as the given session, or inserts the given session if there is
+	 * none, in one operation.  Checksums are not unique, so two calls
+	 * racing with the same data may both insert; later calls return
+	 * either session.  Callers that get an existing session share it
+	 * with whoever inserted it, including its later updates and deletion.
+	 * 
+	 * @param session
+	 * @return Session
+	 */
+	Session insertIfAbsent(Session session);
+
+	/**
+	 * This method returns list of sessions(virtual cohorts) created by the
+	 * user, with only the given fields of each session.
+	 * 
+	 * @param userID
+	 * @param fields paths such as data.virtualCohort.name
+	 * @return List<Session>
+	 */
+	List<Session> findVCByUserID(String userID, List<String> fields);
+
+	/**
+	 * This method returns a cursor over all sessions(virtual cohorts) that
+	 * were created by a user, with only the given fields of each session
+	 * besides its version and expiresAt.  The iterator must be closed when
+	 * done.
+	 * 
+	 * @param fields paths such as data.virtualCohort.name
+	 * @return CloseableIterator<Session>
+	 */
+	CloseableIterator<Session> streamVCs(List<String> fields);
+
+	/**
+	 * This method returns the sessions that match the given query, with
+	 * a single query.  Predicates and the sort must only use fields in
+	 * session.service.indexes, or the query may read every session;
+	 * the file engine refuses other fields.
+	 *
+	 * @param query with at least one predicate
+	 * @return List<Session>
+	 */
+	List<Session> find(SessionQuery query);
+
+	/**
+	 * This method replaces the data of the session with the given id by
+	 * the data of the given session and increments its version, in one
+	 * atomic operation.  If version is not null the session is only
+	 * updated if its current version equals version.  A session whose
+	 * new data is pinned stops expiring, see {@link SessionExpiry}.
+	 * 
+	 * @param id
+	 * @param session
+	 * @param version
+	 * @return the updated Session, or null if no session matched
+	 */
+	Session updateData(String id, Session session, Long version);
+
+	/**
+	 * This method applies the given patch to the data of the session with
+	 * the given id and increments its version.  If version is not
+	 * null the session is only patched if its current version equals
+	 * version.
+	 * 
+	 * @param id
+	 * @param patch
+	 * @param version
+	 * @return the patched Session, or null if no session matched
+	 * @throws SessionPatch.ConflictException if the patch does not fit
+	 *         the data of the session
+	 */
+	Session patchData(String id, SessionPatch patch, Long version);
+
+	/**
+	 * This method deletes the session with the given id in one
+	 * operation.  If version is not null the session is only deleted if
+	 * its current version equals version.
+	 * 
+	 * @param id
+	 * @param version
+	 * @return true if a session was deleted
+	 */
+	boolean delete(String id, Long version);
+
+	/**
+	 * This method runs all the given operations as one unordered bulk
+	 * write and sets the outcome of each operation.  Inserts of data
+	 * that equals the data of an existing session are deduplicated
+	 * if deduplicate is true, as in {@link #insertIfAbsent(Session)}.
+	 * A failed operation does not stop the others.  Inserts made with
+	 * {@link BulkOperation#insert(Session)} keep their id, and so do
+	 * those of {@link BulkOperation#restore(Session)}, which leave an
+	 * existing session with the same id as it is.
+	 * 
+	 * @param operations
+	 * @param deduplicate
+	 */
+	void bulkWrite(List<BulkOperation> operations, boolean deduplicate);
+
+	/**
+	 * This method records that the sessions with the given ids were
+	 * accessed at accessedAt, and moves the expiry of those that expire
+	 * when idle, see {@link SessionExpiry}.
+	 * 
+	 * @param ids
+	 * @param accessedAt
+	 */
+	void recordAccesses(Collection<String> ids, Date accessedAt);
 }
@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.domain;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.CyclicBarrier;
+
+import org.bson.BasicBSONEncoder;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.health.AbstractHealthIndicator;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * Warms up the server in the background when it starts, if
+ * session.service.warmup.enabled is true, so that the first requests
+ * after a scale-out neither wait for connections nor run interpreted
+ * code.  First connections threads read through the repository at the
+ * same time, which opens as many database connections; then a synthetic
+ * virtual cohort of samples sample ids is parsed, checksummed, encoded,
+ * compressed and written as JSON iterations times, the way sessions are
+ * POSTed and read.  Until that is done /health reports this as
+ * OUT_OF_SERVICE, so a readiness probe on /health only passes once the
+ * server is warm.
+ */
+@Component
+public class SessionWarmup extends AbstractHealthIndicator implements SmartLifecycle
+{
+    private static final Logger log = LoggerFactory.getLogger(SessionWarmup.class);
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int READS_PER_CONNECTION = 10;
+
+    private final SessionRepository sessionRepository;
+    private final SessionDataReader sessionDataReader;
+    private final SessionCompressor sessionCompressor;
+    private final boolean enabled;
+    private final int connections;
+    private final int iterations;
+    private final int samples;
+    private final JsonFactory jsonFactory = new JsonFactory();
+    private volatile boolean done;
+    private volatile long millis;
+    private Thread thread;
+
+    @Autowired
+    public SessionWarmup(SessionRepository sessionRepository, SessionDataReader sessionDataReader,
+        SessionCompressor sessionCompressor,
+        @Value("${session.service.warmup.enabled:false}") boolean enabled,
+        @Value("${session.service.warmup.connections:8}") int connections,
+        @Value("${session.service.warmup.iterations:2000}") int iterations,
+        @Value("${session.service.warmup.samples:100}") int samples)
+    {
+        this.sessionRepository = sessionRepository;
+        this.sessionDataReader = sessionDataReader;
+        this.sessionCompressor = sessionCompressor;
+        this.enabled = enabled;
+        this.connections = connections;
+        this.iterations = iterations;
+        this.samples = samples;
+        this.done = !enabled;
+    }
+
+    /**
+     * True once the warm-up is over, or at once if it is disabled.
+     */
+    public boolean isDone()
+    {
+        return done;
+    }
+
+    @Override
+    protected void doHealthCheck(Health.Builder builder) throws Exception
+    {
+        if (!done) {
+            builder.outOfService();
+        } else if (enabled) {
+            builder.up().withDetail("millis", millis);
+        } else {
+            builder.up();
+        }
+    }
+
+    void warmUp() throws Exception
+    {
+        if (connections > 0) {
+            openConnections();
+        }
+        byte[] json = virtualCohort(samples).getBytes(UTF_8);
+        for (int i = 0; i < iterations; i++) {
+            Session session = sessionDataReader.read(new ByteArrayInputStream(json), json.length, UTF_8);
+            session.getChecksum();
+            DBObject document = new BasicDBObject("_id", new ObjectId()).append("data", session.getData());
+            byte[] bson = new BasicBSONEncoder().encode(document);
+            if (sessionCompressor.compress(document)) {
+                SessionCompressor.gunzip((byte[]) document.get("compressed"));
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream(json.length + 64);
+            JsonGenerator generator = jsonFactory.createGenerator(out);
+            SessionJsonWriter.write(bson, generator);
+            generator.close();
+        }
+    }
+
+    // every thread reads at the same time, so none can reuse another's connection
+    private void openConnections() throws InterruptedException
+    {
+        final CyclicBarrier barrier = new CyclicBarrier(connections);
+        Thread[] threads = new Thread[connections];
+        for (int i = 0; i < connections; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run()
+                {
+                    try {
+                        for (int read = 0; read < READS_PER_CONNECTION; read++) {
+                            barrier.await();
+                            sessionRepository.exists(new ObjectId().toString());
+                        }
+                    } catch (Exception e) {
+                        barrier.reset();
+                        log.warn("could not open database connections", e);
+                    }
+                }
+            }, "session-warmup-" + i);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    static String virtualCohort(int samples)
+    {
+        StringBuilder json = new StringBuilder(64 + samples * 24);
+        json.append("{\"virtualCohort\":{\"userID\":\"warmup@example.org\",\"name\":\"warm-up\",")
+            .append("\"created\":1455057448927,\"selectedCases\":[{\"studyID\":\"warmup\",\"samples\":[");
+        for (int i = 0; i < samples; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("\"TCGA-").append(String.format("%02d-%04d", i % 100, i)).append("-01\"");
+        }
+        return json.append("]}]}}").toString();
+    }
+
+    @Override
+    public synchronized void start()
+    {
+        if (done || thread != null) {
+            return;
+        }
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run()
+            {
+                long start = System.nanoTime();
+                try {
+                    warmUp();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Exception e) {
+                    // a server that is not warm still works
+                    log.warn("warm-up failed", e);
+                }
+                millis = (System.nanoTime() - start) / 1000000;
+                log.info("warmed up in " + millis + " ms");
+                done = true;
+            }
+        }, "session-warmup");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public synchronized void stop()
+    {
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    @Override
+    public void stop(Runnable callback)
+    {
+        stop();
+        callback.run();
+    }
+
+    @Override
+    public synchronized boolean isRunning()
+    {
+        return thread != null;
+    }
+
+    @Override
+    public boolean isAutoStartup()
+    {
+        return true;
+    }
+
+    @Override
+    public int getPhase()
+    {
+        return 0;
+    }
+}
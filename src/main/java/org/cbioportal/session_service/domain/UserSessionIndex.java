@@ -0,0 +1,516 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.domain;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.stereotype.Component;
+
+import com.mongodb.BasicDBObject;
+
+/**
+ * Keeps in memory the ids of the sessions of every user (the
+ * data.virtualCohort.userID of the session), each with the paths
+ * session.service.user-index.fields of its data, if
+ * session.service.user-index.enabled is true.  Looking up the sessions of
+ * a user then needs no query if only those fields are asked for, or if
+ * the user has no sessions.  Lookups of the whole data of sessions are
+ * not answered from the index, it only keeps those fields.
+ *
+ * The index is built from the repository in the background when the
+ * application starts, and rebuilt every rebuild-seconds to pick up
+ * changes it was not told about, such as sessions written by other
+ * servers without the {@link SessionChangeFeed}, which otherwise reports
+ * them as they happen.  Until it is built {@link #find} returns null, as
+ * it does if the index would hold more than max-sessions sessions.
+ * Whoever writes a session must call {@link #put} or {@link #remove}
+ * after the write.  As those calls may come in another order than the
+ * writes, a session is only replaced by a later version, and a deleted
+ * session is only put back if the repository still has it.  A session
+ * whose expiresAt has passed is read again from the repository, and the
+ * lookups that find it until then are misses.  Hits, misses and the number of indexed sessions and
+ * users are published to /metrics as session.user-index.*.
+ */
+@Component
+public class UserSessionIndex implements SmartLifecycle, PublicMetrics,
+    ApplicationListener<SessionChangeFeed.ChangeEvent>
+{
+    private static final Logger log = LoggerFactory.getLogger(UserSessionIndex.class);
+    private static final String USER_ID_PATH = "virtualCohort.userID";
+    // the version a session was removed at, if it was deleted or its version is unknown
+    private static final long DELETED = Long.MAX_VALUE;
+    private static final long UNKNOWN = -1;
+
+    private final SessionRepository sessionRepository;
+    private final boolean enabled;
+    private final List<String> summaryPaths = new ArrayList<String>();
+    private final long rebuildSeconds;
+    private final int maxSessions;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private ScheduledExecutorService scheduler;
+    // changed while holding the lock of this, read without
+    private volatile Index index;
+    private List<Change> changes; // made while the index is rebuilt
+    // the sessions removed from the index since the last rebuild started,
+    // and before that, with the version they were removed at
+    private Map<String, Long> removed = new HashMap<String, Long>();
+    private Map<String, Long> previouslyRemoved = new HashMap<String, Long>();
+
+    @Autowired
+    public UserSessionIndex(SessionRepository sessionRepository,
+        @Value("${session.service.user-index.enabled:false}") boolean enabled,
+        @Value("${session.service.user-index.fields:virtualCohort.name,virtualCohort.description}") String[] fields,
+        @Value("${session.service.user-index.rebuild-seconds:3600}") long rebuildSeconds,
+        @Value("${session.service.user-index.max-sessions:1000000}") int maxSessions)
+    {
+        this.sessionRepository = sessionRepository;
+        this.enabled = enabled;
+        summaryPaths.add(USER_ID_PATH);
+        for (String field : fields) {
+            if (!field.trim().isEmpty() && !summaryPaths.contains(field.trim())) {
+                summaryPaths.add(field.trim());
+            }
+        }
+        this.rebuildSeconds = rebuildSeconds;
+        this.maxSessions = maxSessions;
+    }
+
+    /**
+     * The sessions of a user, with only the given fields of their data
+     * (see {@link SessionRepository#findVCByUserID(String, List)}), or
+     * all of their data if fields is null or empty.
+     *
+     * @return the sessions, or null if they have to be read from the
+     *  repository because the index is not built, does not have the
+     *  fields, or has an expired session of the user
+     */
+    public List<Session> find(String userID, List<String> fields)
+    {
+        Index current = index;
+        boolean wholeData = fields == null || fields.isEmpty();
+        Map<String, Summary> summaries = (current == null) ? null : current.sessionsByUser.get(userID);
+        if (current == null || (summaries != null && (wholeData || !covers(fields)))) {
+            misses.incrementAndGet();
+            return null;
+        }
+        List<Session> sessions = new ArrayList<Session>();
+        if (summaries == null) {
+            hits.incrementAndGet();
+            return sessions;
+        }
+        List<String> paths = new ArrayList<String>(fields.size());
+        for (String field : fields) {
+            paths.add(field.substring("data.".length()));
+        }
+        Date now = new Date();
+        boolean expired = false;
+        for (Map.Entry<String, Summary> summary : summaries.entrySet()) {
+            if (summary.getValue().isExpired(now)) {
+                refresh(summary.getKey());
+                expired = true;
+            }
+            sessions.add(Session.fromDocument(new BasicDBObject("_id", summary.getKey())
+                .append("data", SessionProjection.project(summary.getValue().data, paths))));
+        }
+        if (expired) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return sessions;
+    }
+
+    private boolean covers(List<String> fields)
+    {
+        for (String field : fields) {
+            boolean covered = false;
+            for (String path : summaryPaths) {
+                if (field.equals("data." + path) || field.startsWith("data." + path + ".")) {
+                    covered = true;
+                    break;
+                }
+            }
+            if (!covered) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Records the data of the session with the given id after it was
+     * written.  Ignored if the index has a later version of the session.
+     */
+    public void put(String id, Session session)
+    {
+        if (enabled) {
+            change(toChange(id, session));
+        }
+    }
+
+    /**
+     * Records that the session with the given id was deleted.
+     */
+    public void remove(String id)
+    {
+        if (enabled) {
+            change(new Change(id, null, null));
+        }
+    }
+
+    private Change toChange(String id, Session session)
+    {
+        Object data = session.getData();
+        String userID = userID(data);
+        return new Change(id, userID, new Summary((userID == null) ? null : SessionProjection.project(data, summaryPaths),
+            session.getVersion(), session.getExpiresAt()));
+    }
+
+    /*
+     * Reads an expired session again in the background, as its expiresAt
+     * may have been moved by accesses since it was indexed.
+     */
+    private synchronized void refresh(final String id)
+    {
+        if (scheduler == null) {
+            return;
+        }
+        scheduler.execute(new Runnable() {
+            @Override
+            public void run()
+            {
+                Session session = sessionRepository.findOne(id);
+                if (session == null || (session.getExpiresAt() != null && !session.getExpiresAt().after(new Date()))) {
+                    remove(id);
+                } else {
+                    put(id, session);
+                }
+            }
+        });
+    }
+
+    /**
+     * Follows a session written or deleted by another server.
+     */
+    @Override
+    public void onApplicationEvent(SessionChangeFeed.ChangeEvent event)
+    {
+        if (!enabled) {
+            return;
+        }
+        String id = event.getChange().getId();
+        Session session = event.getChange().isDeleted() ? null : sessionRepository.findOne(id);
+        if (session == null) {
+            remove(id);
+        } else {
+            put(id, session);
+        }
+    }
+
+    private synchronized void change(Change change)
+    {
+        Long removedAt = removed.containsKey(change.id) ? removed.get(change.id) : previouslyRemoved.get(change.id);
+        if (change.summary != null && removedAt != null) {
+            if (removedAt == DELETED) {
+                // the put of a write the delete came after, unless the session was restored
+                if (!sessionRepository.exists(change.id)) {
+                    return;
+                }
+            } else if (change.summary.version != null && change.summary.version <= removedAt) {
+                return;
+            }
+        }
+        previouslyRemoved.remove(change.id);
+        if (change.summary == null) {
+            removed.put(change.id, DELETED);
+        } else if (change.userID == null) {
+            removed.put(change.id, (change.summary.version == null) ? UNKNOWN : change.summary.version);
+        } else {
+            removed.remove(change.id);
+        }
+        if (changes != null) {
+            changes.add(change);
+        }
+        Index current = index;
+        if (current != null) {
+            current.apply(change);
+            if (current.userIDs.size() > maxSessions) {
+                log.warn("more than " + maxSessions + " sessions with a user, no longer indexing them");
+                index = null;
+            }
+        }
+    }
+
+    private static String userID(Object data)
+    {
+        Object value = data;
+        for (String segment : USER_ID_PATH.split("\\.")) {
+            value = (value instanceof Map) ? ((Map<?, ?>) value).get(segment) : null;
+        }
+        return (value instanceof String) ? (String) value : null;
+    }
+
+    /**
+     * Reads the index from the repository, while changes are recorded
+     * in both the current index and a list that is applied to the new one.
+     */
+    void rebuild()
+    {
+        synchronized (this) {
+            changes = new ArrayList<Change>();
+            previouslyRemoved = removed;
+            removed = new HashMap<String, Long>();
+        }
+        Index rebuilt = new Index();
+        List<String> fields = new ArrayList<String>(summaryPaths.size());
+        for (String path : summaryPaths) {
+            fields.add("data." + path);
+        }
+        boolean complete = false;
+        CloseableIterator<Session> sessions = null;
+        try {
+            sessions = sessionRepository.streamVCs(fields);
+            while (sessions.hasNext()) {
+                if (rebuilt.userIDs.size() == maxSessions) {
+                    log.warn("more than " + maxSessions + " sessions with a user, not indexing them");
+                    rebuilt = null;
+                    break;
+                }
+                Session session = sessions.next();
+                rebuilt.apply(toChange(session.getId(), session));
+            }
+            complete = true;
+        } finally {
+            if (sessions != null) {
+                sessions.close();
+            }
+            synchronized (this) {
+                // if reading failed the current index stays
+                if (complete) {
+                    if (rebuilt != null) {
+                        for (Change change : changes) {
+                            rebuilt.apply(change);
+                        }
+                    }
+                    index = rebuilt;
+                }
+                changes = null;
+            }
+        }
+    }
+
+    @Override
+    public synchronized void start()
+    {
+        if (!enabled) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "user-session-index");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run()
+            {
+                try {
+                    rebuild();
+                } catch (RuntimeException e) {
+                    log.warn("could not build the user session index", e);
+                }
+            }
+        }, 0, rebuildSeconds, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public synchronized void stop()
+    {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    @Override
+    public void stop(Runnable callback)
+    {
+        stop();
+        callback.run();
+    }
+
+    @Override
+    public synchronized boolean isRunning()
+    {
+        return scheduler != null;
+    }
+
+    @Override
+    public boolean isAutoStartup()
+    {
+        return true;
+    }
+
+    @Override
+    public int getPhase()
+    {
+        return 0;
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics()
+    {
+        Collection<Metric<?>> metrics = new ArrayList<Metric<?>>();
+        if (!enabled) {
+            return metrics;
+        }
+        Index current = index;
+        metrics.add(new Metric<Long>("session.user-index.hits", hits.get()));
+        metrics.add(new Metric<Long>("session.user-index.misses", misses.get()));
+        metrics.add(new Metric<Integer>("session.user-index.sessions", (current == null) ? 0 : current.userIDs.size()));
+        metrics.add(new Metric<Integer>("session.user-index.users",
+            (current == null) ? 0 : current.sessionsByUser.size()));
+        return metrics;
+    }
+
+    /*
+     * A new or changed session, which is not indexed if userID is null,
+     * or (if summary is null) a deleted session.
+     */
+    private static final class Change
+    {
+        final String id;
+        final String userID;
+        final Summary summary;
+
+        Change(String id, String userID, Summary summary)
+        {
+            this.id = id;
+            this.userID = userID;
+            this.summary = summary;
+        }
+    }
+
+    /*
+     * The indexed paths of the data of a session, and the version and
+     * expiresAt of the session, either of which may be unknown (null).
+     */
+    private static final class Summary
+    {
+        final Object data;
+        final Long version;
+        final Date expiresAt;
+
+        Summary(Object data, Long version, Date expiresAt)
+        {
+            this.data = data;
+            this.version = version;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired(Date now)
+        {
+            return expiresAt != null && !expiresAt.after(now);
+        }
+    }
+
+    /*
+     * Changed by one thread at a time, read by any.  Sessions are kept in
+     * id order, which is the order they were created in.
+     */
+    private static final class Index
+    {
+        final ConcurrentMap<String, ConcurrentNavigableMap<String, Summary>> sessionsByUser =
+            new ConcurrentHashMap<String, ConcurrentNavigableMap<String, Summary>>();
+        final ConcurrentMap<String, String> userIDs = new ConcurrentHashMap<String, String>();
+
+        void apply(Change change)
+        {
+            String previousUserID = userIDs.get(change.id);
+            if (change.summary != null && change.summary.version != null && previousUserID != null) {
+                Long version = sessionsByUser.get(previousUserID).get(change.id).version;
+                if (version != null && version > change.summary.version) {
+                    return; // an earlier write
+                }
+            }
+            if (change.userID == null) {
+                userIDs.remove(change.id);
+            } else {
+                userIDs.put(change.id, change.userID);
+            }
+            if (previousUserID != null && !previousUserID.equals(change.userID)) {
+                ConcurrentNavigableMap<String, Summary> sessions = sessionsByUser.get(previousUserID);
+                sessions.remove(change.id);
+                if (sessions.isEmpty()) {
+                    sessionsByUser.remove(previousUserID);
+                }
+            }
+            if (change.userID != null) {
+                ConcurrentNavigableMap<String, Summary> sessions = sessionsByUser.get(change.userID);
+                if (sessions == null) {
+                    sessions = new ConcurrentSkipListMap<String, Summary>();
+                    sessionsByUser.put(change.userID, sessions);
+                }
+                sessions.put(change.id, change.summary);
+            }
+        }
+    }
+}
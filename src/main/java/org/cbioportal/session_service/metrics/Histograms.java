@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.metrics;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.springframework.boot.actuate.metrics.Metric;
+
+/**
+ * Fixed size HdrHistograms for latencies and payload sizes.  Recording
+ * into them is thread safe and does not allocate; values above the
+ * highest trackable value are recorded as that value.  The service
+ * publishes {@link WindowedHistogram}s, so that its percentiles show the
+ * current latency rather than that since it started.
+ */
+public final class Histograms
+{
+    static final long MAX_MICROS = TimeUnit.MINUTES.toMicros(10);
+    static final long MAX_BYTES = 1L << 32;
+
+    private Histograms()
+    {
+    }
+
+    /**
+     * Latencies in microseconds, up to ten minutes.
+     */
+    public static Histogram latency()
+    {
+        return new ConcurrentHistogram(1, MAX_MICROS, 2);
+    }
+
+    /**
+     * Sizes in bytes, up to 4GB.
+     */
+    public static Histogram bytes()
+    {
+        return new ConcurrentHistogram(1, MAX_BYTES, 2);
+    }
+
+    /**
+     * Recent latencies in microseconds, up to ten minutes.
+     */
+    public static WindowedHistogram recentLatency()
+    {
+        return new WindowedHistogram(MAX_MICROS, WindowedHistogram.WINDOW_NANOS);
+    }
+
+    /**
+     * Recent sizes in bytes, up to 4GB.
+     */
+    public static WindowedHistogram recentBytes()
+    {
+        return new WindowedHistogram(MAX_BYTES, WindowedHistogram.WINDOW_NANOS);
+    }
+
+    public static void recordNanos(WindowedHistogram histogram, long nanos)
+    {
+        histogram.record(nanos / 1000);
+    }
+
+    public static void record(WindowedHistogram histogram, long value)
+    {
+        histogram.record(value);
+    }
+
+    public static void recordNanos(Histogram histogram, long nanos)
+    {
+        record(histogram, nanos / 1000);
+    }
+
+    public static void record(Histogram histogram, long value)
+    {
+        if (value >= 0) {
+            histogram.recordValue(Math.min(value, histogram.getHighestTrackableValue()));
+        }
+    }
+
+    /**
+     * Adds name.count, and if anything was recorded name.p50, name.p99,
+     * name.p999 and name.max to metrics.
+     */
+    public static void addMetrics(Collection<Metric<?>> metrics, String name, WindowedHistogram histogram)
+    {
+        addSnapshot(metrics, name, histogram.snapshot());
+    }
+
+    public static void addMetrics(Collection<Metric<?>> metrics, String name, Histogram histogram)
+    {
+        // a consistent snapshot, the original keeps recording
+        addSnapshot(metrics, name, histogram.copy());
+    }
+
+    private static void addSnapshot(Collection<Metric<?>> metrics, String name, Histogram snapshot)
+    {
+        long count = snapshot.getTotalCount();
+        metrics.add(new Metric<Long>(name + ".count", count));
+        if (count > 0) {
+            metrics.add(new Metric<Long>(name + ".p50", snapshot.getValueAtPercentile(50)));
+            metrics.add(new Metric<Long>(name + ".p99", snapshot.getValueAtPercentile(99)));
+            metrics.add(new Metric<Long>(name + ".p999", snapshot.getValueAtPercentile(99.9)));
+            metrics.add(new Metric<Long>(name + ".max", snapshot.getMaxValue()));
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Set;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+
+/**
+ * Publishes the connection pools of the MongoDB client to /metrics, summed
+ * over the servers it connects to: session.mongo.pool.size (open
+ * connections), .max-size, .checked-out (in use) and .wait-queue (threads
+ * waiting for a connection).  A wait queue that is not empty means the
+ * pool is saturated; requests that waited too long are counted in
+ * session.executor.database-busy.  The 2.x driver reports its pools
+ * only as JMX MBeans, so they are read from there.
+ */
+@Component
+@Profile("!embedded")
+public class MongoPoolMetrics implements PublicMetrics
+{
+    private final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    private final ObjectName pools;
+
+    public MongoPoolMetrics() throws JMException
+    {
+        pools = new ObjectName("org.mongodb.driver:type=ConnectionPool,*");
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics()
+    {
+        int size = 0;
+        int maxSize = 0;
+        int checkedOut = 0;
+        int waitQueue = 0;
+        Set<ObjectName> names = mBeanServer.queryNames(pools, null);
+        for (ObjectName name : names) {
+            try {
+                size += (Integer) mBeanServer.getAttribute(name, "Size");
+                maxSize += (Integer) mBeanServer.getAttribute(name, "MaxSize");
+                checkedOut += (Integer) mBeanServer.getAttribute(name, "CheckedOutCount");
+                waitQueue += (Integer) mBeanServer.getAttribute(name, "WaitQueueSize");
+            } catch (JMException e) {
+                // the pool was closed since it was listed
+            }
+        }
+        Collection<Metric<?>> metrics = new ArrayList<Metric<?>>();
+        metrics.add(new Metric<Integer>("session.mongo.pool.count", names.size()));
+        metrics.add(new Metric<Integer>("session.mongo.pool.size", size));
+        metrics.add(new Metric<Integer>("session.mongo.pool.max-size", maxSize));
+        metrics.add(new Metric<Integer>("session.mongo.pool.checked-out", checkedOut));
+        metrics.add(new Metric<Integer>("session.mongo.pool.wait-queue", waitQueue));
+        return metrics;
+    }
+}
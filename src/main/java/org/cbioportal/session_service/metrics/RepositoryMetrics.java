@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.metrics;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.cbioportal.session_service.domain.SessionRepository;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+/**
+ * Times every call to the {@link SessionRepository} in a {@link WindowedHistogram}
+ * per method, published to /metrics as
+ * session.repository.[method].micros.*, e.g.
+ * session.repository.findRawById.micros.p99.  The times include mapping
+ * between documents and sessions as well as the MongoDB round trips.
+ */
+@Component
+public class RepositoryMetrics implements BeanPostProcessor, PublicMetrics
+{
+    private final ConcurrentMap<String, WindowedHistogram> latencies =
+        new ConcurrentHashMap<String, WindowedHistogram>();
+
+    @Override
+    public Object postProcessBeforeInitialization(Object bean, String beanName)
+    {
+        return bean;
+    }
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName)
+    {
+        if (!(bean instanceof SessionRepository)) {
+            return bean;
+        }
+        ProxyFactory proxyFactory = new ProxyFactory(bean);
+        proxyFactory.addAdvice(new MethodInterceptor() {
+            @Override
+            public Object invoke(MethodInvocation invocation) throws Throwable
+            {
+                Method method = invocation.getMethod();
+                if (method.getDeclaringClass() == Object.class) {
+                    return invocation.proceed();
+                }
+                long start = System.nanoTime();
+                try {
+                    return invocation.proceed();
+                } finally {
+                    Histograms.recordNanos(latency(method.getName()), System.nanoTime() - start);
+                }
+            }
+        });
+        return proxyFactory.getProxy();
+    }
+
+    private WindowedHistogram latency(String method)
+    {
+        WindowedHistogram latency = latencies.get(method);
+        if (latency == null) {
+            latencies.putIfAbsent(method, Histograms.recentLatency());
+            latency = latencies.get(method);
+        }
+        return latency;
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics()
+    {
+        Collection<Metric<?>> metrics = new ArrayList<Metric<?>>();
+        for (Map.Entry<String, WindowedHistogram> latency : latencies.entrySet()) {
+            Histograms.addMetrics(metrics, "session.repository." + latency.getKey() + ".micros", latency.getValue());
+        }
+        return metrics;
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.metrics;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.servlet.HandlerMapping;
+
+/**
+ * Records the latency, request size and response size of every request
+ * in {@link WindowedHistogram}s per endpoint, and publishes their percentiles to
+ * /metrics as session.http.[method].[path].micros.*, .request-bytes.*
+ * and .response-bytes.*, e.g. session.http.get.api.sessions.id.micros.p99.
+ * Asynchronous requests are timed until they complete.  Requests that
+ * match no endpoint or use a method other than the standard ones all go
+ * to session.http.other, so clients can not add endpoints at will.
+ *
+ * Request sizes are taken from Content-Length, so chunked bodies are not
+ * recorded; response sizes are the bytes written to the output stream.
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE)
+public class RequestMetricsFilter extends OncePerRequestFilter implements PublicMetrics
+{
+    private static final Set<String> METHODS = new HashSet<String>(
+        Arrays.asList("GET", "HEAD", "POST", "PUT", "PATCH", "DELETE", "OPTIONS", "TRACE"));
+
+    // path pattern -> HTTP method -> histograms, looked up without allocating
+    private final ConcurrentMap<String, ConcurrentMap<String, Endpoint>> endpoints =
+        new ConcurrentHashMap<String, ConcurrentMap<String, Endpoint>>();
+    private final Endpoint other = new Endpoint("session.http.other");
+
+    @Override
+    protected void doFilterInternal(final HttpServletRequest request, HttpServletResponse response,
+        FilterChain filterChain) throws ServletException, IOException
+    {
+        final long start = System.nanoTime();
+        final CountingResponse countingResponse = new CountingResponse(response);
+        try {
+            filterChain.doFilter(request, countingResponse);
+        } finally {
+            if (request.isAsyncStarted()) {
+                request.getAsyncContext().addListener(new AsyncListener() {
+                    @Override
+                    public void onComplete(AsyncEvent event)
+                    {
+                        record(request, countingResponse, start);
+                    }
+
+                    @Override
+                    public void onTimeout(AsyncEvent event)
+                    {
+                    }
+
+                    @Override
+                    public void onError(AsyncEvent event)
+                    {
+                    }
+
+                    @Override
+                    public void onStartAsync(AsyncEvent event)
+                    {
+                    }
+                });
+            } else {
+                record(request, countingResponse, start);
+            }
+        }
+    }
+
+    private void record(HttpServletRequest request, CountingResponse response, long start)
+    {
+        Endpoint endpoint = endpoint(request);
+        Histograms.recordNanos(endpoint.latency, System.nanoTime() - start);
+        Histograms.record(endpoint.requestBytes, request.getContentLengthLong());
+        Histograms.record(endpoint.responseBytes, response.getBytesWritten());
+    }
+
+    private Endpoint endpoint(HttpServletRequest request)
+    {
+        Object pattern = request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+        String method = request.getMethod();
+        if (!(pattern instanceof String) || !METHODS.contains(method)) {
+            return other;
+        }
+        String path = (String) pattern;
+        ConcurrentMap<String, Endpoint> byMethod = endpoints.get(path);
+        if (byMethod == null) {
+            endpoints.putIfAbsent(path, new ConcurrentHashMap<String, Endpoint>());
+            byMethod = endpoints.get(path);
+        }
+        Endpoint endpoint = byMethod.get(method);
+        if (endpoint == null) {
+            byMethod.putIfAbsent(method, new Endpoint(metricName(method, path)));
+            endpoint = byMethod.get(method);
+        }
+        return endpoint;
+    }
+
+    // GET /api/sessions/{id} -> session.http.get.api.sessions.id
+    static String metricName(String method, String path)
+    {
+        StringBuilder name = new StringBuilder("session.http.").append(method.toLowerCase());
+        for (String part : path.split("/")) {
+            part = part.replace("{", "").replace("}", "");
+            if (!part.isEmpty()) {
+                name.append('.').append(part);
+            }
+        }
+        return name.toString();
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics()
+    {
+        Collection<Metric<?>> metrics = new ArrayList<Metric<?>>();
+        for (Map<String, Endpoint> byMethod : endpoints.values()) {
+            for (Endpoint endpoint : byMethod.values()) {
+                addMetrics(metrics, endpoint);
+            }
+        }
+        addMetrics(metrics, other);
+        return metrics;
+    }
+
+    private static void addMetrics(Collection<Metric<?>> metrics, Endpoint endpoint)
+    {
+        Histograms.addMetrics(metrics, endpoint.name + ".micros", endpoint.latency);
+        Histograms.addMetrics(metrics, endpoint.name + ".request-bytes", endpoint.requestBytes);
+        Histograms.addMetrics(metrics, endpoint.name + ".response-bytes", endpoint.responseBytes);
+    }
+
+    private static class Endpoint
+    {
+        final String name;
+        final WindowedHistogram latency = Histograms.recentLatency();
+        final WindowedHistogram requestBytes = Histograms.recentBytes();
+        final WindowedHistogram responseBytes = Histograms.recentBytes();
+
+        Endpoint(String name)
+        {
+            this.name = name;
+        }
+    }
+
+    /**
+     * Counts the bytes written to the output stream.
+     */
+    private static class CountingResponse extends HttpServletResponseWrapper
+    {
+        private ServletOutputStream outputStream;
+        private long bytesWritten = -1;
+
+        CountingResponse(HttpServletResponse response)
+        {
+            super(response);
+        }
+
+        long getBytesWritten()
+        {
+            return bytesWritten;
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException
+        {
+            if (outputStream == null) {
+                final ServletOutputStream delegate = getResponse().getOutputStream();
+                bytesWritten = 0;
+                outputStream = new ServletOutputStream() {
+                    @Override
+                    public void write(int b) throws IOException
+                    {
+                        delegate.write(b);
+                        bytesWritten++;
+                    }
+
+                    @Override
+                    public void write(byte[] buffer, int offset, int length) throws IOException
+                    {
+                        delegate.write(buffer, offset, length);
+                        bytesWritten += length;
+                    }
+
+                    @Override
+                    public void flush() throws IOException
+                    {
+                        delegate.flush();
+                    }
+
+                    @Override
+                    public void close() throws IOException
+                    {
+                        delegate.close();
+                    }
+
+                    @Override
+                    public boolean isReady()
+                    {
+                        return delegate.isReady();
+                    }
+
+                    @Override
+                    public void setWriteListener(WriteListener writeListener)
+                    {
+                        delegate.setWriteListener(writeListener);
+                    }
+                };
+            }
+            return outputStream;
+        }
+    }
+}
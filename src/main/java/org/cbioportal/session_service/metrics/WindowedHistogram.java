@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * An HdrHistogram of recent values only: recording goes into a
+ * {@link Recorder}, and every snapshot moves what was recorded since the
+ * last one into the current window.  Once a window is older than the
+ * window length it becomes the previous window and a new one starts, so a
+ * snapshot covers between one and two window lengths of recent values,
+ * however often or rarely it is taken.
+ */
+public final class WindowedHistogram
+{
+    static final long WINDOW_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final Recorder recorder;
+    private final long highestTrackableValue;
+    private final long windowNanos;
+
+    private Histogram interval;
+    private Histogram current;
+    private Histogram previous;
+    private long currentStart = System.nanoTime();
+
+    WindowedHistogram(long highestTrackableValue, long windowNanos)
+    {
+        this.recorder = new Recorder(1, highestTrackableValue, 2);
+        this.highestTrackableValue = highestTrackableValue;
+        this.windowNanos = windowNanos;
+        this.current = new Histogram(1, highestTrackableValue, 2);
+        this.previous = new Histogram(1, highestTrackableValue, 2);
+    }
+
+    /**
+     * Thread safe and does not allocate; values above the highest
+     * trackable value are recorded as that value.
+     */
+    public void record(long value)
+    {
+        if (value >= 0) {
+            recorder.recordValue(Math.min(value, highestTrackableValue));
+        }
+    }
+
+    /**
+     * A copy of the values of the current and the previous window.
+     */
+    public synchronized Histogram snapshot()
+    {
+        interval = recorder.getIntervalHistogram(interval);
+        current.add(interval);
+        long now = System.nanoTime();
+        if (now - currentStart >= windowNanos) {
+            Histogram oldest = previous;
+            previous = current;
+            oldest.reset();
+            current = oldest;
+            currentStart = now;
+        }
+        Histogram snapshot = previous.copy();
+        snapshot.add(current);
+        return snapshot;
+    }
+}
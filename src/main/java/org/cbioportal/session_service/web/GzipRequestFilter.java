@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.web;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+/**
+ * Decompresses request bodies sent with Content-Encoding: gzip, so that
+ * clients can POST and PUT large sessions compressed.
+ */
+@Component
+public class GzipRequestFilter extends OncePerRequestFilter
+{
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response,
+        FilterChain filterChain) throws ServletException, IOException
+    {
+        String contentEncoding = request.getHeader(HttpHeaders.CONTENT_ENCODING);
+        if (contentEncoding != null && contentEncoding.trim().equalsIgnoreCase("gzip")) {
+            request = new GzipRequest(request);
+        }
+        filterChain.doFilter(request, response);
+    }
+
+    private static class GzipRequest extends HttpServletRequestWrapper
+    {
+        private ServletInputStream inputStream;
+
+        GzipRequest(HttpServletRequest request)
+        {
+            super(request);
+        }
+
+        @Override
+        public ServletInputStream getInputStream() throws IOException
+        {
+            if (inputStream == null) {
+                final GZIPInputStream gzip = new GZIPInputStream(getRequest().getInputStream());
+                inputStream = new ServletInputStream() {
+                    private boolean finished;
+
+                    @Override
+                    public int read() throws IOException
+                    {
+                        int b = gzip.read();
+                        finished = (b == -1);
+                        return b;
+                    }
+
+                    @Override
+                    public int read(byte[] buffer, int offset, int length) throws IOException
+                    {
+                        int read = gzip.read(buffer, offset, length);
+                        finished = (read == -1);
+                        return read;
+                    }
+
+                    @Override
+                    public boolean isFinished()
+                    {
+                        return finished;
+                    }
+
+                    @Override
+                    public boolean isReady()
+                    {
+                        return true;
+                    }
+
+                    @Override
+                    public void setReadListener(ReadListener readListener)
+                    {
+                        throw new UnsupportedOperationException();
+                    }
+
+                    @Override
+                    public void close() throws IOException
+                    {
+                        gzip.close();
+                    }
+                };
+            }
+            return inputStream;
+        }
+
+        @Override
+        public BufferedReader getReader() throws IOException
+        {
+            String encoding = getCharacterEncoding();
+            return new BufferedReader(new InputStreamReader(getInputStream(), (encoding == null) ? "UTF-8" : encoding));
+        }
+
+        // the decompressed length is not known up front
+
+        @Override
+        public int getContentLength()
+        {
+            return -1;
+        }
+
+        @Override
+        public long getContentLengthLong()
+        {
+            return -1;
+        }
+
+        @Override
+        public String getHeader(String name)
+        {
+            if (isCompressionHeader(name)) {
+                return null;
+            }
+            return super.getHeader(name);
+        }
+
+        @Override
+        public Enumeration<String> getHeaders(String name)
+        {
+            if (isCompressionHeader(name)) {
+                return Collections.enumeration(Collections.<String>emptyList());
+            }
+            return super.getHeaders(name);
+        }
+
+        private static boolean isCompressionHeader(String name)
+        {
+            return name.equalsIgnoreCase(HttpHeaders.CONTENT_ENCODING)
+                || name.equalsIgnoreCase(HttpHeaders.CONTENT_LENGTH);
+        }
+    }
+}
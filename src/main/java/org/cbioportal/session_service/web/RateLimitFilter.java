@@ -0,0 +1,290 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.web;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+/**
+ * Limits how many requests each client can make to /api/sessions/, if
+ * session.service.rate-limit.enabled is true.  Every client has a token
+ * bucket for each kind of request: query (GET /api/sessions/, /query and
+ * /_export), read (other GETs and POST /_mget) and write (POST, PUT,
+ * PATCH and DELETE), each refilled at per-second tokens a second up to
+ * burst tokens.  A request that finds its bucket empty is answered with
+ * 429 and a Retry-After header before it reaches the controller.
+ *
+ * Clients are told apart by the api-key-header if it is set and sent
+ * with one of the api-keys, otherwise by their IP address (behind a
+ * proxy, set server.use-forward-headers=true).  Unknown keys count as no
+ * key, so that a client can not get a new bucket with every request.
+ *
+ * A bucket is a single AtomicLong updated with compare-and-set (the
+ * generic cell rate algorithm), so requests never wait for a lock;
+ * buckets of clients that have been idle long enough to be full again
+ * are dropped.  Allowed and limited counts per kind are published to
+ * /metrics as session.rate-limit.*.
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE + 1) // after RequestMetricsFilter, so 429s are recorded
+public class RateLimitFilter extends OncePerRequestFilter implements PublicMetrics
+{
+    private static final String PREFIX = "/api/sessions/";
+
+    enum Kind { QUERY, READ, WRITE }
+
+    private final boolean enabled;
+    private final String apiKeyHeader;
+    private final Set<String> apiKeys = new HashSet<String>();
+    private final int maxClients;
+    private final Ticker ticker;
+    private final Budget[] budgets = new Budget[Kind.values().length];
+    private final LoadingCache<String, AtomicLong[]> clients;
+
+    @Autowired
+    public RateLimitFilter(@Value("${session.service.rate-limit.enabled:false}") boolean enabled,
+        @Value("${session.service.rate-limit.api-key-header:}") String apiKeyHeader,
+        @Value("${session.service.rate-limit.api-keys:}") String[] apiKeys,
+        @Value("${session.service.rate-limit.max-clients:100000}") int maxClients,
+        @Value("${session.service.rate-limit.query.per-second:5}") double queriesPerSecond,
+        @Value("${session.service.rate-limit.query.burst:10}") int queryBurst,
+        @Value("${session.service.rate-limit.read.per-second:100}") double readsPerSecond,
+        @Value("${session.service.rate-limit.read.burst:200}") int readBurst,
+        @Value("${session.service.rate-limit.write.per-second:20}") double writesPerSecond,
+        @Value("${session.service.rate-limit.write.burst:40}") int writeBurst)
+    {
+        this(enabled, apiKeyHeader, apiKeys, maxClients, queriesPerSecond, queryBurst, readsPerSecond, readBurst,
+            writesPerSecond, writeBurst, Ticker.systemTicker());
+    }
+
+    RateLimitFilter(boolean enabled, String apiKeyHeader, String[] apiKeys, int maxClients,
+        double queriesPerSecond, int queryBurst, double readsPerSecond, int readBurst,
+        double writesPerSecond, int writeBurst, Ticker ticker)
+    {
+        this.enabled = enabled;
+        this.apiKeyHeader = apiKeyHeader.trim();
+        for (String apiKey : apiKeys) {
+            if (!apiKey.trim().isEmpty()) {
+                this.apiKeys.add(apiKey.trim());
+            }
+        }
+        this.maxClients = maxClients;
+        this.ticker = ticker;
+        budgets[Kind.QUERY.ordinal()] = new Budget("query", queriesPerSecond, queryBurst);
+        budgets[Kind.READ.ordinal()] = new Budget("read", readsPerSecond, readBurst);
+        budgets[Kind.WRITE.ordinal()] = new Budget("write", writesPerSecond, writeBurst);
+        long refillNanos = 0;
+        for (Budget budget : budgets) {
+            refillNanos = Math.max(refillNanos, budget.burstNanos);
+        }
+        this.clients = CacheBuilder.newBuilder()
+            .maximumSize(maxClients)
+            // an idle client's buckets are full again by then, the same as new ones
+            .expireAfterAccess(Math.max(refillNanos, TimeUnit.SECONDS.toNanos(1)), TimeUnit.NANOSECONDS)
+            .ticker(ticker)
+            .build(new CacheLoader<String, AtomicLong[]>() {
+                @Override
+                public AtomicLong[] load(String client)
+                {
+                    return newBuckets();
+                }
+            });
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request)
+    {
+        return !enabled;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response,
+        FilterChain filterChain) throws ServletException, IOException
+    {
+        Kind kind = kind(request.getMethod(), request.getRequestURI().substring(request.getContextPath().length()));
+        if (kind != null) {
+            Budget budget = budgets[kind.ordinal()];
+            long waitNanos = budget.take(buckets(client(request))[kind.ordinal()], ticker.read());
+            if (waitNanos > 0) {
+                budget.limited.incrementAndGet();
+                long seconds = Math.max(1, (waitNanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1));
+                response.setHeader(HttpHeaders.RETRY_AFTER, Long.toString(seconds));
+                response.sendError(HttpStatus.TOO_MANY_REQUESTS.value(),
+                    "too many " + budget.name + " requests.");
+                return;
+            }
+            budget.allowed.incrementAndGet();
+        }
+        filterChain.doFilter(request, response);
+    }
+
+    /*
+     * Null for requests that are not limited, e.g. CORS preflights and
+     * /metrics.
+     */
+    static Kind kind(String method, String path)
+    {
+        String endpoint;
+        if (path.startsWith(PREFIX)) {
+            endpoint = path.substring(PREFIX.length());
+        } else if (path.equals("/api/sessions")) {
+            endpoint = "";
+        } else {
+            return null;
+        }
+        if (method.equals("GET") || method.equals("HEAD")) {
+            if (endpoint.isEmpty() || endpoint.equals("query") || endpoint.equals("_export")) {
+                return Kind.QUERY;
+            }
+            return Kind.READ;
+        } else if (method.equals("POST")) {
+            return endpoint.equals("_mget") ? Kind.READ : Kind.WRITE;
+        } else if (method.equals("PUT") || method.equals("PATCH") || method.equals("DELETE")) {
+            return Kind.WRITE;
+        }
+        return null;
+    }
+
+    private String client(HttpServletRequest request)
+    {
+        if (!apiKeyHeader.isEmpty()) {
+            String apiKey = request.getHeader(apiKeyHeader);
+            if (apiKey != null && apiKeys.contains(apiKey)) {
+                return "key:" + apiKey;
+            }
+        }
+        return "ip:" + request.getRemoteAddr();
+    }
+
+    private AtomicLong[] buckets(String client)
+    {
+        try {
+            return clients.get(client);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause()); // newBuckets does not throw
+        }
+    }
+
+    private AtomicLong[] newBuckets()
+    {
+        AtomicLong[] buckets = new AtomicLong[budgets.length];
+        long now = ticker.read();
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new AtomicLong(now);
+        }
+        return buckets;
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics()
+    {
+        Collection<Metric<?>> metrics = new ArrayList<Metric<?>>();
+        for (Budget budget : budgets) {
+            metrics.add(new Metric<Long>("session.rate-limit." + budget.name + ".allowed", budget.allowed.get()));
+            metrics.add(new Metric<Long>("session.rate-limit." + budget.name + ".limited", budget.limited.get()));
+        }
+        metrics.add(new Metric<Long>("session.rate-limit.clients", clients.size()));
+        metrics.add(new Metric<Integer>("session.rate-limit.max-clients", maxClients));
+        return metrics;
+    }
+
+    /*
+     * A bucket holds the time at which it would be full again; each
+     * request moves that time intervalNanos further, and is refused if
+     * it would then lie more than burstNanos ahead of now.
+     */
+    private static class Budget
+    {
+        final String name;
+        final long intervalNanos;
+        final long burstNanos;
+        final AtomicLong allowed = new AtomicLong();
+        final AtomicLong limited = new AtomicLong();
+
+        Budget(String name, double perSecond, int burst)
+        {
+            if (perSecond <= 0 || burst < 1) {
+                throw new IllegalArgumentException("session.service.rate-limit." + name
+                    + " needs per-second > 0 and burst >= 1.");
+            }
+            this.name = name;
+            this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / perSecond);
+            this.burstNanos = intervalNanos * burst;
+        }
+
+        /*
+         * Returns 0 if the request may go ahead, otherwise how long until
+         * it would have.
+         */
+        long take(AtomicLong bucket, long now)
+        {
+            while (true) {
+                long full = bucket.get();
+                long next = ((full - now) < 0 ? now : full) + intervalNanos;
+                if (next - now > burstNanos) {
+                    return next - now - burstNanos;
+                }
+                if (bucket.compareAndSet(full, next)) {
+                    return 0;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.web;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import com.mongodb.MongoTimeoutException;
+import com.mongodb.MongoWaitQueueFullException;
+
+/**
+ * Runs the database work of requests on a bounded pool of threads, so 
+ * that servlet container threads are not held while MongoDB answers.
+ * When all threads are busy and the queue is full a request is rejected
+ * at once with {@link ServiceBusyException} (503 with Retry-After)
+ * instead of waiting; so is a request that took longer than its
+ * timeout, by default session.service.executor.timeout-ms, and one that
+ * could not get a database connection in time (see MongoConfiguration).
+ * A write that times out after it started may still be committed, so
+ * retrying it could write twice; it is answered with
+ * {@link WriteTimeoutException} (504, without Retry-After) instead.
+ * Active, queued, rejected, timed out and database-busy counts are
+ * published to /metrics as session.executor.*.
+ */
+@Component
+public class RequestExecutor implements PublicMetrics, DisposableBean
+{
+    private static final int QUEUED = 0;
+    private static final int STARTED = 1;
+    private static final int TIMED_OUT = 2;
+
+    private final ThreadPoolExecutor executor;
+    private final long timeoutMillis;
+    private final int retryAfterSeconds;
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    private final AtomicLong databaseBusy = new AtomicLong();
+
+    @Autowired
+    public RequestExecutor(@Value("${session.service.executor.threads:32}") int threads,
+        @Value("${session.service.executor.queue-capacity:256}") int queueCapacity,
+        @Value("${session.service.executor.timeout-ms:30000}") long timeoutMillis,
+        @Value("${session.service.executor.retry-after-seconds:1}") int retryAfterSeconds)
+    {
+        this.timeoutMillis = timeoutMillis;
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+            (queueCapacity > 0) ? new ArrayBlockingQueue<Runnable>(queueCapacity) : new SynchronousQueue<Runnable>(),
+            new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable)
+                {
+                    Thread thread = new Thread(runnable, "session-executor-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    }
+
+    /**
+     * Runs task on the pool.  Its result, or the exception it throws, is
+     * handled by Spring MVC like the return value or exception of a
+     * handler method.
+     *
+     * @throws ServiceBusyException if the queue is full
+     */
+    public <T> DeferredResult<T> submit(Callable<T> task)
+    {
+        return submit(task, timeoutMillis);
+    }
+
+    /**
+     * Runs task on the pool, answering with {@link ServiceBusyException}
+     * if it is not done within timeoutMillis.  Only for tasks that can
+     * safely be retried.
+     *
+     * @throws ServiceBusyException if the queue is full
+     */
+    public <T> DeferredResult<T> submit(Callable<T> task, long timeoutMillis)
+    {
+        return submit(task, timeoutMillis, true);
+    }
+
+    /**
+     * Runs a task that writes on the pool.  If it is not done within
+     * timeoutMillis it is answered with {@link ServiceBusyException} if
+     * it had not started yet, otherwise with {@link WriteTimeoutException}.
+     *
+     * @throws ServiceBusyException if the queue is full
+     */
+    public <T> DeferredResult<T> submitWrite(Callable<T> task, long timeoutMillis)
+    {
+        return submit(task, timeoutMillis, false);
+    }
+
+    private <T> DeferredResult<T> submit(final Callable<T> task, long timeoutMillis, final boolean retryable)
+    {
+        // the timeout result is only created on timeout, exceptions are not cheap
+        final DeferredResult<T> result = new DeferredResult<T>(timeoutMillis);
+        final AtomicInteger state = new AtomicInteger(QUEUED);
+        result.onTimeout(new Runnable() {
+            @Override
+            public void run()
+            {
+                timedOut.incrementAndGet();
+                if (state.compareAndSet(QUEUED, TIMED_OUT) || retryable) {
+                    result.setErrorResult(new ServiceBusyException(retryAfterSeconds));
+                } else {
+                    result.setErrorResult(new WriteTimeoutException());
+                }
+            }
+        });
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run()
+                {
+                    if (!state.compareAndSet(QUEUED, STARTED)) {
+                        return; // timed out while queued
+                    }
+                    // an exception as result is handled like one thrown by the handler
+                    try {
+                        result.setResult(task.call());
+                    } catch (Throwable e) {
+                        if (isDatabaseBusy(e)) {
+                            databaseBusy.incrementAndGet();
+                            result.setErrorResult(new ServiceBusyException(retryAfterSeconds));
+                        } else {
+                            result.setErrorResult(e);
+                        }
+                        if (e instanceof Error) {
+                            throw (Error) e;
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            throw new ServiceBusyException(retryAfterSeconds);
+        }
+        return result;
+    }
+
+    // the connection pool and its wait queue were full, or no server answered
+    private static boolean isDatabaseBusy(Throwable e)
+    {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof MongoWaitQueueFullException || cause instanceof MongoTimeoutException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * For results that are known without any database work.
+     */
+    public static <T> DeferredResult<T> completed(T value)
+    {
+        DeferredResult<T> result = new DeferredResult<T>();
+        result.setResult(value);
+        return result;
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics()
+    {
+        Collection<Metric<?>> metrics = new ArrayList<Metric<?>>();
+        metrics.add(new Metric<Integer>("session.executor.active", executor.getActiveCount()));
+        metrics.add(new Metric<Integer>("session.executor.queued", executor.getQueue().size()));
+        metrics.add(new Metric<Long>("session.executor.rejected", rejected.get()));
+        metrics.add(new Metric<Long>("session.executor.timeouts", timedOut.get()));
+        metrics.add(new Metric<Long>("session.executor.database-busy", databaseBusy.get()));
+        return metrics;
+    }
+
+    @Override
+    public void destroy() throws InterruptedException
+    {
+        executor.shutdown();
+        executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Answered with 504, see {@link SessionServiceController#writeTimeout}.
+     * The write may or may not have been committed.
+     */
+    public static class WriteTimeoutException extends RuntimeException
+    {
+        public WriteTimeoutException()
+        {
+            super("the write did not finish in time, it may still take effect; read before writing again.");
+        }
+    }
+
+    /**
+     * Answered with 503 and a Retry-After header, see
+     * {@link SessionServiceController#serviceBusy}.
+     */
+    public static class ServiceBusyException extends RuntimeException
+    {
+        private final int retryAfterSeconds;
+
+        public ServiceBusyException(int retryAfterSeconds)
+        {
+            super("too many requests in progress, retry after " + retryAfterSeconds + " seconds.");
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        public int getRetryAfterSeconds()
+        {
+            return retryAfterSeconds;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.web;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.cbioportal.session_service.domain.SessionChangeFeed;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.context.ApplicationListener;
+import org.springframework.stereotype.Component;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+
+/**
+ * Keeps the serialized JSON of recently read sessions in memory, so that
+ * serving a hot session needs neither a database query nor serialization.
+ * Bounded by total bytes and by age; least recently used entries are 
+ * evicted first.  A session is no longer served from the cache once its
+ * expiresAt has passed, even if it was accessed since.  Hit, miss and eviction counts are published to
+ * /metrics as session.cache.*.
+ *
+ * Whoever changes or deletes a session must call {@link #invalidate}
+ * after the change is written.  Readers must take the {@link #generation}
+ * of the id before reading the database and pass it to {@link #put}, so
+ * that a read racing with a write can not leave the old version in the
+ * cache.  Generations are counted per stripe of ids, so a write only
+ * keeps reads of the few ids in its stripe from being cached.
+ * Sessions changed by other servers are invalidated when the
+ * {@link SessionChangeFeed} reports them.
+ */
+@Component
+public class SessionCache implements PublicMetrics, ApplicationListener<SessionChangeFeed.ChangeEvent>
+{
+    private final Cache<String, Entry> cache;
+    private final int maxEntryBytes;
+    private static final int STRIPES = 1024; // a power of two
+
+    private final AtomicLongArray generations = new AtomicLongArray(STRIPES);
+
+    @Autowired
+    public SessionCache(@Value("${session.service.cache.max-bytes:67108864}") long maxBytes,
+        @Value("${session.service.cache.max-entry-bytes:1048576}") int maxEntryBytes,
+        @Value("${session.service.cache.ttl-seconds:3600}") long ttlSeconds)
+    {
+        this.maxEntryBytes = maxEntryBytes;
+        this.cache = CacheBuilder.newBuilder()
+            .maximumWeight(maxBytes)
+            .weigher(new Weigher<String, Entry>() {
+                @Override
+                public int weigh(String id, Entry entry)
+                {
+                    return id.length() + entry.body.length;
+                }
+            })
+            .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+            .recordStats()
+            .build();
+    }
+
+    /**
+     * @return the cached session, or null if it is not cached or has
+     *  expired
+     */
+    public Entry get(String id)
+    {
+        Entry entry = cache.getIfPresent(id);
+        if (entry != null && entry.isExpired(new Date())) {
+            // accesses may have moved expiresAt, so the next read decides
+            cache.invalidate(id);
+            return null;
+        }
+        return entry;
+    }
+
+    public long generation(String id)
+    {
+        return generations.get(stripe(id));
+    }
+
+    /**
+     * Caches entry unless a session in the stripe of id was invalidated
+     * since generation was taken.  Sessions larger than max-entry-bytes
+     * are not cached.
+     */
+    public void put(String id, Entry entry, long generation)
+    {
+        int stripe = stripe(id);
+        if (entry.body.length > maxEntryBytes || generation != generations.get(stripe)) {
+            return;
+        }
+        cache.put(id, entry);
+        // an invalidation may have happened between the check and the put
+        if (generation != generations.get(stripe)) {
+            cache.invalidate(id);
+        }
+    }
+
+    public void invalidate(String id)
+    {
+        generations.incrementAndGet(stripe(id));
+        cache.invalidate(id);
+    }
+
+    static int stripe(String id)
+    {
+        int hash = id.hashCode();
+        return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+    }
+
+    @Override
+    public void onApplicationEvent(SessionChangeFeed.ChangeEvent event)
+    {
+        invalidate(event.getChange().getId());
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics()
+    {
+        CacheStats stats = cache.stats();
+        Collection<Metric<?>> metrics = new ArrayList<Metric<?>>();
+        metrics.add(new Metric<Long>("session.cache.hits", stats.hitCount()));
+        metrics.add(new Metric<Long>("session.cache.misses", stats.missCount()));
+        metrics.add(new Metric<Long>("session.cache.evictions", stats.evictionCount()));
+        metrics.add(new Metric<Long>("session.cache.size", cache.size()));
+        return metrics;
+    }
+
+    /**
+     * A serialized session, gzipped if it is stored compressed, its
+     * ETag (null if the session has no version), Cache-Control header
+     * (null for none) and the time it expires at (null for never).
+     */
+    public static class Entry
+    {
+        private final byte[] body;
+        private final String etag;
+        private final String cacheControl;
+        private final boolean gzipped;
+        private final Date expiresAt;
+
+        public Entry(byte[] body, String etag, String cacheControl, boolean gzipped, Date expiresAt)
+        {
+            this.body = body;
+            this.etag = etag;
+            this.cacheControl = cacheControl;
+            this.gzipped = gzipped;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired(Date now)
+        {
+            return expiresAt != null && !expiresAt.after(now);
+        }
+
+        public byte[] getBody()
+        {
+            return body;
+        }
+
+        public boolean isGzipped()
+        {
+            return gzipped;
+        }
+
+        public String getEtag()
+        {
+            return etag;
+        }
+
+        public String getCacheControl()
+        {
+            return cacheControl;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.web;
+
+import java.io.IOException;
+
+import org.cbioportal.session_service.domain.Session;
+import org.cbioportal.session_service.domain.SessionDataReader;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
+import org.springframework.stereotype.Component;
+
+/**
+ * Reads a @RequestBody Session by parsing the body as it arrives, within
+ * the limits of {@link SessionDataReader}, instead of reading it into a
+ * String first.  Like String bodies before, any content type is
+ * accepted.  Sessions are still written by Jackson.
+ */
+@Component
+public class SessionMessageConverter extends AbstractHttpMessageConverter<Session>
+{
+    private final SessionDataReader sessionDataReader;
+
+    @Autowired
+    public SessionMessageConverter(SessionDataReader sessionDataReader)
+    {
+        super(MediaType.ALL);
+        this.sessionDataReader = sessionDataReader;
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz)
+    {
+        return Session.class.equals(clazz);
+    }
+
+    @Override
+    public boolean canWrite(Class<?> clazz, MediaType mediaType)
+    {
+        return false;
+    }
+
+    @Override
+    protected Session readInternal(Class<? extends Session> clazz, HttpInputMessage inputMessage)
+        throws IOException
+    {
+        MediaType contentType = inputMessage.getHeaders().getContentType();
+        return sessionDataReader.read(inputMessage.getBody(), inputMessage.getHeaders().getContentLength(),
+            (contentType == null) ? null : contentType.getCharSet());
+    }
+
+    @Override
+    protected void writeInternal(Session session, HttpOutputMessage outputMessage)
+    {
+        throw new UnsupportedOperationException();
+    }
+}
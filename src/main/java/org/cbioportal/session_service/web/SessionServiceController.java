@@ -32,20 +32,64 @@
 
 package org.cbioportal.session_service.web;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.zip.GZIPOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 
+import javax.servlet.RequestDispatcher;
+import javax.servlet.http.HttpServletRequest;
+
+import org.cbioportal.session_service.domain.BulkOperation;
+import org.cbioportal.session_service.domain.RawSession;
 import org.cbioportal.session_service.domain.Session;
+import org.cbioportal.session_service.domain.SessionCompressor;
+import org.cbioportal.session_service.domain.SessionDataReader;
+import org.cbioportal.session_service.domain.SessionExpiry;
+import org.cbioportal.session_service.domain.SessionImporter;
+import org.cbioportal.session_service.domain.SessionPatch;
+import org.cbioportal.session_service.domain.SessionQuery;
+import org.cbioportal.session_service.domain.SessionJsonWriter;
 import org.cbioportal.session_service.domain.SessionRepository;
+import org.cbioportal.session_service.domain.UserSessionIndex;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.web.ErrorAttributes;
+import org.springframework.core.annotation.AnnotationUtils;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.MultiValueMap;
 import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.ServletRequestAttributes;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
 
 /**
  * @author Manda Wilson 
@@ -55,70 +99,850 @@ import org.springframework.web.bind.annotation.RestController;
 @RequestMapping(value = "/api/sessions/")
 public class SessionServiceController
 {
+    private static final String USER_ID_FIELD = "data.virtualCohort.userID";
+    private static final MediaType NDJSON = MediaType.parseMediaType("application/x-ndjson");
 
     private final SessionRepository sessionRepository;
+    private final SessionCache sessionCache;
+    private final ObjectMapper objectMapper;
+    private final RequestExecutor requestExecutor;
+    private final SessionWriteQueue sessionWriteQueue;
+    private final SessionExpiry sessionExpiry;
+    private final UserSessionIndex userSessionIndex;
+    private final SessionImporter sessionImporter;
+    private final SessionDataReader sessionDataReader;
+    private final ErrorAttributes errorAttributes;
+
+    @Value("${session.service.max-page-size:1000}")
+    private int maxPageSize;
+
+    @Value("${session.service.deduplicate:false}")
+    private boolean deduplicate;
+
+    @Value("${session.service.max-batch-size:1000}")
+    private int maxBatchSize;
+
+    @Value("${session.service.cache-control:}")
+    private String cacheControl;
+
+    @Value("${session.service.indexes:virtualCohort.userID}")
+    private String[] indexes;
+
+    // how long a request may take before it is answered with 503
+    @Value("${session.service.timeouts.read-ms:${session.service.executor.timeout-ms:30000}}")
+    private long readTimeoutMillis;
+
+    @Value("${session.service.timeouts.query-ms:${session.service.executor.timeout-ms:30000}}")
+    private long queryTimeoutMillis;
+
+    @Value("${session.service.timeouts.write-ms:${session.service.executor.timeout-ms:30000}}")
+    private long writeTimeoutMillis;
+
+    @Value("${session.service.timeouts.bulk-ms:${session.service.executor.timeout-ms:30000}}")
+    private long bulkTimeoutMillis;
 
     @Autowired
-    public SessionServiceController(SessionRepository sessionRepository)
+    public SessionServiceController(SessionRepository sessionRepository, SessionCache sessionCache,
+        ObjectMapper objectMapper, RequestExecutor requestExecutor, SessionWriteQueue sessionWriteQueue,
+        SessionExpiry sessionExpiry, UserSessionIndex userSessionIndex, SessionImporter sessionImporter,
+        SessionDataReader sessionDataReader, ErrorAttributes errorAttributes)
     {
         this.sessionRepository = sessionRepository;
+        this.sessionCache = sessionCache;
+        this.objectMapper = objectMapper;
+        this.requestExecutor = requestExecutor;
+        this.sessionWriteQueue = sessionWriteQueue;
+        this.sessionExpiry = sessionExpiry;
+        this.userSessionIndex = userSessionIndex;
+        this.sessionImporter = sessionImporter;
+        this.sessionDataReader = sessionDataReader;
+        this.errorAttributes = errorAttributes;
     }
     
+    /*
+     * If deduplication is on, posting data that equals the data of an
+     * existing session returns that session instead of creating a new one.
+     * Otherwise, if write-behind is on, the session is queued and written
+     * with others in one batch, see SessionWriteQueue.  If ttl is given 
+     * the session expires that many seconds after it was created, see 
+     * SessionExpiry.  The body is parsed by SessionMessageConverter.
+     */
     @RequestMapping(method = RequestMethod.POST)
-    public Session addSession(@RequestBody String data) 
+    public DeferredResult<ResponseEntity<Session>> addSession(@RequestBody final Session session,
+        @RequestParam(name="ttl", required=false) final Long ttl)
     {
-        return sessionRepository.save(new Session(data)); 
+        if (ttl != null && ttl < 1) {
+            throw new InvalidTtlException(ttl);
+        }
+        session.setTtl(ttl);
+        if (sessionWriteQueue.isEnabled() && !deduplicate) {
+            final SessionWriteQueue.Write write = sessionWriteQueue.add(session);
+            userSessionIndex.put(session.getId(), session);
+            // a new session has version 0
+            final ResponseEntity<Session> response = withETag(write.getSession(),
+                etag(0L, write.getSession().getChecksum()));
+            final DeferredResult<ResponseEntity<Session>> result = new DeferredResult<ResponseEntity<Session>>();
+            // also with ack=enqueue, so that a failed write leaves the user index
+            write.onDone(new Runnable() {
+                @Override
+                public void run()
+                {
+                    if (write.getError() == null) {
+                        result.setResult(response);
+                    } else {
+                        userSessionIndex.remove(write.getSession().getId());
+                        result.setErrorResult(new SessionNotWrittenException(write.getError()));
+                    }
+                }
+            });
+            if (sessionWriteQueue.getAck() == SessionWriteQueue.Ack.ENQUEUE) {
+                return RequestExecutor.completed(response);
+            }
+            return result;
+        }
+        return requestExecutor.submitWrite(new Callable<ResponseEntity<Session>>() {
+            @Override
+            public ResponseEntity<Session> call()
+            {
+                Session saved;
+                if (deduplicate) {
+                    saved = sessionRepository.insertIfAbsent(session);
+                } else {
+                    saved = sessionRepository.save(session); 
+                }
+                userSessionIndex.put(saved.getId(), saved);
+                return withETag(saved, etag(saved));
+            }
+        }, writeTimeoutMillis);
     }
 
     @RequestMapping(method = RequestMethod.GET)
-    public Iterable<Session> getSessions()
+    public ResponseEntity<StreamingResponseBody> getSessions()
+    {
+        StreamingResponseBody body = new StreamingResponseBody() {
+            @Override
+            public void writeTo(OutputStream outputStream) throws IOException
+            {
+                CloseableIterator<RawSession> sessions = sessionRepository.streamAll();
+                try {
+                    JsonGenerator generator = objectMapper.getFactory().createGenerator(outputStream);
+                    generator.writeStartArray();
+                    while (sessions.hasNext()) {
+                        SessionJsonWriter.write(sessions.next().getBson(), generator);
+                    }
+                    generator.writeEndArray();
+                    generator.flush();
+                } finally {
+                    sessions.close();
+                }
+            }
+        };
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(body);
+    }
+
+    /*
+     * Streams all sessions as newline delimited JSON, one session per
+     * line, for POST /_import to read back.  Sessions are read from a
+     * cursor, so the export never holds more than a batch in memory.
+     * The export is gzipped for clients that accept gzip.
+     */
+    @RequestMapping(value = "/_export", method = RequestMethod.GET)
+    public ResponseEntity<StreamingResponseBody> exportSessions(
+        @RequestHeader(value = "Accept-Encoding", required = false) String acceptEncoding)
+    {
+        final boolean gzip = acceptsGzip(acceptEncoding);
+        StreamingResponseBody body = new StreamingResponseBody() {
+            @Override
+            public void writeTo(OutputStream outputStream) throws IOException
+            {
+                OutputStream out = gzip ? new GZIPOutputStream(outputStream, 65536) : outputStream;
+                CloseableIterator<RawSession> sessions = sessionRepository.streamAll();
+                try {
+                    JsonGenerator generator = objectMapper.getFactory().createGenerator(out);
+                    generator.setRootValueSeparator(null);
+                    while (sessions.hasNext()) {
+                        SessionJsonWriter.write(sessions.next().getBson(), generator);
+                        generator.writeRaw('\n');
+                    }
+                    generator.flush();
+                    if (gzip) {
+                        ((GZIPOutputStream) out).finish();
+                    }
+                } finally {
+                    sessions.close();
+                }
+            }
+        };
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(NDJSON);
+        headers.set(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        if (gzip) {
+            headers.set(HttpHeaders.CONTENT_ENCODING, "gzip");
+        }
+        return new ResponseEntity<StreamingResponseBody>(body, headers, HttpStatus.OK);
+    }
+
+    /*
+     * Imports newline delimited JSON as written by GET /_export, gzipped
+     * if sent with Content-Encoding: gzip, see SessionImporter.  Sessions
+     * whose id exists are left as they are, so an import can be repeated;
+     * skip passes over that many lines first.  The import runs on the
+     * request thread, without the executor timeout, for as long as the
+     * body takes to read.
+     */
+    @RequestMapping(value = "/_import", method = RequestMethod.POST)
+    public SessionImporter.Result importSessions(HttpServletRequest request,
+        @RequestParam(name="skip", defaultValue="0") long skip) throws IOException
+    {
+        if (skip < 0) {
+            throw new InvalidImportException("skip must not be negative.");
+        }
+        return sessionImporter.importSessions(request.getInputStream(), skip);
+    }
+
+    /*
+     * Keyset pagination: returns at most limit sessions with an id greater
+     * than after, ordered by id.  If there may be more sessions a Link
+     * header with rel="next" points to the following page.
+     */
+    @RequestMapping(method = RequestMethod.GET, params = "limit")
+    public DeferredResult<ResponseEntity<List<Session>>> getSessions(
+        @RequestParam(name="after", required=false) final String after, @RequestParam(name="limit") final int limit)
     {
-        return sessionRepository.findAll();
+        if (limit < 1 || limit > maxPageSize) {
+            throw new InvalidPageSizeException(limit, maxPageSize);
+        }
+        if (after != null && after.isEmpty()) {
+            throw new InvalidPageTokenException(after);
+        }
+        // the current request is only known on this thread
+        final UriComponentsBuilder nextPage = ServletUriComponentsBuilder.fromCurrentRequest();
+        return requestExecutor.submit(new Callable<ResponseEntity<List<Session>>>() {
+            @Override
+            public ResponseEntity<List<Session>> call()
+            {
+                PageRequest pageRequest = new PageRequest(0, limit, Sort.Direction.ASC, "id");
+                List<Session> sessions = (after == null) ?
+                    sessionRepository.findAllBy(pageRequest) :
+                    sessionRepository.findByIdGreaterThan(after, pageRequest);
+
+                HttpHeaders headers = new HttpHeaders();
+                if (sessions.size() == limit) {
+                    String next = nextPage
+                        .replaceQueryParam("after", sessions.get(sessions.size() - 1).getId())
+                        .build().toUriString();
+                    headers.add(HttpHeaders.LINK, "<" + next + ">; rel=\"next\"");
+                }
+                return new ResponseEntity<List<Session>>(sessions, headers, HttpStatus.OK);
+            }
+        }, queryTimeoutMillis);
     }
 
+    /*
+     * Serves the serialized session from sessionCache when it is there,
+     * otherwise converts the stored BSON straight to JSON once and caches
+     * the bytes.  Sessions stored compressed are sent as stored, gzipped, 
+     * to clients that accept gzip.  If-None-Match is answered with 304
+     * after reading only the version and checksum of the session.
+     */
     @RequestMapping(value = "/{id}", method = RequestMethod.GET)
-    public Session getSession(@PathVariable String id) 
+    public DeferredResult<ResponseEntity<byte[]>> getSession(@PathVariable final String id,
+        @RequestHeader(value = "Accept-Encoding", required = false) final String acceptEncoding,
+        @RequestHeader(value = "If-None-Match", required = false) final String ifNoneMatch) throws IOException
+    {
+        Session queued = sessionWriteQueue.get(id);
+        if (queued != null) {
+            // not written yet, but its writer may read it back
+            SessionCache.Entry entry = new SessionCache.Entry(objectMapper.writeValueAsBytes(queued),
+                etag(0L, queued.getChecksum()), cacheControl(0L), false, null);
+            return RequestExecutor.completed(toResponse(entry, acceptEncoding, ifNoneMatch));
+        }
+        SessionCache.Entry entry = sessionCache.get(id);
+        if (entry != null) {
+            sessionExpiry.touch(id);
+            return RequestExecutor.completed(toResponse(entry, acceptEncoding, ifNoneMatch));
+        }
+        return requestExecutor.submit(new Callable<ResponseEntity<byte[]>>() {
+            @Override
+            public ResponseEntity<byte[]> call() throws IOException
+            {
+                if (ifNoneMatch != null) {
+                    Session current = sessionRepository.findVersionById(id);
+                    if (current == null) {
+                        throw new SessionNotFoundException(id);
+                    }
+                    sessionExpiry.touch(id);
+                    String etag = etag(current);
+                    if (matchesAny(ifNoneMatch, etag)) {
+                        HttpHeaders headers = cacheHeaders(etag, cacheControl(current.getVersion()));
+                        return new ResponseEntity<byte[]>(headers, HttpStatus.NOT_MODIFIED);
+                    }
+                }
+                long generation = sessionCache.generation(id);
+                RawSession session = sessionRepository.findRawById(id);
+                if (session == null) {
+                    throw new SessionNotFoundException(id);
+                }
+                sessionExpiry.touch(id);
+                SessionCache.Entry entry;
+                String etag = etag(session.getVersion(), session.getChecksum());
+                String cacheControl = cacheControl(session.getVersion());
+                if (session.getCompressed() != null) {
+                    entry = new SessionCache.Entry(session.getCompressed(), etag, cacheControl, true,
+                        session.getExpiresAt());
+                } else {
+                    ByteArrayOutputStream json = new ByteArrayOutputStream(session.getBson().length);
+                    JsonGenerator generator = objectMapper.getFactory().createGenerator(json);
+                    SessionJsonWriter.write(session.getBson(), generator);
+                    generator.close();
+                    entry = new SessionCache.Entry(json.toByteArray(), etag, cacheControl, false,
+                        session.getExpiresAt());
+                }
+                sessionCache.put(id, entry, generation);
+                return toResponse(entry, acceptEncoding, ifNoneMatch);
+            }
+        }, readTimeoutMillis);
+    }
+
+    private static ResponseEntity<byte[]> toResponse(SessionCache.Entry entry, String acceptEncoding,
+        String ifNoneMatch)
+    {
+        HttpHeaders headers = cacheHeaders(entry.getEtag(), entry.getCacheControl());
+        if (entry.isGzipped()) {
+            headers.set(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        }
+        if (matchesAny(ifNoneMatch, entry.getEtag())) {
+            return new ResponseEntity<byte[]>(headers, HttpStatus.NOT_MODIFIED);
+        }
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        byte[] body = entry.getBody();
+        if (entry.isGzipped()) {
+            if (acceptsGzip(acceptEncoding)) {
+                headers.set(HttpHeaders.CONTENT_ENCODING, "gzip");
+            } else {
+                body = SessionCompressor.gunzip(body);
+            }
+        }
+        return new ResponseEntity<byte[]>(body, headers, HttpStatus.OK);
+    }
+
+    /*
+     * Returns the sessions with the given ids, read with one query, as
+     * [{"id": ..., "status": "found", "session": {...}}, {"id": ..., "status": "not_found"}]
+     * in the order of the ids.  Sessions still in the write-behind queue
+     * are taken from there, as by GET.
+     */
+    @RequestMapping(value = "/_mget", method = RequestMethod.POST)
+    public DeferredResult<ResponseEntity<byte[]>> getSessionsByIds(HttpServletRequest request) throws IOException
+    {
+        final List<String> ids;
+        try {
+            ids = sessionDataReader.readIds(request.getInputStream(), request.getContentLengthLong(),
+                charset(request), maxBatchSize);
+        } catch (SessionDataReader.TooManyItemsException e) {
+            throw new BatchTooLargeException(maxBatchSize);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidBulkRequestException(e.getMessage());
+        }
+        return requestExecutor.submit(new Callable<ResponseEntity<byte[]>>() {
+            @Override
+            public ResponseEntity<byte[]> call() throws IOException
+            {
+                return writeSessionsByIds(ids);
+            }
+        }, readTimeoutMillis);
+    }
+
+    private ResponseEntity<byte[]> writeSessionsByIds(List<String> ids) throws IOException
+    {
+        // before the query, so that a session written meanwhile is found in one of both
+        Map<String, Session> queued = new HashMap<String, Session>();
+        for (String id : ids) {
+            Session session = sessionWriteQueue.get(id);
+            if (session != null) {
+                queued.put(id, session);
+            }
+        }
+        Map<String, RawSession> sessions = new HashMap<String, RawSession>();
+        for (RawSession session : sessionRepository.findRawByIds(new LinkedHashSet<String>(ids))) {
+            sessionExpiry.touch(session.getId());
+            sessions.put(session.getId(), session);
+        }
+
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        JsonGenerator generator = objectMapper.getFactory().createGenerator(json);
+        generator.writeStartArray();
+        for (String id : ids) {
+            RawSession session = sessions.get(id);
+            generator.writeStartObject();
+            generator.writeStringField("id", id);
+            if (session == null && queued.containsKey(id)) {
+                generator.writeStringField("status", "found");
+                generator.writeObjectField("session", queued.get(id));
+            } else if (session == null) {
+                generator.writeStringField("status", "not_found");
+            } else {
+                generator.writeStringField("status", "found");
+                generator.writeFieldName("session");
+                SessionJsonWriter.write(session.getBson(), generator);
+            }
+            generator.writeEndObject();
+        }
+        generator.writeEndArray();
+        generator.close();
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(json.toByteArray());
+    }
+
+    /*
+     * Runs [{"insert": {...}}, {"delete": "id"}, ...] as one unordered
+     * bulk write.  Each operation succeeds or fails on its own, so the
+     * response is 200 with the status of every operation in order.  The
+     * body is parsed within the limits of SessionDataReader, and is
+     * rejected as soon as it has more than max-batch-size operations.
+     */
+    @RequestMapping(value = "/_bulk", method = RequestMethod.POST)
+    public DeferredResult<List<BulkOperation>> bulk(HttpServletRequest request) throws IOException
     {
-        Session session = sessionRepository.findOne(id);
-        if (session != null) {
-            return session;
+        final List<BulkOperation> bulkOperations;
+        try {
+            bulkOperations = sessionDataReader.readBulk(request.getInputStream(), request.getContentLengthLong(),
+                charset(request), maxBatchSize);
+        } catch (SessionDataReader.TooManyItemsException e) {
+            throw new BatchTooLargeException(maxBatchSize);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidBulkRequestException(e.getMessage());
         }
-        throw new SessionNotFoundException(id);
+        return requestExecutor.submitWrite(new Callable<List<BulkOperation>>() {
+            @Override
+            public List<BulkOperation> call() throws InterruptedException
+            {
+                List<String> deletedIds = new ArrayList<String>();
+                for (BulkOperation operation : bulkOperations) {
+                    if (operation.getType() == BulkOperation.Type.DELETE) {
+                        deletedIds.add(operation.getId());
+                    }
+                }
+                sessionWriteQueue.awaitWritten(deletedIds);
+                sessionRepository.bulkWrite(bulkOperations, deduplicate);
+                for (BulkOperation operation : bulkOperations) {
+                    if (operation.getStatus() == BulkOperation.Status.DELETED) {
+                        sessionCache.invalidate(operation.getId());
+                        userSessionIndex.remove(operation.getId());
+                    } else if (operation.getStatus() == BulkOperation.Status.CREATED) {
+                        userSessionIndex.put(operation.getId(), operation.getSession());
+                    }
+                }
+                return bulkOperations;
+            }
+        }, bulkTimeoutMillis);
     }
 
+    /*
+     * Updates in a single findAndModify.  If an If-Match header is sent
+     * the update only happens if it matches the ETag of the stored
+     * session, otherwise 412 is returned.
+     */
     @RequestMapping(value = "/{id}", method = RequestMethod.PUT)
-    public Session updateSession(@PathVariable String id, @RequestBody String data)
+    public DeferredResult<ResponseEntity<Session>> updateSession(@PathVariable final String id,
+        @RequestBody final Session data, @RequestHeader(value = "If-Match", required = false) String ifMatch)
+    {
+        final Long version = parseIfMatch(id, ifMatch);
+        return requestExecutor.submitWrite(new Callable<ResponseEntity<Session>>() {
+            @Override
+            public ResponseEntity<Session> call() throws InterruptedException
+            {
+                sessionWriteQueue.awaitWritten(id);
+                Session updatedSession = sessionRepository.updateData(id, data, version);
+                if (updatedSession == null) {
+                    throw notUpdated(id, version);
+                }
+                sessionExpiry.touch(id);
+                sessionCache.invalidate(id);
+                userSessionIndex.put(id, updatedSession);
+                return withETag(updatedSession, etag(updatedSession));
+            }
+        }, writeTimeoutMillis);
+    }
+
+    /*
+     * Changes part of the data of a session with an RFC 6902 JSON Patch
+     * or an RFC 7396 merge patch, depending on the Content-Type.  If-Match
+     * works as for PUT.
+     */
+    @RequestMapping(value = "/{id}", method = RequestMethod.PATCH, consumes = "application/json-patch+json")
+    public DeferredResult<ResponseEntity<Session>> patchSession(@PathVariable String id,
+        HttpServletRequest request, @RequestHeader(value = "If-Match", required = false) String ifMatch)
+        throws IOException
+    {
+        return patchSession(id, readPatch(request, false), ifMatch);
+    }
+
+    @RequestMapping(value = "/{id}", method = RequestMethod.PATCH, consumes = "application/merge-patch+json")
+    public DeferredResult<ResponseEntity<Session>> mergePatchSession(@PathVariable String id,
+        HttpServletRequest request, @RequestHeader(value = "If-Match", required = false) String ifMatch)
+        throws IOException
+    {
+        return patchSession(id, readPatch(request, true), ifMatch);
+    }
+
+    private SessionPatch readPatch(HttpServletRequest request, boolean merge) throws IOException
     {
-        Session savedSession = sessionRepository.findOne(id);
-        if (savedSession != null) {
-            savedSession.setData(data);
-            return sessionRepository.save(savedSession);
+        try {
+            return sessionDataReader.readPatch(request.getInputStream(), request.getContentLengthLong(),
+                charset(request), merge);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidPatchException(e.getMessage());
         }
-        throw new SessionNotFoundException(id);
+    }
+
+    private DeferredResult<ResponseEntity<Session>> patchSession(final String id, final SessionPatch sessionPatch,
+        String ifMatch)
+    {
+        final Long version = parseIfMatch(id, ifMatch);
+        return requestExecutor.submitWrite(new Callable<ResponseEntity<Session>>() {
+            @Override
+            public ResponseEntity<Session> call() throws InterruptedException
+            {
+                sessionWriteQueue.awaitWritten(id);
+                Session patchedSession;
+                try {
+                    patchedSession = sessionRepository.patchData(id, sessionPatch, version);
+                } catch (SessionPatch.ConflictException e) {
+                    throw new PatchConflictException(e.getMessage());
+                }
+                if (patchedSession == null) {
+                    throw notUpdated(id, version);
+                }
+                sessionCache.invalidate(id);
+                userSessionIndex.put(id, patchedSession);
+                sessionExpiry.touch(id);
+                return withETag(patchedSession, etag(patchedSession));
+            }
+        }, writeTimeoutMillis);
     }
 
     @RequestMapping(value = "/{id}", method = RequestMethod.DELETE)
-    public void deleteSession(@PathVariable String id)
+    public DeferredResult<ResponseEntity<Void>> deleteSession(@PathVariable final String id,
+        @RequestHeader(value = "If-Match", required = false) String ifMatch)
     {
-        Session session = sessionRepository.findOne(id);
-        if (session != null) {
-            sessionRepository.delete(session);
-        } else {
-            throw new SessionNotFoundException(id);
-        }
+        final Long version = parseIfMatch(id, ifMatch);
+        return requestExecutor.submitWrite(new Callable<ResponseEntity<Void>>() {
+            @Override
+            public ResponseEntity<Void> call() throws InterruptedException
+            {
+                sessionWriteQueue.awaitWritten(id);
+                if (!sessionRepository.delete(id, version)) {
+                    throw notUpdated(id, version);
+                }
+                sessionCache.invalidate(id);
+                userSessionIndex.remove(id);
+                return ResponseEntity.ok().build();
+            }
+        }, writeTimeoutMillis);
     }
     
+    /*
+     * Returns the sessions whose data matches every data.* parameter, e.g.
+     * data.virtualCohort.userID=user@example.org; a parameter given more
+     * than once matches any of its values.  userid is short for
+     * data.virtualCohort.userID.  Only the paths in session.service.indexes
+     * can be filtered or sorted on (sort=data.path, -data.path for
+     * descending order), so no query reads every session.  If fields is
+     * given, e.g. fields=data.virtualCohort.name,data.virtualCohort.created
+     * only those parts of data are returned.  At most limit sessions are
+     * returned, max-page-size unless only userid and fields are given.
+     * Those queries are answered from memory if the UserSessionIndex has
+     * the fields, or knows the user has no sessions.
+     */
     @RequestMapping(value = "/query", method = RequestMethod.GET)
-    public List<Session> getSessionByUserID(@RequestParam(name="userid") String userid) 
+    public DeferredResult<List<Session>> getSessionByUserID(
+        @RequestParam(name="userid", required=false) final String userid,
+        @RequestParam(name="fields", required=false) final List<String> fields,
+        @RequestParam(name="sort", required=false) String sort,
+        @RequestParam(name="limit", required=false) Integer limit,
+        @RequestParam MultiValueMap<String, String> parameters)
+    {
+        if (fields != null) {
+            for (String field : fields) {
+                if (!field.equals("data") && !field.startsWith("data.")) {
+                    throw new InvalidFieldException(field);
+                }
+            }
+        }
+        final SessionQuery query = new SessionQuery();
+        for (Map.Entry<String, List<String>> parameter : parameters.entrySet()) {
+            if (parameter.getKey().startsWith("data.")) {
+                checkIndexed(parameter.getKey());
+                query.where(parameter.getKey(), parameter.getValue());
+            }
+        }
+        if (userid == null && query.getPredicates().isEmpty()) {
+            throw new InvalidQueryException("a query needs userid or a data. parameter.");
+        }
+        if (query.getPredicates().isEmpty() && sort == null && limit == null) {
+            return findByUserID(userid, fields);
+        }
+        if (userid != null) {
+            query.where(USER_ID_FIELD, Collections.singletonList(userid));
+        }
+        if (sort != null) {
+            boolean descending = sort.startsWith("-");
+            String sortField = descending ? sort.substring(1) : sort;
+            if (!sortField.equals("id")) {
+                checkIndexed(sortField);
+            }
+            query.sort(sortField, descending);
+        }
+        if (limit == null) {
+            limit = maxPageSize;
+        } else if (limit < 1 || limit > maxPageSize) {
+            throw new InvalidPageSizeException(limit, maxPageSize);
+        }
+        query.limit(limit).fields((fields == null) ? Collections.<String>emptyList() : fields);
+        return requestExecutor.submit(new Callable<List<Session>>() {
+            @Override
+            public List<Session> call()
+            {
+                List<Session> sessions = sessionRepository.find(query);
+                if (sessions.isEmpty() && userid != null) {
+                    throw new UserSessionNotFoundException(userid);
+                }
+                return sessions;
+            }
+        }, queryTimeoutMillis);
+    }
+
+    private DeferredResult<List<Session>> findByUserID(final String userid, final List<String> fields)
+    {
+        List<Session> indexed = userSessionIndex.find(userid, fields);
+        if (indexed != null) {
+            if (indexed.isEmpty()) {
+                throw new UserSessionNotFoundException(userid);
+            }
+            return RequestExecutor.completed(indexed);
+        }
+        return requestExecutor.submit(new Callable<List<Session>>() {
+            @Override
+            public List<Session> call()
+            {
+                List<Session> sessions;
+                if (fields == null || fields.isEmpty()) {
+                    sessions = sessionRepository.findVCByUserID(userid);
+                } else {
+                    sessions = sessionRepository.findVCByUserID(userid, fields);
+                }
+                if (sessions.size()!=0) {
+                    return sessions;
+                }
+                throw new UserSessionNotFoundException(userid);
+            }
+        }, queryTimeoutMillis);
+    }
+
+    // userid queries are always allowed, as they were before indexes were configurable
+    private void checkIndexed(String field)
     {
-        List<Session> sessions = sessionRepository.findVCByUserID(userid);
-        if (sessions.size()!=0) {
-            return sessions;
+        if (field.equals(USER_ID_FIELD)) {
+            return;
+        }
+        for (String path : indexes) {
+            if (field.equals("data." + path.trim())) {
+                return;
+            }
         }
-        throw new UserSessionNotFoundException(userid);
+        throw new InvalidQueryException("can not query " + field
+            + ", only paths in session.service.indexes can be filtered and sorted on.");
     }
     
 
+    // as SessionMessageConverter, null lets the parser detect the encoding
+    private static Charset charset(HttpServletRequest request)
+    {
+        String contentType = request.getContentType();
+        return (contentType == null) ? null : MediaType.parseMediaType(contentType).getCharSet();
+    }
+
+    /*
+     * True unless the Accept-Encoding header is missing, does not list
+     * gzip (or *), or gives it q=0.
+     */
+    private static boolean acceptsGzip(String acceptEncoding)
+    {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parameters = coding.split(";");
+            String name = parameters[0].trim();
+            if (name.equalsIgnoreCase("gzip") || name.equals("*")) {
+                for (int i = 1; i < parameters.length; i++) {
+                    String parameter = parameters[i].replace(" ", "");
+                    if (parameter.matches("q=0(\\.0*)?")) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String etag(Session session)
+    {
+        return etag(session.getVersion(), session.getChecksum());
+    }
+
+    /*
+     * "version-checksum": the version is what If-Match compares, the
+     * checksum of the data makes the ETag differ between sessions.
+     * Sessions without a version have no ETag.
+     */
+    private static String etag(Long version, String checksum)
+    {
+        if (version == null) {
+            return null;
+        }
+        return "\"" + version + ((checksum == null) ? "" : "-" + checksum) + "\"";
+    }
+
+    /*
+     * Sessions that were never updated get the configured Cache-Control, 
+     * updated ones must be revalidated with their ETag.
+     */
+    private String cacheControl(Long version)
+    {
+        if (cacheControl.isEmpty()) {
+            return null;
+        }
+        return (version != null && version == 0) ? cacheControl : "no-cache";
+    }
+
+    private static HttpHeaders cacheHeaders(String etag, String cacheControl)
+    {
+        HttpHeaders headers = new HttpHeaders();
+        if (etag != null) {
+            headers.setETag(etag);
+        }
+        if (cacheControl != null) {
+            headers.setCacheControl(cacheControl);
+        }
+        return headers;
+    }
+
+    /*
+     * If-None-Match compares weakly, so W/"1-ab" matches "1-ab".
+     */
+    private static boolean matchesAny(String ifNoneMatch, String etag)
+    {
+        if (ifNoneMatch == null || etag == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static <T> ResponseEntity<T> withETag(T body, String etag)
+    {
+        HttpHeaders headers = new HttpHeaders();
+        if (etag != null) {
+            headers.setETag(etag);
+        }
+        return new ResponseEntity<T>(body, headers, HttpStatus.OK);
+    }
+
+    /*
+     * Returns the version an If-Match header asks for, the part of the
+     * ETag before the checksum, or null if there is no header or it is "*".
+     */
+    private Long parseIfMatch(String id, String ifMatch)
+    {
+        if (ifMatch == null || ifMatch.trim().equals("*")) {
+            return null;
+        }
+        String etag = ifMatch.trim();
+        // weak ETags never match for If-Match, and we only send strong ones
+        if (etag.length() < 2 || !etag.startsWith("\"") || !etag.endsWith("\"")) {
+            throw new SessionVersionMismatchException(id);
+        }
+        String version = etag.substring(1, etag.length() - 1);
+        if (version.indexOf('-') >= 0) {
+            version = version.substring(0, version.indexOf('-'));
+        }
+        try {
+            return Long.valueOf(version);
+        } catch (NumberFormatException e) {
+            throw new SessionVersionMismatchException(id);
+        }
+    }
+
+    /*
+     * Only called when a write matched nothing, so the extra query is off 
+     * the normal path.
+     */
+    private RuntimeException notUpdated(String id, Long version)
+    {
+        if (version != null && sessionRepository.exists(id)) {
+            return new SessionVersionMismatchException(id);
+        }
+        return new SessionNotFoundException(id);
+    }
+
+    /*
+     * The container does not render error pages for errors sent after an
+     * asynchronous dispatch, so the exceptions of this controller get the
+     * same body here as Spring Boot's error page would give them.
+     */
+    @ExceptionHandler({SessionNotFoundException.class, SessionVersionMismatchException.class,
+        InvalidPageSizeException.class, InvalidPageTokenException.class, InvalidFieldException.class,
+        UserSessionNotFoundException.class, InvalidBulkRequestException.class, BatchTooLargeException.class,
+        SessionNotWrittenException.class, InvalidTtlException.class, InvalidPatchException.class,
+        PatchConflictException.class, InvalidQueryException.class})
+    public ResponseEntity<Map<String, Object>> handleError(Exception e, HttpServletRequest request)
+    {
+        ResponseStatus status = AnnotationUtils.findAnnotation(e.getClass(), ResponseStatus.class);
+        return error(status.value(), request, new HttpHeaders());
+    }
+
+    @ExceptionHandler(SessionDataReader.TooLargeException.class)
+    public ResponseEntity<Map<String, Object>> sessionTooLarge(SessionDataReader.TooLargeException e,
+        HttpServletRequest request)
+    {
+        return error(HttpStatus.PAYLOAD_TOO_LARGE, request, new HttpHeaders());
+    }
+
+    @ExceptionHandler(RequestExecutor.ServiceBusyException.class)
+    public ResponseEntity<Map<String, Object>> serviceBusy(RequestExecutor.ServiceBusyException e,
+        HttpServletRequest request)
+    {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.RETRY_AFTER, Integer.toString(e.getRetryAfterSeconds()));
+        return error(HttpStatus.SERVICE_UNAVAILABLE, request, headers);
+    }
+
+    @ExceptionHandler(RequestExecutor.WriteTimeoutException.class)
+    public ResponseEntity<Map<String, Object>> writeTimeout(RequestExecutor.WriteTimeoutException e,
+        HttpServletRequest request)
+    {
+        return error(HttpStatus.GATEWAY_TIMEOUT, request, new HttpHeaders());
+    }
+
+    private ResponseEntity<Map<String, Object>> error(HttpStatus status, HttpServletRequest request,
+        HttpHeaders headers)
+    {
+        request.setAttribute(RequestDispatcher.ERROR_STATUS_CODE, status.value());
+        request.setAttribute(RequestDispatcher.ERROR_REQUEST_URI, request.getRequestURI());
+        Map<String, Object> body = errorAttributes.getErrorAttributes(new ServletRequestAttributes(request), false);
+        return new ResponseEntity<Map<String, Object>>(body, headers, status);
+    }
+
     @ResponseStatus(HttpStatus.NOT_FOUND)
     class SessionNotFoundException extends RuntimeException {
 
@@ -127,6 +951,46 @@ public class SessionServiceController
         }
     }
     
+    @ResponseStatus(HttpStatus.PRECONDITION_FAILED)
+    class SessionVersionMismatchException extends RuntimeException {
+
+        public SessionVersionMismatchException(String id) {
+            super("session '" + id + "' does not match If-Match header.");
+        }
+    }
+
+    @ResponseStatus(HttpStatus.BAD_REQUEST)
+    class InvalidPageSizeException extends RuntimeException {
+
+        public InvalidPageSizeException(int limit, int maxPageSize) {
+            super("limit must be between 1 and " + maxPageSize + ", was " + limit + ".");
+        }
+    }
+
+    @ResponseStatus(HttpStatus.BAD_REQUEST)
+    class InvalidPageTokenException extends RuntimeException {
+
+        public InvalidPageTokenException(String after) {
+            super("invalid value for after '" + after + "'.");
+        }
+    }
+
+    @ResponseStatus(HttpStatus.BAD_REQUEST)
+    class InvalidFieldException extends RuntimeException {
+
+        public InvalidFieldException(String field) {
+            super("invalid field '" + field + "', fields must start with 'data.'.");
+        }
+    }
+
+    @ResponseStatus(HttpStatus.BAD_REQUEST)
+    class InvalidQueryException extends RuntimeException {
+
+        public InvalidQueryException(String message) {
+            super(message);
+        }
+    }
+
     @ResponseStatus(HttpStatus.NOT_FOUND)
     class UserSessionNotFoundException extends RuntimeException {
 
@@ -134,4 +998,60 @@ public class SessionServiceController
             super("could not find session(s) for the user '" + userid + "'.");
         }
     }
+
+    @ResponseStatus(HttpStatus.BAD_REQUEST)
+    class InvalidBulkRequestException extends RuntimeException {
+
+        public InvalidBulkRequestException(String message) {
+            super(message);
+        }
+    }
+
+    @ResponseStatus(HttpStatus.BAD_REQUEST)
+    class InvalidImportException extends RuntimeException {
+
+        public InvalidImportException(String message) {
+            super(message);
+        }
+    }
+
+    @ResponseStatus(HttpStatus.PAYLOAD_TOO_LARGE)
+    class BatchTooLargeException extends RuntimeException {
+
+        public BatchTooLargeException(int maxBatchSize) {
+            super("at most " + maxBatchSize + " items are allowed per request.");
+        }
+    }
+
+    @ResponseStatus(HttpStatus.BAD_REQUEST)
+    class InvalidPatchException extends RuntimeException {
+
+        public InvalidPatchException(String message) {
+            super(message);
+        }
+    }
+
+    @ResponseStatus(HttpStatus.CONFLICT)
+    class PatchConflictException extends RuntimeException {
+
+        public PatchConflictException(String message) {
+            super(message);
+        }
+    }
+
+    @ResponseStatus(HttpStatus.BAD_REQUEST)
+    class InvalidTtlException extends RuntimeException {
+
+        public InvalidTtlException(long ttl) {
+            super("ttl must be a positive number of seconds, was " + ttl + ".");
+        }
+    }
+
+    @ResponseStatus(HttpStatus.INTERNAL_SERVER_ERROR)
+    class SessionNotWrittenException extends RuntimeException {
+
+        public SessionNotWrittenException(String error) {
+            super("could not write session: " + error);
+        }
+    }
 }
@@ -0,0 +1,334 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.web;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.cbioportal.session_service.domain.BulkOperation;
+import org.cbioportal.session_service.domain.Session;
+import org.cbioportal.session_service.domain.SessionRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+/**
+ * Write-behind for new sessions: ids are assigned when a session is
+ * added, and a background thread writes the queued sessions with one
+ * bulk insert per batch-size sessions or per window-ms, whichever comes
+ * first.  With ack=flush the caller is answered once the batch holding
+ * its session is written, with ack=enqueue at once; sessions that then
+ * fail to be written are only logged and counted.
+ *
+ * Until they are written, queued sessions can be read with
+ * {@link #get}, and whoever updates or deletes one waits up to await-ms
+ * for it to be written.  The queue is written out before the service shuts
+ * down.  Queued, written and failed counts are published to /metrics
+ * as session.write-behind.*.
+ */
+@Component
+public class SessionWriteQueue implements PublicMetrics, DisposableBean
+{
+    private static final Logger log = LoggerFactory.getLogger(SessionWriteQueue.class);
+
+    public enum Ack { FLUSH, ENQUEUE }
+
+    private final SessionRepository sessionRepository;
+    private final boolean enabled;
+    private final Ack ack;
+    private final int batchSize;
+    private final long windowNanos;
+    private final long awaitMillis;
+    private final int retryAfterSeconds;
+    private final BlockingQueue<Write> queue;
+    private final ConcurrentMap<String, Write> pending = new ConcurrentHashMap<String, Write>();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final Thread flusher;
+    private volatile boolean stopped;
+
+    @Autowired
+    public SessionWriteQueue(SessionRepository sessionRepository,
+        @Value("${session.service.write-behind.enabled:false}") boolean enabled,
+        @Value("${session.service.write-behind.ack:flush}") String ack,
+        @Value("${session.service.write-behind.batch-size:500}") int batchSize,
+        @Value("${session.service.write-behind.window-ms:10}") long windowMillis,
+        @Value("${session.service.write-behind.queue-capacity:10000}") int queueCapacity,
+        @Value("${session.service.write-behind.await-ms:1000}") long awaitMillis,
+        @Value("${session.service.executor.retry-after-seconds:1}") int retryAfterSeconds)
+    {
+        this.sessionRepository = sessionRepository;
+        this.enabled = enabled;
+        this.ack = Ack.valueOf(ack.trim().toUpperCase(Locale.ENGLISH));
+        this.batchSize = batchSize;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.awaitMillis = awaitMillis;
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.queue = new ArrayBlockingQueue<Write>(queueCapacity);
+        this.flusher = new Thread(new Runnable() {
+            @Override
+            public void run()
+            {
+                flushUntilStopped();
+            }
+        }, "session-write-behind");
+        flusher.setDaemon(true);
+        if (enabled) {
+            flusher.start();
+        }
+    }
+
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    public Ack getAck()
+    {
+        return ack;
+    }
+
+    /**
+     * Assigns session its id and queues it.
+     *
+     * @throws RequestExecutor.ServiceBusyException if the queue is full
+     *         or the service is shutting down
+     */
+    public Write add(Session session)
+    {
+        Write write = new Write(BulkOperation.insert(session));
+        pending.put(session.getId(), write);
+        if (stopped || !queue.offer(write)) {
+            pending.remove(session.getId());
+            throw new RequestExecutor.ServiceBusyException(retryAfterSeconds);
+        }
+        return write;
+    }
+
+    /**
+     * Returns the session with the given id if it is queued, otherwise
+     * null.
+     */
+    public Session get(String id)
+    {
+        Write write = pending.get(id);
+        return (write == null) ? null : write.getSession();
+    }
+
+    /**
+     * Waits until the session with the given id is written, if it is
+     * queued, so that it can be updated or deleted.
+     *
+     * @throws RequestExecutor.ServiceBusyException if it is not written
+     *         within await-ms
+     */
+    public void awaitWritten(String id) throws InterruptedException
+    {
+        awaitWritten(Collections.singletonList(id));
+    }
+
+    /**
+     * The same for all of the given ids, within await-ms in total.
+     */
+    public void awaitWritten(Collection<String> ids) throws InterruptedException
+    {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(awaitMillis);
+        for (String id : ids) {
+            Write write = pending.get(id);
+            if (write != null && !write.written.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                throw new RequestExecutor.ServiceBusyException(retryAfterSeconds);
+            }
+        }
+    }
+
+    private void flushUntilStopped()
+    {
+        List<Write> batch = new ArrayList<Write>(batchSize);
+        while (!stopped || !queue.isEmpty()) {
+            try {
+                Write first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + windowNanos;
+                queue.drainTo(batch, batchSize - batch.size());
+                while (batch.size() < batchSize && !stopped) {
+                    Write next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                    queue.drainTo(batch, batchSize - batch.size());
+                }
+            } catch (InterruptedException e) {
+                // nothing interrupts this thread, but write what was taken
+            }
+            flush(batch);
+            batch.clear();
+        }
+    }
+
+    private void flush(List<Write> batch)
+    {
+        if (batch.isEmpty()) {
+            return;
+        }
+        List<BulkOperation> operations = new ArrayList<BulkOperation>(batch.size());
+        for (Write write : batch) {
+            operations.add(write.operation);
+        }
+        String error = null;
+        try {
+            sessionRepository.bulkWrite(operations, false);
+        } catch (RuntimeException e) {
+            log.error("could not write " + batch.size() + " queued sessions", e);
+            error = String.valueOf(e.getMessage());
+        }
+        batches.incrementAndGet();
+        for (Write write : batch) {
+            String writeError = (error != null) ? error : write.operation.getError();
+            if (writeError == null) {
+                written.incrementAndGet();
+            } else {
+                failed.incrementAndGet();
+                if (error == null) {
+                    log.error("could not write queued session " + write.operation.getId() + ": " + writeError);
+                }
+            }
+            pending.remove(write.operation.getId());
+            write.done(writeError);
+        }
+    }
+
+    /**
+     * Stops taking sessions and writes all that are queued.
+     */
+    @Override
+    public void destroy() throws InterruptedException
+    {
+        stopped = true;
+        if (enabled) {
+            flusher.join();
+        }
+        // added while stopping
+        List<Write> rest = new ArrayList<Write>();
+        queue.drainTo(rest);
+        flush(rest);
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics()
+    {
+        Collection<Metric<?>> metrics = new ArrayList<Metric<?>>();
+        metrics.add(new Metric<Integer>("session.write-behind.queued", queue.size()));
+        metrics.add(new Metric<Long>("session.write-behind.batches", batches.get()));
+        metrics.add(new Metric<Long>("session.write-behind.written", written.get()));
+        metrics.add(new Metric<Long>("session.write-behind.failed", failed.get()));
+        return metrics;
+    }
+
+    /**
+     * A queued session.
+     */
+    public static class Write
+    {
+        private final BulkOperation operation;
+        private final CountDownLatch written = new CountDownLatch(1);
+        private String error;
+        private Runnable listener;
+
+        Write(BulkOperation operation)
+        {
+            this.operation = operation;
+        }
+
+        public Session getSession()
+        {
+            return operation.getSession();
+        }
+
+        /**
+         * Why the session could not be written, or null if it was
+         * written or is still queued.
+         */
+        public synchronized String getError()
+        {
+            return error;
+        }
+
+        /**
+         * Runs listener once the session was written or failed to be
+         * written, at once if that already happened.
+         */
+        public void onDone(Runnable listener)
+        {
+            synchronized (this) {
+                if (written.getCount() > 0) {
+                    this.listener = listener;
+                    return;
+                }
+            }
+            listener.run();
+        }
+
+        private void done(String error)
+        {
+            Runnable listener;
+            synchronized (this) {
+                this.error = error;
+                written.countDown();
+                listener = this.listener;
+            }
+            if (listener != null) {
+                listener.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+import com.mongodb.WriteConcern;
+
+public class MongoConfigurationTest {
+
+    @Test
+    public void writeConcernByName() {
+        assertThat(MongoConfiguration.writeConcern("MAJORITY", 0), equalTo(WriteConcern.MAJORITY));
+        assertThat(MongoConfiguration.writeConcern(" journaled ", 0), equalTo(WriteConcern.JOURNALED));
+    }
+
+    @Test
+    public void writeConcernByNumberOfServers() {
+        assertThat(MongoConfiguration.writeConcern("2", 0).getW(), equalTo(2));
+    }
+
+    @Test
+    public void writeConcernWithTimeout() {
+        WriteConcern majority = MongoConfiguration.writeConcern("MAJORITY", 500);
+        assertThat(majority.getWString(), equalTo("majority"));
+        assertThat(majority.getWtimeout(), equalTo(500));
+        WriteConcern journaled = MongoConfiguration.writeConcern("JOURNALED", 500);
+        assertThat(journaled.getW(), equalTo(1));
+        assertThat(journaled.getJ(), equalTo(true));
+        assertThat(journaled.getWtimeout(), equalTo(500));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownWriteConcern() {
+        MongoConfiguration.writeConcern("most", 0);
+    }
+}
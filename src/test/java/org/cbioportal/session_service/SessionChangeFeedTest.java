@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+import java.net.URL;
+import java.util.Date;
+
+import org.cbioportal.session_service.domain.Session;
+import org.junit.*;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.IntegrationTest;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.boot.test.TestRestTemplate;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.http.*;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.web.client.RestTemplate;
+
+import com.mongodb.BasicDBObject;
+
+/**
+ * Same service as {@link SessionServiceTest}, reading from secondaries
+ * and following the session change feed, with changes of another server
+ * simulated by writing to the database and the feed directly.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = SessionService.class)
+@WebAppConfiguration
+@IntegrationTest({"server.port=0", "session.service.change-feed.enabled=true",
+    "session.service.read-preference=secondaryPreferred", "session.service.user-index.enabled=true"})
+@ActiveProfiles("test")
+public class SessionChangeFeedTest {
+
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    @Value("${local.server.port}")
+    private int port;
+
+    @Autowired
+    private MongoOperations mongoOperations;
+
+    private URL base;
+    private RestTemplate template;
+
+    @Before
+    public void setUp() throws Exception {
+        this.base = new URL("http://localhost:" + port + "/api/sessions/");
+        template = new TestRestTemplate();
+    }
+
+    @Test
+    public void changeOnOtherServerInvalidatesCache() throws Exception {
+        String id = addData("{\"title\":\"before\"}");
+        // read twice so the session is cached
+        template.getForObject(base.toString() + id, String.class);
+        assertThat(template.getForObject(base.toString() + id, String.class), containsString("before"));
+
+        mongoOperations.updateFirst(new Query(where("id").is(id)),
+            new Update().set("data.title", "after"), Session.class);
+        publishElsewhere(id, null, false);
+
+        assertThat(awaitGet(base.toString() + id, "after"), containsString("after"));
+    }
+
+    @Test
+    public void insertOnOtherServerUpdatesUserIndex() throws Exception {
+        String userID = "change-feed@example.org";
+        String url = base.toString() + "query?userid=" + userID + "&fields=data.virtualCohort.name";
+        String first = addData("{\"virtualCohort\":{\"name\":\"first\",\"userID\":\"" + userID + "\"}}");
+        assertThat(awaitGet(url, first), containsString(first));
+
+        Session second = new Session("{\"virtualCohort\":{\"name\":\"second\",\"userID\":\"" + userID + "\"}}");
+        mongoOperations.insert(second);
+        publishElsewhere(second.getId(), userID, false);
+
+        String sessions = awaitGet(url, second.getId());
+        assertThat(sessions, containsString(first));
+        assertThat(sessions, containsString("\"name\":\"second\""));
+
+        mongoOperations.remove(new Query(where("id").is(second.getId())), Session.class);
+        publishElsewhere(second.getId(), null, true);
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (template.getForObject(url, String.class).contains(second.getId())
+            && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertThat(template.getForObject(url, String.class), not(containsString(second.getId())));
+    }
+
+    private void publishElsewhere(String id, String userID, boolean deleted) {
+        BasicDBObject event = new BasicDBObject("instance", "another server")
+            .append("at", new Date())
+            .append("session", id)
+            .append("deleted", deleted);
+        if (userID != null) {
+            event.append("userID", userID);
+        }
+        mongoOperations.getCollection("session_changes").insert(event);
+    }
+
+    // the feed is followed in the background
+    private String awaitGet(String url, String expected) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        String body = template.getForObject(url, String.class);
+        while (!body.contains(expected) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+            body = template.getForObject(url, String.class);
+        }
+        return body;
+    }
+
+    private String addData(String data) throws Exception {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        ResponseEntity<String> response = template.exchange(base.toString(), HttpMethod.POST,
+            new HttpEntity<String>(data, headers), String.class);
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.OK));
+        String json = response.getBody();
+        assertThat(json, startsWith("{\"id\":\""));
+        return json.substring("{\"id\":\"".length(), json.indexOf('"', "{\"id\":\"".length()));
+    }
+}
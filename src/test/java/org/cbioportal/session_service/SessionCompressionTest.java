@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.URL;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.*;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.IntegrationTest;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.http.*;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * Same service as {@link SessionServiceTest}, with every session stored
+ * compressed.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = SessionService.class)
+@WebAppConfiguration
+@IntegrationTest({"server.port=0", "session.service.compression.enabled=true",
+    "session.service.compression.min-bytes=0"})
+@ActiveProfiles("test")
+public class SessionCompressionTest {
+
+    private static final String DATA = "{\"virtualCohort\":{\"name\":\"my cohort\",\"userID\":\"compressed@example.org\"}}";
+
+    @Value("${local.server.port}")
+    private int port;
+
+    private URL base;
+    private RestTemplate template;
+
+    @Before
+    public void setUp() throws Exception {
+        this.base = new URL("http://localhost:" + port + "/api/sessions/");
+        // a plain HttpURLConnection does not decompress responses itself
+        template = new RestTemplate(new SimpleClientHttpRequestFactory());
+    }
+
+    @Test
+    public void getSessionGzipped() throws Exception {
+        String id = addGzippedData(DATA);
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.ACCEPT_ENCODING, "gzip");
+        ResponseEntity<byte[]> response = template.exchange(base.toString() + id, HttpMethod.GET,
+            new HttpEntity<String>(headers), byte[].class);
+        assertThat(response.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING), equalTo("gzip"));
+        assertThat(new String(gunzip(response.getBody()), "UTF-8"), equalTo(expected(id)));
+
+        response = template.getForEntity(base.toString() + id, byte[].class);
+        assertThat(response.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING), nullValue());
+        assertThat(new String(response.getBody(), "UTF-8"), equalTo(expected(id)));
+    }
+
+    @Test
+    public void getSessionsDecompressed() throws Exception {
+        String id = addGzippedData(DATA);
+
+        String sessions = template.getForObject(base.toString(), String.class);
+        assertThat(sessions, containsString(expected(id)));
+        sessions = template.getForObject(base.toString() + "?limit=1000", String.class);
+        assertThat(sessions, containsString(expected(id)));
+    }
+
+    @Test
+    public void queryCompressedSessions() throws Exception {
+        String id = addGzippedData(DATA);
+
+        String sessions = template.getForObject(base.toString()
+            + "query?userid=compressed@example.org&fields=data.virtualCohort.name", String.class);
+        assertThat(sessions, containsString("{\"id\":\"" + id + "\",\"data\":{\"virtualCohort\":{\"name\":\"my cohort\"}}}"));
+    }
+
+    @Test
+    public void updateCompressedSession() throws Exception {
+        String id = addGzippedData(DATA);
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        template.exchange(base.toString() + id, HttpMethod.PUT,
+            new HttpEntity<String>("{\"updated\":true}", headers), String.class);
+
+        String session = template.getForObject(base.toString() + id, String.class);
+        assertThat(session, equalTo("{\"id\":\"" + id + "\",\"data\":{\"updated\":true}}"));
+    }
+
+    @Test
+    public void restoreCompressedSession() throws Exception {
+        String id = "restored-compressed";
+        ResponseEntity<String> response = importSessions(expected(id) + "\n");
+        assertThat(response.getBody(), startsWith("{\"lines\":1,\"created\":1,"));
+        assertThat(template.getForObject(base.toString() + id, String.class), equalTo(expected(id)));
+
+        String export = template.getForObject(base.toString() + "_export", String.class);
+        assertThat(export, containsString(expected(id) + "\n"));
+
+        // the export imports again
+        template.delete(base.toString() + id);
+        response = importSessions(export);
+        assertThat(response.getBody(), containsString("\"failed\":0,"));
+        assertThat(template.getForObject(base.toString() + id, String.class), equalTo(expected(id)));
+    }
+
+    private ResponseEntity<String> importSessions(String ndjson) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.parseMediaType("application/x-ndjson"));
+        return template.exchange(base.toString() + "_import", HttpMethod.POST,
+            new HttpEntity<String>(ndjson, headers), String.class);
+    }
+
+    private String addGzippedData(String data) throws Exception {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(body);
+        gzip.write(data.getBytes("UTF-8"));
+        gzip.close();
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        headers.set(HttpHeaders.CONTENT_ENCODING, "gzip");
+        ResponseEntity<String> response = template.exchange(base.toString(), HttpMethod.POST,
+            new HttpEntity<byte[]>(body.toByteArray(), headers), String.class);
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.OK));
+        String json = response.getBody();
+        assertThat(json, startsWith("{\"id\":\""));
+        return json.substring("{\"id\":\"".length(), json.indexOf('"', "{\"id\":\"".length()));
+    }
+
+    private String expected(String id) {
+        return "{\"id\":\"" + id + "\",\"data\":" + DATA + "}";
+    }
+
+    private byte[] gunzip(byte[] compressed) throws Exception {
+        GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(compressed));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = gzip.read(buffer)) != -1) {
+            bytes.write(buffer, 0, read);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+import java.net.URL;
+
+import org.junit.*;
+import org.junit.runner.RunWith;
+import org.cbioportal.session_service.domain.FileSessionRepository;
+import org.cbioportal.session_service.domain.SessionRepository;
+import org.springframework.aop.support.AopUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.IntegrationTest;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.boot.test.TestRestTemplate;
+import org.springframework.http.*;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * Same service as {@link SessionServiceTest}, storing sessions in a file
+ * instead of MongoDB.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = SessionService.class)
+@WebAppConfiguration
+@IntegrationTest({"server.port=0", "session.service.embedded.directory=target/embedded-session-data"})
+@ActiveProfiles("embedded")
+public class SessionEmbeddedStorageTest {
+
+    @Value("${local.server.port}")
+    private int port;
+
+    @Autowired
+    private SessionRepository sessionRepository;
+
+    private URL base;
+    private RestTemplate template;
+
+    @Before
+    public void setUp() throws Exception {
+        this.base = new URL("http://localhost:" + port + "/api/sessions/");
+        template = new TestRestTemplate();
+    }
+
+    @Test
+    public void storedInFile() throws Exception {
+        assertThat(AopUtils.getTargetClass(sessionRepository), typeCompatibleWith(FileSessionRepository.class));
+    }
+
+    @Test
+    public void crud() throws Exception {
+        String data = "{\"virtualCohort\":{\"name\":\"my cohort\",\"userID\":\"embedded@example.org\"}}";
+        ResponseEntity<String> response = template.exchange(base.toString(), HttpMethod.POST, json(data, null), String.class);
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.OK));
+        String id = response.getBody().replaceAll(".*\"id\":\"([^\"]+)\".*", "$1");
+        String etag = response.getHeaders().getETag();
+
+        response = template.getForEntity(base.toString() + id, String.class);
+        assertThat(response.getBody(), equalTo("{\"id\":\"" + id + "\",\"data\":" + data + "}"));
+
+        response = template.getForEntity(base.toString() + "query?userid=embedded@example.org", String.class);
+        assertThat(response.getBody(), containsString(id));
+
+        String updated = "{\"portal-session\":\"updated\"}";
+        response = template.exchange(base.toString() + id, HttpMethod.PUT, json(updated, etag), String.class);
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.OK));
+        response = template.exchange(base.toString() + id, HttpMethod.PUT, json(updated, etag), String.class);
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.PRECONDITION_FAILED));
+
+        template.delete(base.toString() + id);
+        response = template.getForEntity(base.toString() + id, String.class);
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.NOT_FOUND));
+    }
+
+    private static HttpEntity<String> json(String data, String ifMatch) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        if (ifMatch != null) {
+            headers.set(HttpHeaders.IF_MATCH, ifMatch);
+        }
+        return new HttpEntity<String>(data, headers);
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+import java.net.URL;
+
+import javax.servlet.MultipartConfigElement;
+
+import org.junit.*;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.IntegrationTest;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.boot.test.TestRestTemplate;
+import org.springframework.context.ApplicationContext;
+import org.springframework.http.*;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * The service as started with --session.service.fast-start=true.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = FastSessionService.class)
+@WebAppConfiguration
+@IntegrationTest({"server.port=0", "session.service.warmup.enabled=true",
+    "session.service.warmup.iterations=100"})
+@ActiveProfiles("test")
+public class SessionFastStartTest {
+
+    private static final long TIMEOUT_MILLIS = 30000;
+
+    @Value("${local.server.port}")
+    private int port;
+
+    @Autowired
+    private ApplicationContext context;
+
+    private URL base;
+    private RestTemplate template;
+
+    @Before
+    public void setUp() throws Exception {
+        this.base = new URL("http://localhost:" + port + "/api/sessions/");
+        template = new TestRestTemplate();
+    }
+
+    @Test
+    public void readyAfterWarmup() throws Exception {
+        String url = "http://localhost:" + port + "/health";
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        ResponseEntity<String> health = template.getForEntity(url, String.class);
+        while (health.getStatusCode() != HttpStatus.OK && System.currentTimeMillis() < deadline) {
+            assertThat(health.getStatusCode(), equalTo(HttpStatus.SERVICE_UNAVAILABLE));
+            Thread.sleep(50);
+            health = template.getForEntity(url, String.class);
+        }
+        assertThat(health.getStatusCode(), equalTo(HttpStatus.OK));
+    }
+
+    @Test
+    public void servesSessions() throws Exception {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        ResponseEntity<String> response = template.exchange(base.toString(), HttpMethod.POST,
+            new HttpEntity<String>("{\"portal-session\":\"fast\"}", headers), String.class);
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.OK));
+        String json = response.getBody();
+        String id = json.substring("{\"id\":\"".length(), json.indexOf('"', "{\"id\":\"".length()));
+
+        assertThat(template.getForObject(base.toString() + id, String.class),
+            equalTo("{\"id\":\"" + id + "\",\"data\":{\"portal-session\":\"fast\"}}"));
+        response = template.getForEntity(base.toString() + "not-a-session", String.class);
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.NOT_FOUND));
+        assertThat(response.getBody(), containsString("could not find session 'not-a-session'."));
+        assertThat(template.getForObject("http://localhost:" + port + "/metrics", String.class),
+            containsString("session.cache.hits"));
+    }
+
+    @Test
+    public void skipsUnusedAutoConfiguration() throws Exception {
+        assertThat(context.getBeansOfType(MultipartConfigElement.class).isEmpty(), equalTo(true));
+    }
+}
@@ -39,16 +39,26 @@ import java.net.URL;
 
 import org.junit.*;
 import org.junit.runner.RunWith;
+import org.bson.types.ObjectId;
+import org.cbioportal.session_service.domain.Session;
+import org.cbioportal.session_service.domain.SessionExpiry;
+import org.cbioportal.session_service.domain.SessionRepository;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.IntegrationTest;
 import org.springframework.boot.test.SpringApplicationConfiguration;
 import org.springframework.boot.test.TestRestTemplate;
+import org.springframework.data.mongodb.core.MongoOperations;
 import org.springframework.http.*;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import org.springframework.test.context.web.WebAppConfiguration;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.web.client.RestTemplate;
 
+import com.mongodb.BasicDBObject;
+import com.mongodb.MongoClient;
+import com.mongodb.WriteConcern;
+
 import java.util.regex.Pattern;
 import java.util.List;
 import java.util.ArrayList;
@@ -61,7 +71,10 @@ import java.util.regex.Matcher;
 @SpringApplicationConfiguration(classes = SessionService.class)
 @WebAppConfiguration
 // pick random port for testing
-@IntegrationTest({"server.port=0"})
+@IntegrationTest({"server.port=0", "session.service.cache-control=max-age=60",
+    "session.service.user-index.enabled=true", "session.service.indexes=virtualCohort.userID,virtualCohort.studyID",
+    "session.service.limits.max-bytes=65536", "session.service.limits.max-array-length=10000",
+    "session.service.mongo.connections-per-host=20", "session.service.mongo.max-wait-ms=2000"})
 // use application-test.properties config file
 @ActiveProfiles("test")
 public class SessionServiceTest {
@@ -70,6 +83,18 @@ public class SessionServiceTest {
     @Value("${local.server.port}")
     private int port;
 
+    @Autowired
+    private SessionRepository sessionRepository;
+
+    @Autowired
+    private SessionExpiry sessionExpiry;
+
+    @Autowired
+    private MongoClient mongoClient;
+
+    @Autowired
+    private MongoOperations mongoOperations;
+
     private URL base;
     private RestTemplate template;
 
@@ -108,6 +133,151 @@ public class SessionServiceTest {
         assertThat(response.getStatusCode(), equalTo(HttpStatus.OK));
     }
     
+    @Test
+    public void getSessionsPaginated() throws Exception {
+        // first add data
+        String data = "\"portal-session\":\"my session information\"";
+        addData(data);
+        addData(data);
+        addData(data);
+
+        // first page has two sessions and a link to the next page
+        ResponseEntity<String> response = template.getForEntity(base.toString() + "?limit=2", String.class);
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.OK));
+        List<String> firstPage = parseIds(response.getBody());
+        assertThat(firstPage.size(), equalTo(2));
+        String link = response.getHeaders().getFirst(HttpHeaders.LINK);
+        assertThat(link, containsString("after=" + firstPage.get(1)));
+        assertThat(link, containsString("rel=\"next\""));
+
+        // second page has the remaining session and no link
+        response = template.getForEntity(base.toString() + "?limit=2&after=" + firstPage.get(1), String.class);
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.OK));
+        List<String> secondPage = parseIds(response.getBody());
+        assertThat(secondPage.size(), equalTo(1));
+        assertThat(firstPage, not(hasItem(secondPage.get(0))));
+        assertThat(response.getHeaders().getFirst(HttpHeaders.LINK), equalTo(null));
+    }
+
+    @Test
+    public void getSessionsPaginatedWithStringIds() throws Exception {
+        String first = parseIds(addData("\"portal-session\":\"new\"").getBody()).get(0);
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.parseMediaType("application/x-ndjson"));
+        template.exchange(base.toString() + "_import", HttpMethod.POST, new HttpEntity<String>(
+            "{\"id\":\"restored-a\",\"data\":{}}\n{\"id\":\"restored-b\",\"data\":{}}\n", headers), String.class);
+        String last = parseIds(addData("\"portal-session\":\"newer\"").getBody()).get(0);
+
+        // one session per page reaches all of them, past the string ids
+        List<String> ids = new ArrayList<String>();
+        String after = null;
+        for (int page = 0; page < 5; page++) {
+            ResponseEntity<String> response = template.getForEntity(base.toString() + "?limit=1"
+                + ((after == null) ? "" : "&after=" + after), String.class);
+            assertThat(response.getStatusCode(), equalTo(HttpStatus.OK));
+            ids.addAll(parseIds(response.getBody()));
+            if (response.getHeaders().getFirst(HttpHeaders.LINK) == null) {
+                break;
+            }
+            after = ids.get(ids.size() - 1);
+        }
+        assertThat(ids, containsInAnyOrder("restored-a", "restored-b", first, last));
+    }
+
+    @Test
+    public void getSessionsInvalidLimit() throws Exception {
+        ResponseEntity<String> response = template.getForEntity(base.toString() + "?limit=0", String.class);
+        assertThat(response.getBody(), containsString("org.cbioportal.session_service.web.SessionServiceController$InvalidPageSizeException"));
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.BAD_REQUEST));
+    }
+
+    @Test
+    public void getSessionByUserID() throws Exception {
+        String data = "\"virtualCohort\":{\"userID\":\"user@example.org\",\"name\":\"my cohort\",\"description\":\"anything goes\"}";
+        addData(data);
+        addData("\"virtualCohort\":{\"userID\":\"someone.else@example.org\"}");
+
+        ResponseEntity<String> response = template.getForEntity(base.toString() + "query?userid=user@example.org", String.class);
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.OK));
+        assertThat(expectedResponse(response.getBody(), data, true), equalTo(true)); 
+
+        // only the requested fields
+        response = template.getForEntity(base.toString() + "query?userid=user@example.org&fields=data.virtualCohort.name", String.class);
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.OK));
+        assertThat(expectedResponse(response.getBody(), "\"virtualCohort\":{\"name\":\"my cohort\"}", true), equalTo(true)); 
+
+        response = template.getForEntity(base.toString() + "query?userid=user@example.org&fields=checksum", String.class);
+        assertThat(response.getBody(), containsString("org.cbioportal.session_service.web.SessionServiceController$InvalidFieldException"));
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.BAD_REQUEST));
+
+        response = template.getForEntity(base.toString() + "query?userid=nobody@example.org", String.class);
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.NOT_FOUND));
+    }
+
+    @Test
+    public void querySessions() throws Exception {
+        String first = parseIds(addData("\"virtualCohort\":{\"userID\":\"a@example.org\",\"studyID\":\"study1\",\"name\":\"first\"}").getBody()).get(0);
+        String second = parseIds(addData("\"virtualCohort\":{\"userID\":\"b@example.org\",\"studyID\":\"study1\",\"name\":\"second\"}").getBody()).get(0);
+        String third = parseIds(addData("\"virtualCohort\":{\"userID\":\"b@example.org\",\"studyID\":\"study2\",\"name\":\"third\"}").getBody()).get(0);
+
+        ResponseEntity<String> response = template.getForEntity(base.toString() + "query?data.virtualCohort.studyID=study1", String.class);
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.OK));
+        assertThat(parseIds(response.getBody()), contains(first, second));
+
+        response = template.getForEntity(base.toString() + "query?data.virtualCohort.studyID=study1&sort=-id&limit=1", String.class);
+        assertThat(parseIds(response.getBody()), contains(second));
+
+        response = template.getForEntity(base.toString()
+            + "query?userid=b@example.org&data.virtualCohort.studyID=study1&data.virtualCohort.studyID=study2", String.class);
+        assertThat(parseIds(response.getBody()), contains(second, third));
+
+        response = template.getForEntity(base.toString()
+            + "query?data.virtualCohort.studyID=study1&sort=-data.virtualCohort.userID&fields=data.virtualCohort.name", String.class);
+        assertThat(response.getBody(), equalTo("[{\"id\":\"" + second + "\",\"data\":{\"virtualCohort\":{\"name\":\"second\"}}},"
+            + "{\"id\":\"" + first + "\",\"data\":{\"virtualCohort\":{\"name\":\"first\"}}}]"));
+
+        response = template.getForEntity(base.toString() + "query?data.virtualCohort.studyID=study3", String.class);
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.OK));
+        assertThat(response.getBody(), equalTo("[]"));
+    }
+
+    @Test
+    public void querySessionsByPathThatIsNotIndexed() throws Exception {
+        ResponseEntity<String> response = template.getForEntity(base.toString() + "query?data.virtualCohort.name=first", String.class);
+        assertThat(response.getBody(), containsString("org.cbioportal.session_service.web.SessionServiceController$InvalidQueryException"));
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.BAD_REQUEST));
+
+        response = template.getForEntity(base.toString()
+            + "query?data.virtualCohort.studyID=study1&sort=data.virtualCohort.name", String.class);
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.BAD_REQUEST));
+
+        response = template.getForEntity(base.toString() + "query?data.virtualCohort.studyID=study1&limit=0", String.class);
+        assertThat(response.getBody(), containsString("org.cbioportal.session_service.web.SessionServiceController$InvalidPageSizeException"));
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.BAD_REQUEST));
+    }
+
+    @Test
+    public void getSessionByUserIDFromIndex() throws Exception {
+        String id = parseIds(addData("\"virtualCohort\":{\"userID\":\"indexed@example.org\",\"name\":\"before\"}").getBody()).get(0);
+        template.exchange(base.toString() + id, HttpMethod.PUT,
+            prepareJson("{\"virtualCohort\":{\"userID\":\"indexed@example.org\",\"name\":\"after\"}}"), String.class);
+        String hits = "\"session.user-index.hits\":";
+        String metrics = template.getForObject("http://localhost:" + port + "/metrics", String.class);
+        long before = Long.parseLong(metrics.replaceAll(".*" + hits + "(\\d+).*", "$1"));
+
+        ResponseEntity<String> response = template.getForEntity(base.toString()
+            + "query?userid=indexed@example.org&fields=data.virtualCohort.name", String.class);
+        assertThat(response.getBody(), equalTo("[{\"id\":\"" + id + "\",\"data\":{\"virtualCohort\":{\"name\":\"after\"}}}]"));
+
+        template.delete(base.toString() + id);
+        response = template.getForEntity(base.toString()
+            + "query?userid=indexed@example.org&fields=data.virtualCohort.name", String.class);
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.NOT_FOUND));
+
+        metrics = template.getForObject("http://localhost:" + port + "/metrics", String.class);
+        assertThat(Long.parseLong(metrics.replaceAll(".*" + hits + "(\\d+).*", "$1")), equalTo(before + 2));
+    }
+
     @Test
     public void addSession() throws Exception {
         // add data
@@ -141,6 +311,38 @@ public class SessionServiceTest {
         assertThat(response.getStatusCode(), equalTo(HttpStatus.INTERNAL_SERVER_ERROR));
     }
 
+    @Test
+    public void addSessionTooLarge() throws Exception {
+        StringBuilder data = new StringBuilder("\"portal-session\":\"");
+        for (int i = 0; i < 65536; i++) {
+            data.append('x');
+        }
+        ResponseEntity<String> response = addData(data.append('"').toString());
+        assertThat(response.getBody(), containsString("org.cbioportal.session_service.domain.SessionDataReader$TooLargeException"));
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.PAYLOAD_TOO_LARGE));
+
+        StringBuilder array = new StringBuilder("\"samples\":[0");
+        for (int i = 0; i < 10000; i++) {
+            array.append(",0");
+        }
+        response = addData(array.append(']').toString());
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.PAYLOAD_TOO_LARGE));
+
+        StringBuilder nested = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            nested.append("\"a\":{");
+        }
+        for (int i = 0; i < 100; i++) {
+            nested.append('}');
+        }
+        response = addData(nested.toString());
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.PAYLOAD_TOO_LARGE));
+
+        String id = parseIds(addData("\"portal-session\":\"small\"").getBody()).get(0);
+        response = template.exchange(base.toString() + id, HttpMethod.PUT, prepareData(nested.toString()), String.class);
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.PAYLOAD_TOO_LARGE));
+    }
+
     @Test
     public void getSession() throws Exception {
         // first add data
@@ -187,6 +389,166 @@ public class SessionServiceTest {
         assertThat(response.getStatusCode(), equalTo(HttpStatus.OK));
     }
 
+    @Test
+    public void getSessionAfterUpdateAndDelete() throws Exception {
+        String data = "\"portal-session\":\"my session information\"";
+        ResponseEntity<String> response = addData(data);
+        String id = parseIds(response.getBody()).get(0);
+
+        // read twice so the second read can come from the cache
+        template.getForEntity(base.toString() + id, String.class);
+        response = template.getForEntity(base.toString() + id, String.class);
+        assertThat(expectedResponse(response.getBody(), data), equalTo(true)); 
+
+        // update must not leave the old data cached
+        data = "\"portal-session\":\"my session UPDATED information\"";
+        template.exchange(base.toString() + id, HttpMethod.PUT, prepareData(data), String.class);
+        response = template.getForEntity(base.toString() + id, String.class);
+        assertThat(expectedResponse(response.getBody(), data), equalTo(true)); 
+
+        // neither must delete
+        template.delete(base.toString() + id);
+        response = template.getForEntity(base.toString() + id, String.class);
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.NOT_FOUND));
+    }
+
+    @Test
+    public void updateSessionIfMatch() throws Exception {
+        String data = "\"portal-session\":\"my session information\"";
+        ResponseEntity<String> response = addData(data);
+        String id = parseIds(response.getBody()).get(0);
+        String etag = response.getHeaders().getETag();
+        assertThat(etag, notNullValue());
+
+        // update with the current ETag succeeds and changes the ETag
+        data = "\"portal-session\":\"my session UPDATED information\"";
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        headers.set(HttpHeaders.IF_MATCH, etag);
+        HttpEntity<String> entity = new HttpEntity<String>("{" + data + "}", headers);
+        response = template.exchange(base.toString() + id, HttpMethod.PUT, entity, String.class);
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.OK));
+        assertThat(expectedResponse(response.getBody(), data), equalTo(true)); 
+        String newEtag = response.getHeaders().getETag();
+        assertThat(newEtag, not(equalTo(etag)));
+
+        // the old ETag no longer matches
+        response = template.exchange(base.toString() + id, HttpMethod.PUT, entity, String.class);
+        assertThat(response.getBody(), containsString("org.cbioportal.session_service.web.SessionServiceController$SessionVersionMismatchException"));
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.PRECONDITION_FAILED));
+
+        response = template.exchange(base.toString() + id, HttpMethod.DELETE, new HttpEntity<String>(headers), String.class);
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.PRECONDITION_FAILED));
+
+        headers.set(HttpHeaders.IF_MATCH, newEtag);
+        response = template.exchange(base.toString() + id, HttpMethod.DELETE, new HttpEntity<String>(headers), String.class);
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.OK));
+    }
+
+    @Test
+    public void getSessionIfNoneMatch() throws Exception {
+        ResponseEntity<String> response = addData("\"portal-session\":\"my session information\"");
+        String id = parseIds(response.getBody()).get(0);
+        String etag = response.getHeaders().getETag();
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.IF_NONE_MATCH, etag);
+
+        // not cached yet, then cached
+        for (int i = 0; i < 2; i++) {
+            response = template.exchange(base.toString() + id, HttpMethod.GET, new HttpEntity<String>(headers), String.class);
+            assertThat(response.getStatusCode(), equalTo(HttpStatus.NOT_MODIFIED));
+            assertThat(response.getHeaders().getETag(), equalTo(etag));
+            assertThat(response.getHeaders().getCacheControl(), equalTo("max-age=60"));
+            response = template.getForEntity(base.toString() + id, String.class);
+            assertThat(response.getStatusCode(), equalTo(HttpStatus.OK));
+            assertThat(response.getHeaders().getETag(), equalTo(etag));
+        }
+
+        // an updated session has a new ETag and must be revalidated
+        String data = "\"portal-session\":\"my session UPDATED information\"";
+        template.put(base.toString() + id, prepareData(data));
+        response = template.exchange(base.toString() + id, HttpMethod.GET, new HttpEntity<String>(headers), String.class);
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.OK));
+        assertThat(expectedResponse(response.getBody(), data), equalTo(true));
+        assertThat(response.getHeaders().getETag(), not(equalTo(etag)));
+        assertThat(response.getHeaders().getCacheControl(), equalTo("no-cache"));
+    }
+
+    @Test
+    public void patchSession() throws Exception {
+        String data = "\"virtualCohort\":{\"name\":\"my cohort\",\"samples\":[\"a\",\"b\"]}";
+        ResponseEntity<String> response = addData(data);
+        String id = parseIds(response.getBody()).get(0);
+        String etag = response.getHeaders().getETag();
+
+        // changed in place
+        response = patch(id, "application/json-patch+json",
+            "[{\"op\":\"replace\",\"path\":\"/virtualCohort/name\",\"value\":\"renamed\"},"
+            + "{\"op\":\"add\",\"path\":\"/virtualCohort/samples/-\",\"value\":\"c\"}]", etag);
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.OK));
+        data = "\"virtualCohort\":{\"name\":\"renamed\",\"samples\":[\"a\",\"b\",\"c\"]}";
+        assertThat(expectedResponse(response.getBody(), data), equalTo(true));
+        etag = response.getHeaders().getETag();
+
+        // read, patched and written back
+        response = patch(id, "application/json-patch+json",
+            "[{\"op\":\"test\",\"path\":\"/virtualCohort/name\",\"value\":\"renamed\"},"
+            + "{\"op\":\"remove\",\"path\":\"/virtualCohort/samples/0\"}]", null);
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.OK));
+        data = "\"virtualCohort\":{\"name\":\"renamed\",\"samples\":[\"b\",\"c\"]}";
+        response = template.getForEntity(base.toString() + id, String.class);
+        assertThat(expectedResponse(response.getBody(), data), equalTo(true));
+
+        response = patch(id, "application/merge-patch+json", "{\"virtualCohort\":{\"samples\":null}}", null);
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.OK));
+        data = "\"virtualCohort\":{\"name\":\"renamed\"}";
+        assertThat(expectedResponse(response.getBody(), data), equalTo(true));
+        // the same data as a new session has the same ETag hash
+        assertThat(response.getHeaders().getETag(),
+            endsWith(addData(data).getHeaders().getETag().substring(2)));
+
+        // the ETag of the first patch is outdated
+        response = patch(id, "application/merge-patch+json", "{\"virtualCohort\":null}", etag);
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.PRECONDITION_FAILED));
+    }
+
+    @Test
+    public void patchSessionConflict() throws Exception {
+        String id = parseIds(addData("\"portal-session\":\"patch me\"").getBody()).get(0);
+        ResponseEntity<String> response = patch(id, "application/json-patch+json",
+            "[{\"op\":\"test\",\"path\":\"/portal-session\",\"value\":\"other\"}]", null);
+        assertThat(response.getBody(), containsString("org.cbioportal.session_service.web.SessionServiceController$PatchConflictException"));
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.CONFLICT));
+
+        response = patch(id, "application/json-patch+json", "{\"op\":\"remove\"}", null);
+        assertThat(response.getBody(), containsString("org.cbioportal.session_service.web.SessionServiceController$InvalidPatchException"));
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.BAD_REQUEST));
+
+        response = patch(MISSING_ID, "application/merge-patch+json", "{}", null);
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.NOT_FOUND));
+    }
+
+    @Test
+    public void patchSessionWithoutVersion() throws Exception {
+        // as written before versions and checksums were added
+        ObjectId id = new ObjectId();
+        mongoOperations.getCollection(mongoOperations.getCollectionName(Session.class)).insert(
+            new BasicDBObject("_id", id).append("data", new BasicDBObject("portal-session", "legacy")));
+
+        ResponseEntity<String> response = patch(id.toString(), "application/merge-patch+json",
+            "{\"name\":\"patched\"}", null);
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.OK));
+        String data = "\"portal-session\":\"legacy\",\"name\":\"patched\"";
+        assertThat(expectedResponse(response.getBody(), data), equalTo(true));
+        // the checksum was written with the patched data
+        assertThat(response.getHeaders().getETag(),
+            endsWith(addData(data).getHeaders().getETag().substring(2)));
+
+        response = patch(id.toString(), "application/json-patch+json",
+            "[{\"op\":\"test\",\"path\":\"/name\",\"value\":\"patched\"}]", null);
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.OK));
+    }
+
     @Test
     public void updateSessionInvalidData() throws Exception {
         String data = "\"portal-session\":{\"arg1\":\"first argument\"}";
@@ -262,6 +624,212 @@ public class SessionServiceTest {
     }
 
 
+    // a valid id that no session has
+    private static final String MISSING_ID = "000000000000000000000000";
+
+    @Test
+    public void getSessionsByIds() throws Exception {
+        String id1 = parseIds(addData("\"portal-session\":\"first\"").getBody()).get(0);
+        String id2 = parseIds(addData("\"portal-session\":\"second\"").getBody()).get(0);
+
+        HttpEntity<String> entity = prepareJson("[\"" + id2 + "\", \"" + MISSING_ID + "\", \"" + id1 + "\"]");
+        ResponseEntity<String> response = template.exchange(base.toString() + "_mget", HttpMethod.POST, entity, String.class);
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.OK));
+        assertThat(response.getBody(), equalTo("["
+            + "{\"id\":\"" + id2 + "\",\"status\":\"found\",\"session\":{\"id\":\"" + id2 + "\",\"data\":{\"portal-session\":\"second\"}}},"
+            + "{\"id\":\"" + MISSING_ID + "\",\"status\":\"not_found\"},"
+            + "{\"id\":\"" + id1 + "\",\"status\":\"found\",\"session\":{\"id\":\"" + id1 + "\",\"data\":{\"portal-session\":\"first\"}}}"
+            + "]"));
+    }
+
+    @Test
+    public void getSessionsByIdsTooMany() throws Exception {
+        StringBuilder ids = new StringBuilder("[\"id\"");
+        for (int i = 0; i < 1000; i++) {
+            ids.append(",\"id\"");
+        }
+        ids.append("]");
+        ResponseEntity<String> response = template.exchange(base.toString() + "_mget", HttpMethod.POST,
+            prepareJson(ids.toString()), String.class);
+        assertThat(response.getBody(), containsString("org.cbioportal.session_service.web.SessionServiceController$BatchTooLargeException"));
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.PAYLOAD_TOO_LARGE));
+    }
+
+    @Test
+    public void bulkInsertAndDelete() throws Exception {
+        String id = parseIds(addData("\"portal-session\":\"delete me\"").getBody()).get(0);
+
+        HttpEntity<String> entity = prepareJson("[{\"insert\":{\"portal-session\":\"bulk\"}},"
+            + "{\"delete\":\"" + id + "\"},{\"delete\":\"" + MISSING_ID + "\"}]");
+        ResponseEntity<String> response = template.exchange(base.toString() + "_bulk", HttpMethod.POST, entity, String.class);
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.OK));
+        List<String> ids = parseIds(response.getBody());
+        assertThat(ids.size(), equalTo(3));
+        assertThat(response.getBody(), equalTo("["
+            + "{\"operation\":\"insert\",\"id\":\"" + ids.get(0) + "\",\"status\":\"created\"},"
+            + "{\"operation\":\"delete\",\"id\":\"" + id + "\",\"status\":\"deleted\"},"
+            + "{\"operation\":\"delete\",\"id\":\"" + MISSING_ID + "\",\"status\":\"not_found\"}"
+            + "]"));
+
+        response = template.getForEntity(base.toString() + ids.get(0), String.class);
+        assertThat(expectedResponse(response.getBody(), "\"portal-session\":\"bulk\""), equalTo(true));
+        response = template.getForEntity(base.toString() + id, String.class);
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.NOT_FOUND));
+    }
+
+    @Test
+    public void bulkInvalidOperation() throws Exception {
+        ResponseEntity<String> response = template.exchange(base.toString() + "_bulk", HttpMethod.POST,
+            prepareJson("[{\"update\":\"id\"}]"), String.class);
+        assertThat(response.getBody(), containsString("org.cbioportal.session_service.web.SessionServiceController$InvalidBulkRequestException"));
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.BAD_REQUEST));
+    }
+
+    @Test
+    public void bulkAndPatchTooLarge() throws Exception {
+        StringBuilder nested = new StringBuilder();
+        for (int i = 0; i < 101; i++) {
+            nested.append("{\"a\":");
+        }
+        nested.append('0');
+        for (int i = 0; i < 101; i++) {
+            nested.append('}');
+        }
+        ResponseEntity<String> response = template.exchange(base.toString() + "_bulk", HttpMethod.POST,
+            prepareJson("[{\"insert\":" + nested + "}]"), String.class);
+        assertThat(response.getBody(), containsString("org.cbioportal.session_service.domain.SessionDataReader$TooLargeException"));
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.PAYLOAD_TOO_LARGE));
+
+        StringBuilder operations = new StringBuilder("[{\"delete\":\"id\"}");
+        for (int i = 0; i < 1000; i++) {
+            operations.append(",{\"delete\":\"id\"}");
+        }
+        response = template.exchange(base.toString() + "_bulk", HttpMethod.POST,
+            prepareJson(operations.append(']').toString()), String.class);
+        assertThat(response.getBody(), containsString("org.cbioportal.session_service.web.SessionServiceController$BatchTooLargeException"));
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.PAYLOAD_TOO_LARGE));
+
+        String id = parseIds(addData("\"portal-session\":\"patch me\"").getBody()).get(0);
+        response = patch(id, "application/merge-patch+json", nested.toString(), null);
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.PAYLOAD_TOO_LARGE));
+
+        StringBuilder value = new StringBuilder("\"");
+        for (int i = 0; i < 65536; i++) {
+            value.append('x');
+        }
+        response = patch(id, "application/json-patch+json",
+            "[{\"op\":\"add\",\"path\":\"/big\",\"value\":" + value.append('"') + "}]", null);
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.PAYLOAD_TOO_LARGE));
+    }
+
+    @Test
+    public void exportAndImport() throws Exception {
+        String first = parseIds(addData("\"portal-session\":\"exported\"").getBody()).get(0);
+        String second = parseIds(addData("\"portal-session\":\"exported too\"").getBody()).get(0);
+
+        ResponseEntity<String> response = template.getForEntity(base.toString() + "_export", String.class);
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.OK));
+        assertThat(response.getHeaders().getContentType().toString(), startsWith("application/x-ndjson"));
+        String export = response.getBody();
+        assertThat(export.split("\n").length, equalTo(2));
+        assertThat(export, endsWith("}\n"));
+        assertThat(export, containsString("{\"id\":\"" + first + "\",\"data\":"));
+        assertThat(export, containsString("{\"id\":\"" + second + "\",\"data\":"));
+
+        // the deleted session comes back with its id, the other one is left alone
+        template.delete(base.toString() + first);
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.parseMediaType("application/x-ndjson"));
+        response = template.exchange(base.toString() + "_import", HttpMethod.POST,
+            new HttpEntity<String>(export + "\n{\"data\":{}}\n", headers), String.class);
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.OK));
+        assertThat(response.getBody(), startsWith("{\"lines\":4,\"created\":1,\"existing\":1,\"failed\":1,"));
+        assertThat(response.getBody(), containsString("\"errors\":[\"line 4: a session must have an id.\"]"));
+        response = template.getForEntity(base.toString() + first, String.class);
+        assertThat(expectedResponse(response.getBody(), "\"portal-session\":\"exported\""), equalTo(true));
+
+        response = template.exchange(base.toString() + "_import?skip=2", HttpMethod.POST,
+            new HttpEntity<String>(export, headers), String.class);
+        assertThat(response.getBody(), startsWith("{\"lines\":2,\"created\":0,\"existing\":0,\"failed\":0,"));
+
+        response = template.exchange(base.toString() + "_import?skip=-1", HttpMethod.POST,
+            new HttpEntity<String>(export, headers), String.class);
+        assertThat(response.getBody(), containsString("org.cbioportal.session_service.web.SessionServiceController$InvalidImportException"));
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.BAD_REQUEST));
+    }
+
+    @Test
+    public void addSessionWithTtl() throws Exception {
+        ResponseEntity<String> response = template.exchange(base.toString() + "?ttl=3600", HttpMethod.POST,
+            prepareData("\"portal-session\":\"expires\""), String.class);
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.OK));
+        String id = parseIds(response.getBody()).get(0);
+        Session session = sessionRepository.findOne(id);
+        assertThat(session.getTtl(), equalTo(3600L));
+        assertThat(session.getExpiresAt().getTime() - session.getCreatedAt().getTime(), equalTo(3600000L));
+
+        // reads are recorded in memory and written in batches
+        Thread.sleep(10);
+        template.getForEntity(base.toString() + id, String.class);
+        assertThat(sessionRepository.findOne(id).getLastAccessedAt(), equalTo(session.getCreatedAt()));
+        sessionExpiry.flushAccesses();
+        assertThat(sessionRepository.findOne(id).getLastAccessedAt(), greaterThan(session.getCreatedAt()));
+
+        response = template.exchange(base.toString() + "?ttl=0", HttpMethod.POST,
+            prepareData("\"portal-session\":\"expires\""), String.class);
+        assertThat(response.getBody(), containsString("org.cbioportal.session_service.web.SessionServiceController$InvalidTtlException"));
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.BAD_REQUEST));
+    }
+
+    @Test
+    public void insertIfAbsent() throws Exception {
+        Session first = sessionRepository.insertIfAbsent(new Session("{\"portal-session\":\"deduplicated\"}"));
+        Session second = sessionRepository.insertIfAbsent(new Session("{\"portal-session\" : \"deduplicated\"}"));
+        assertThat(second.getId(), equalTo(first.getId()));
+        assertThat(sessionRepository.findOne(first.getId()).getVersion(), equalTo(0L));
+    }
+
+    @Test
+    public void latencyMetrics() throws Exception {
+        String id = parseIds(addData("\"portal-session\":\"timed\"").getBody()).get(0);
+        template.getForEntity(base.toString() + id, String.class);
+
+        ResponseEntity<String> response = template.getForEntity(
+            "http://localhost:" + port + "/metrics", String.class);
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.OK));
+        assertThat(response.getBody(), containsString("\"session.http.get.api.sessions.id.micros.p99\""));
+        assertThat(response.getBody(), containsString("\"session.http.post.api.sessions.request-bytes.p99\""));
+        assertThat(response.getBody(), containsString("\"session.repository.findRawById.micros.p99\""));
+    }
+
+    @Test
+    public void connectionPool() throws Exception {
+        assertThat(mongoClient.getMongoClientOptions().getConnectionsPerHost(), equalTo(20));
+        assertThat(mongoClient.getMongoClientOptions().getMaxWaitTime(), equalTo(2000));
+        assertThat(mongoClient.getWriteConcern(), equalTo(WriteConcern.ACKNOWLEDGED));
+
+        String metrics = template.getForObject("http://localhost:" + port + "/metrics", String.class);
+        // other cached test contexts keep their own clients, so only check the pool is reported
+        assertThat(metrics, containsString("\"session.mongo.pool.max-size\":"));
+        assertThat(metrics, containsString("\"session.mongo.pool.wait-queue\":0"));
+        assertThat(metrics, containsString("\"session.executor.database-busy\":0"));
+    }
+
+    private ResponseEntity<String> patch(String id, String contentType, String patch, String ifMatch) throws Exception {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.parseMediaType(contentType));
+        if (ifMatch != null) {
+            headers.set(HttpHeaders.IF_MATCH, ifMatch);
+        }
+        return template.exchange(base.toString() + id, HttpMethod.PATCH, new HttpEntity<String>(patch, headers), String.class);
+    }
+
+    private HttpEntity<String> prepareJson(String json) throws Exception {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        return new HttpEntity<String>(json, headers);
+    }
+
     private HttpEntity<String> prepareData(String data) throws Exception {
         HttpHeaders headers = new HttpHeaders();
         headers.setContentType(MediaType.APPLICATION_JSON);
@@ -284,10 +852,12 @@ public class SessionServiceTest {
     }
 
     private boolean expectedResponse(String responseBody, String data, boolean plural) throws Exception {
-        // { and } are special characters in regexes, but also used in JSON so we need to escape them
+        // {, }, [ and ] are special characters in regexes, but also used in JSON so we need to escape them
         System.out.println("MEW: data = " + data);
         data = data.replaceAll("\\{", "\\\\{");
         data = data.replaceAll("\\}", "\\\\}");
+        data = data.replaceAll("\\[", "\\\\[");
+        data = data.replaceAll("\\]", "\\\\]");
         System.out.println("MEW: data = " + data);
         String pattern = "\\{\"id\":\"([^\"]+)\",\"data\":\\{" + data + "\\}\\}";
         if (plural) {
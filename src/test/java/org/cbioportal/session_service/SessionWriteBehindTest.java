@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.*;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.IntegrationTest;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.boot.test.TestRestTemplate;
+import org.springframework.http.*;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * Same service as {@link SessionServiceTest}, with new sessions queued
+ * and answered before they are written.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = SessionService.class)
+@WebAppConfiguration
+@IntegrationTest({"server.port=0", "session.service.write-behind.enabled=true",
+    "session.service.write-behind.ack=enqueue", "session.service.write-behind.window-ms=500"})
+@ActiveProfiles("test")
+public class SessionWriteBehindTest {
+
+    @Value("${local.server.port}")
+    private int port;
+
+    private URL base;
+    private RestTemplate template;
+    private final List<String> ids = new ArrayList<String>();
+
+    @Before
+    public void setUp() throws Exception {
+        this.base = new URL("http://localhost:" + port + "/api/sessions/");
+        template = new TestRestTemplate();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (String id : ids) {
+            template.delete(base.toString() + id);
+        }
+    }
+
+    @Test
+    public void readYourWrites() throws Exception {
+        String id = addData("{\"portal-session\":\"queued\"}");
+
+        ResponseEntity<String> response = template.getForEntity(base.toString() + id, String.class);
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.OK));
+        assertThat(response.getBody(), containsString("\"portal-session\":\"queued\""));
+
+        // waits until the session is written
+        response = template.exchange(base.toString() + id, HttpMethod.PUT,
+            json("{\"portal-session\":\"updated\"}"), String.class);
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.OK));
+        response = template.getForEntity(base.toString() + id, String.class);
+        assertThat(response.getBody(), containsString("\"portal-session\":\"updated\""));
+    }
+
+    @Test
+    public void mgetAndBulkDeleteSeeQueuedSessions() throws Exception {
+        String id = addData("{\"portal-session\":\"queued\"}");
+
+        ResponseEntity<String> response = template.exchange(base.toString() + "_mget", HttpMethod.POST,
+            json("[\"" + id + "\"]"), String.class);
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.OK));
+        assertThat(response.getBody(), containsString("\"status\":\"found\""));
+        assertThat(response.getBody(), containsString("\"portal-session\":\"queued\""));
+
+        // waits until the session is written
+        response = template.exchange(base.toString() + "_bulk", HttpMethod.POST,
+            json("[{\"delete\":\"" + id + "\"}]"), String.class);
+        assertThat(response.getBody(), containsString("\"status\":\"deleted\""));
+        response = template.getForEntity(base.toString() + id, String.class);
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.NOT_FOUND));
+    }
+
+    @Test
+    public void writesInBatches() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            addData("{\"portal-session\":\"batch " + i + "\"}");
+        }
+        String sessions = "";
+        for (int i = 0; i < 100 && !containsAll(sessions); i++) {
+            Thread.sleep(50);
+            sessions = template.getForObject(base.toString(), String.class);
+        }
+        assertThat(containsAll(sessions), equalTo(true));
+        String metrics = template.getForObject("http://localhost:" + port + "/metrics", String.class);
+        assertThat(metrics, containsString("\"session.write-behind.written\""));
+    }
+
+    private boolean containsAll(String sessions) {
+        for (String id : ids) {
+            if (!sessions.contains(id)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String addData(String data) {
+        ResponseEntity<String> response = template.exchange(base.toString(), HttpMethod.POST, json(data), String.class);
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.OK));
+        Matcher matcher = Pattern.compile("\"id\":\"([a-z0-9]+)\"").matcher(response.getBody());
+        assertThat(matcher.find(), equalTo(true));
+        ids.add(matcher.group(1));
+        return matcher.group(1);
+    }
+
+    private HttpEntity<String> json(String json) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        return new HttpEntity<String>(json, headers);
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.domain;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.dao.InvalidDataAccessApiUsageException;
+import org.springframework.data.domain.PageRequest;
+
+public class FileSessionRepositoryTest {
+
+    private static final String DATA = "{\"virtualCohort\":{\"name\":\"my cohort\",\"userID\":\"user@example.org\"}}";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FileSessionRepository repository;
+
+    @Before
+    public void setUp() throws Exception {
+        repository = open();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        repository.destroy();
+    }
+
+    private FileSessionRepository open() throws IOException {
+        return new FileSessionRepository(new SessionCompressor(false, 0, new String[] {"virtualCohort.userID"}, new String[0]),
+            new SessionExpiry(null, 3600, new String[] {"virtualCohort.userID"}, 60),
+            folder.getRoot().getPath(), false, 0, 3600, new String[] {"virtualCohort.userID", "virtualCohort.studies"});
+    }
+
+    // compresses every session and pins the given paths
+    private FileSessionRepository openCompressed(String... pinnedPaths) throws IOException {
+        return new FileSessionRepository(new SessionCompressor(true, 0, new String[0], pinnedPaths),
+            new SessionExpiry(null, 3600, pinnedPaths, 60),
+            folder.getRoot().getPath(), false, 0, 3600, new String[] {"virtualCohort.userID"});
+    }
+
+    private FileSessionRepository reopen() throws Exception {
+        repository.destroy();
+        repository = open();
+        return repository;
+    }
+
+    @Test
+    public void crud() throws Exception {
+        Session session = repository.save(new Session(DATA));
+        assertThat(session.getVersion(), equalTo(0L));
+        assertThat(repository.findOne(session.getId()).getData(), equalTo(session.getData()));
+        assertThat(repository.findVCByUserID("user@example.org"), hasSize(1));
+
+        Session updated = repository.updateData(session.getId(), new Session("{\"portal-session\":\"updated\"}"), 0L);
+        assertThat(updated.getVersion(), equalTo(1L));
+        assertThat(repository.updateData(session.getId(), new Session("{}"), 0L), nullValue());
+        assertThat(repository.findVCByUserID("user@example.org"), empty());
+        assertThat(repository.findVersionById(session.getId()).getChecksum(), equalTo(updated.getChecksum()));
+
+        assertThat(repository.delete(session.getId(), 1L), equalTo(true));
+        assertThat(repository.exists(session.getId()), equalTo(false));
+        assertThat(repository.findRawById(session.getId()), nullValue());
+    }
+
+    @Test
+    public void insertIfAbsent() throws Exception {
+        Session first = repository.insertIfAbsent(new Session(DATA));
+        Session second = repository.insertIfAbsent(new Session(DATA));
+        assertThat(second.getId(), equalTo(first.getId()));
+
+        BulkOperation insert = BulkOperation.insert(new Session(DATA));
+        repository.bulkWrite(Arrays.asList(insert), true);
+        assertThat(insert.getStatus(), equalTo(BulkOperation.Status.EXISTING));
+        assertThat(insert.getId(), equalTo(first.getId()));
+    }
+
+    @Test
+    public void restoreKeepsIdAndExistingSession() throws Exception {
+        Session existing = repository.save(new Session(DATA));
+        Session restored = new Session("{\"portal-session\":\"restored\"}");
+        restored.setId(existing.getId());
+        Session missing = new Session("{\"portal-session\":\"restored\"}");
+        missing.setId("57a0c8b1e4b0b9bce0a3d001");
+
+        BulkOperation first = BulkOperation.restore(restored);
+        BulkOperation second = BulkOperation.restore(missing);
+        repository.bulkWrite(Arrays.asList(first, second), false);
+        assertThat(first.getStatus(), equalTo(BulkOperation.Status.EXISTING));
+        assertThat(second.getStatus(), equalTo(BulkOperation.Status.CREATED));
+        assertThat(second.getId(), equalTo(missing.getId()));
+        assertThat(repository.findOne(existing.getId()).getChecksum(), equalTo(existing.getChecksum()));
+        assertThat(repository.findOne(missing.getId()).getChecksum(), equalTo(missing.getChecksum()));
+    }
+
+    @Test
+    public void pages() throws Exception {
+        String[] ids = new String[3];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = repository.save(new Session("{\"page\":" + i + "}")).getId();
+        }
+        assertThat(repository.findAllBy(new PageRequest(0, 2)), hasIds(ids[0], ids[1]));
+        assertThat(repository.findByIdGreaterThan(ids[1], new PageRequest(0, 2)), hasIds(ids[2]));
+    }
+
+    @Test
+    public void find() throws Exception {
+        String a = repository.save(new Session(cohort("b", "[\"study1\",\"study2\"]"))).getId();
+        String b = repository.save(new Session(cohort("a", "[\"study2\"]"))).getId();
+        String c = repository.save(new Session(cohort("c", "[\"study3\"]"))).getId();
+        repository.save(new Session(DATA));
+
+        SessionQuery query = new SessionQuery().where("data.virtualCohort.studies", Arrays.asList("study2"));
+        assertThat(repository.find(query), hasIds(a, b));
+        query.sort("id", true).limit(1);
+        assertThat(repository.find(query), hasIds(b));
+
+        query = new SessionQuery()
+            .where("data.virtualCohort.studies", Arrays.asList("study1", "study3"))
+            .where("data.virtualCohort.userID", Arrays.asList("user@example.org"))
+            .sort("data.virtualCohort.userID", true)
+            .fields(Arrays.asList("data.virtualCohort.name"));
+        List<Session> sessions = repository.find(query);
+        assertThat(sessions, hasIds(c, a));
+        assertThat(sessions.get(0).getData().toString(), not(containsString("study3")));
+
+        reopen();
+        assertThat(repository.find(query), hasIds(c, a));
+    }
+
+    @Test(expected = InvalidDataAccessApiUsageException.class)
+    public void findByPathThatIsNotIndexed() throws Exception {
+        repository.find(new SessionQuery().where("data.virtualCohort.name", Arrays.asList("my cohort")));
+    }
+
+    private static String cohort(String name, String studies) {
+        return "{\"virtualCohort\":{\"name\":\"" + name + "\",\"userID\":\"user@example.org\","
+            + "\"studies\":" + studies + "}}";
+    }
+
+    @Test
+    public void reopenRestoresSessions() throws Exception {
+        Session session = repository.save(new Session(DATA));
+        Session deleted = repository.save(new Session("{\"portal-session\":\"deleted\"}"));
+        repository.updateData(session.getId(), new Session(DATA.replace("my cohort", "renamed")), null);
+        repository.delete(deleted.getId(), null);
+        Date accessedAt = new Date();
+        repository.recordAccesses(Collections.singleton(session.getId()), accessedAt);
+
+        reopen();
+        Session reopened = repository.findOne(session.getId());
+        assertThat(reopened.getVersion(), equalTo(1L));
+        assertThat(reopened.getData().toString(), containsString("renamed"));
+        assertThat(reopened.getLastAccessedAt(), equalTo(accessedAt));
+        assertThat(repository.exists(deleted.getId()), equalTo(false));
+    }
+
+    @Test
+    public void incompleteRecordIsDropped() throws Exception {
+        Session session = repository.save(new Session(DATA));
+        repository.destroy();
+        // the start of a record whose write was cut short
+        FileOutputStream log = new FileOutputStream(new File(folder.getRoot(), "sessions.log"), true);
+        log.write(new byte[] {0, 0, 1, 0, 42, 42, 42, 42, SessionLog.PUT, 1, 2});
+        log.close();
+
+        repository = open();
+        assertThat(repository.findOne(session.getId()).getData(), equalTo(new Session(DATA).getData()));
+        Session added = repository.save(new Session("{\"portal-session\":\"after recovery\"}"));
+        reopen();
+        assertThat(repository.exists(added.getId()), equalTo(true));
+    }
+
+    @Test
+    public void corruptRecordInTheMiddleFailsOpen() throws Exception {
+        repository.save(new Session(DATA));
+        Session second = repository.save(new Session("{\"portal-session\":\"second\"}"));
+        repository.destroy();
+        // flip a byte in the document of the first record
+        File file = new File(folder.getRoot(), "sessions.log");
+        long size = file.length();
+        RandomAccessFile log = new RandomAccessFile(file, "rw");
+        long position = SessionLog.headerSize() + SessionLog.RECORD_HEADER_BYTES + 4;
+        log.seek(position);
+        int b = log.read();
+        log.seek(position);
+        log.write(b ^ 0xff);
+        log.close();
+
+        try {
+            repository = open();
+            fail("opened a log with a corrupt record");
+        } catch (IOException e) {
+            assertThat(e.getMessage(), containsString("corrupt record at offset " + SessionLog.headerSize()));
+        }
+        assertThat(file.length(), equalTo(size));
+
+        // the log is usable again once the damage is repaired
+        log = new RandomAccessFile(file, "rw");
+        log.seek(position);
+        log.write(b);
+        log.close();
+        repository = open();
+        assertThat(repository.exists(second.getId()), equalTo(true));
+    }
+
+    @Test
+    public void compaction() throws Exception {
+        Session session = repository.save(new Session(DATA));
+        for (int i = 0; i < 10; i++) {
+            repository.updateData(session.getId(), new Session("{\"portal-session\":" + i + "}"), null);
+        }
+        File log = new File(folder.getRoot(), "sessions.log");
+        long size = log.length();
+        assertThat(repository.getGarbageBytes(), greaterThan(0L));
+
+        repository.maintain();
+        assertThat(repository.getGarbageBytes(), equalTo(0L));
+        assertThat(log.length(), lessThan(size));
+        assertThat(repository.findOne(session.getId()).getData().toString(), containsString("9"));
+
+        reopen();
+        assertThat(repository.findOne(session.getId()).getVersion(), equalTo(10L));
+    }
+
+    @Test
+    public void expiredSessionsAreDeleted() throws Exception {
+        Session session = new Session("{\"portal-session\":\"expires\"}");
+        session.setTtl(-1L);
+        session = repository.save(session);
+        assertThat(repository.findOne(session.getId()), nullValue());
+        repository.maintain();
+        reopen();
+        assertThat(repository.findAllBy(new PageRequest(0, 10)), empty());
+    }
+
+    @Test
+    public void compressedPinnedSessionNeverExpires() throws Exception {
+        repository.destroy();
+        repository = openCompressed("pinned");
+        Session pinned = repository.save(new Session("{\"pinned\":true,\"portal-session\":\"kept\"}"));
+        Session idle = repository.save(new Session("{\"portal-session\":\"idle\"}"));
+        assertThat(repository.findRawById(pinned.getId()).getCompressed(), notNullValue());
+
+        repository.recordAccesses(Arrays.asList(pinned.getId(), idle.getId()), new Date());
+        assertThat(repository.findOne(pinned.getId()).getExpiresAt(), nullValue());
+        assertThat(repository.findOne(idle.getId()).getExpiresAt(), notNullValue());
+
+        // replay decides from the compressed document
+        repository.destroy();
+        repository = openCompressed("pinned");
+        repository.recordAccesses(Collections.singleton(pinned.getId()), new Date());
+        assertThat(repository.findOne(pinned.getId()).getExpiresAt(), nullValue());
+    }
+
+    // the sessions with these ids in this order, without generic varargs
+    private static org.hamcrest.Matcher<Iterable<? extends Session>> hasIds(String... ids) {
+        List<org.hamcrest.Matcher<? super Session>> matchers = new ArrayList<org.hamcrest.Matcher<? super Session>>();
+        for (String id : ids) {
+            matchers.add(hasProperty("id", equalTo(id)));
+        }
+        return contains(matchers);
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.domain;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+public class SessionChecksumTest {
+
+    @Test
+    public void keyOrderDoesNotMatter() throws Exception {
+        Session first = new Session("{\"a\":\"x\",\"b\":{\"c\":1,\"d\":[1,2]}}");
+        Session second = new Session("{\"b\":{\"d\":[1,2],\"c\":1},\"a\":\"x\"}");
+        assertThat(first.getChecksum(), equalTo(second.getChecksum()));
+    }
+
+    @Test
+    public void numberFormattingDoesNotMatter() throws Exception {
+        Session first = new Session("{\"a\":1,\"b\":2.50,\"c\":10000000000}");
+        Session second = new Session("{\"a\":1.0,\"b\":2.5,\"c\":1e10}");
+        assertThat(first.getChecksum(), equalTo(second.getChecksum()));
+    }
+
+    @Test
+    public void differentDataDiffers() throws Exception {
+        assertThat(new Session("{\"a\":[1,2]}").getChecksum(),
+            not(equalTo(new Session("{\"a\":[2,1]}").getChecksum())));
+        assertThat(new Session("{\"a\":\"1\"}").getChecksum(),
+            not(equalTo(new Session("{\"a\":1}").getChecksum())));
+        assertThat(new Session("{\"a\":null}").getChecksum(),
+            not(equalTo(new Session("{}").getChecksum())));
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.domain;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+public class SessionCompressorTest {
+
+    @Test
+    public void keepsUserIdAndPinnedPaths() {
+        SessionCompressor compressor = new SessionCompressor(true, 0,
+            new String[] {"virtualCohort.studyID"}, new String[] {"pinned"});
+        DBObject document = new BasicDBObject("_id", "id").append("data", SessionDataParser.parse(
+            "{\"virtualCohort\":{\"userID\":\"user\",\"studyID\":\"study\",\"name\":\"cohort\"},\"pinned\":1,\"other\":2}"));
+
+        assertThat(compressor.compress(document), equalTo(true));
+        assertThat(document.get("compressed"), notNullValue());
+        DBObject data = (DBObject) document.get("data");
+        assertThat(data.keySet(), containsInAnyOrder("virtualCohort", "pinned"));
+        assertThat(data.get("pinned"), equalTo((Object) 1));
+        DBObject virtualCohort = (DBObject) data.get("virtualCohort");
+        assertThat(virtualCohort.keySet(), containsInAnyOrder("userID", "studyID"));
+        assertThat(virtualCohort.get("userID"), equalTo((Object) "user"));
+    }
+}
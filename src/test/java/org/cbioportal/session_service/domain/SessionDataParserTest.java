@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.domain;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.Charset;
+
+import org.junit.Test;
+
+import com.mongodb.util.JSON;
+import com.mongodb.util.JSONParseException;
+
+public class SessionDataParserTest {
+
+    @Test
+    public void parsesLikeMongoJson() throws Exception {
+        String[] inputs = {
+            "{}",
+            "{\"portal-session\":{\"arg1\":\"first argument\"}}",
+            "{\"a\":[1,-2,3.5,1e3,10000000000,true,false,null,\"\\u00e9\\n\"],\"b\":{\"c\":[]}}",
+            "[{\"a\":1},2]",
+            "{unquoted:'single quoted'}"
+        };
+        for (String input : inputs) {
+            assertThat(input, SessionDataParser.parse(input), equalTo(JSON.parse(input)));
+        }
+    }
+
+    @Test
+    public void extendedJsonFallsBackToMongoJson() throws Exception {
+        String input = "{\"id\":{\"$oid\":\"56ba6a91ef860b0c66eaef89\"}}";
+        assertThat(SessionDataParser.parse(input), equalTo(JSON.parse(input)));
+    }
+
+    @Test
+    public void nestedExtendedJson() throws Exception {
+        String input = "{\"a\":[{\"b\":{\"$date\":0},\"c\":1}],\"d\":{\"$oid\":\"56ba6a91ef860b0c66eaef89\"}}";
+        assertThat(SessionDataParser.parse(input), equalTo(JSON.parse(input)));
+    }
+
+    @Test
+    public void parsesStreams() throws Exception {
+        String input = "{\"a\":[1,-2,3.5,\"\u00e9\"],\"b\":{\"c\":[]}}";
+        assertThat(parse(input.getBytes("UTF-8"), null, 3, 4), equalTo(JSON.parse(input)));
+        assertThat(parse(input.getBytes("ISO-8859-1"), Charset.forName("ISO-8859-1"), 0, 0),
+            equalTo(JSON.parse(input)));
+    }
+
+    @Test(expected = SessionDataReader.TooLargeException.class)
+    public void tooDeep() throws Exception {
+        parse("{\"a\":{\"b\":[{}]}}".getBytes("UTF-8"), null, 3, 0);
+    }
+
+    @Test(expected = SessionDataReader.TooLargeException.class)
+    public void arrayTooLong() throws Exception {
+        parse("{\"a\":[1,2,3]}".getBytes("UTF-8"), null, 0, 2);
+    }
+
+    @Test(expected = SessionDataReader.TooLargeException.class)
+    public void tooManyBytes() throws Exception {
+        // without Content-Length, so the limit applies while reading
+        new SessionDataReader(8, 0, 0).read(new ByteArrayInputStream("{\"a\":\"123456\"}".getBytes("UTF-8")), -1, null);
+    }
+
+    @Test(expected = JSONParseException.class)
+    public void invalidStream() throws Exception {
+        parse("{\"a\":".getBytes("UTF-8"), null, 0, 0);
+    }
+
+    private static Object parse(byte[] json, Charset charset, int maxDepth, int maxArrayLength) throws Exception {
+        return SessionDataParser.parse(new ByteArrayInputStream(json), charset, maxDepth, maxArrayLength);
+    }
+
+    @Test(expected = JSONParseException.class)
+    public void invalidJson() throws Exception {
+        SessionDataParser.parse("{\"portal-session\":blah blah blah}");
+    }
+
+    @Test(expected = JSONParseException.class)
+    public void trailingContent() throws Exception {
+        SessionDataParser.parse("{\"a\":1} {\"b\":2}");
+    }
+}
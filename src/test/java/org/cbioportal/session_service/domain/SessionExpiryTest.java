@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.domain;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class SessionExpiryTest {
+
+    private final SessionExpiry expiry = new SessionExpiry(null, 3600, new String[] {"virtualCohort.userID"}, 60);
+
+    @After
+    public void tearDown() {
+        expiry.stop();
+    }
+
+    @Test
+    public void idleSessionExpires() {
+        Session session = new Session("{\"portal-session\":\"anonymous\"}");
+        expiry.initialize(session);
+        assertThat(session.getCreatedAt(), notNullValue());
+        assertThat(session.getLastAccessedAt(), equalTo(session.getCreatedAt()));
+        assertThat(session.getExpiresAt().getTime() - session.getCreatedAt().getTime(), equalTo(3600000L));
+    }
+
+    @Test
+    public void ttlOverridesIdleExpiry() {
+        Session session = new Session("{\"portal-session\":\"anonymous\"}");
+        session.setTtl(60L);
+        expiry.initialize(session);
+        assertThat(session.getExpiresAt().getTime() - session.getCreatedAt().getTime(), equalTo(60000L));
+    }
+
+    @Test
+    public void pinnedSessionNeverExpires() {
+        Session session = new Session("{\"virtualCohort\":{\"userID\":\"user@example.org\"}}");
+        session.setTtl(60L);
+        expiry.initialize(session);
+        assertThat(session.getCreatedAt(), notNullValue());
+        assertThat(session.getExpiresAt(), nullValue());
+
+        assertThat(expiry.isPinned(new Session("{\"virtualCohort\":{\"name\":\"no user\"}}").getData()), equalTo(false));
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.domain;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+
+public class SessionIndexesTest {
+
+    @Test
+    public void mongo2ExplainOutput() throws Exception {
+        assertThat(SessionIndexes.isCollectionScan(explain("{cursor: 'BasicCursor', n: 0}")), equalTo(true));
+        assertThat(SessionIndexes.isCollectionScan(explain("{cursor: 'BtreeCursor data.virtualCohort.userID_1', n: 0}")), equalTo(false));
+    }
+
+    @Test
+    public void mongo3ExplainOutput() throws Exception {
+        assertThat(SessionIndexes.isCollectionScan(explain(
+            "{queryPlanner: {winningPlan: {stage: 'COLLSCAN'}}}")), equalTo(true));
+        assertThat(SessionIndexes.isCollectionScan(explain(
+            "{queryPlanner: {winningPlan: {stage: 'FETCH', inputStage: {stage: 'IXSCAN'}}}}")), equalTo(false));
+        assertThat(SessionIndexes.isCollectionScan(explain(
+            "{queryPlanner: {winningPlan: {stage: 'SUBPLAN', inputStage: {stage: 'OR', "
+            + "inputStages: [{stage: 'IXSCAN'}, {stage: 'COLLSCAN'}]}}}}")), equalTo(true));
+    }
+
+    @Test
+    public void userIdIsAlwaysIndexed() throws Exception {
+        SessionIndexes indexes = new SessionIndexes(null, new String[] {"virtualCohort.studyID", " "}, "warn");
+        assertThat(indexes.queries().keySet(), contains("findVCByUserID", "insertIfAbsent",
+            "find(data.virtualCohort.userID)", "find(data.virtualCohort.studyID)"));
+    }
+
+    private DBObject explain(String json) {
+        return (DBObject) JSON.parse(json);
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.domain;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+
+import org.bson.BasicBSONEncoder;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mongodb.BasicDBObject;
+import com.mongodb.util.JSON;
+
+public class SessionJsonWriterTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    public void writesLikeJackson() throws Exception {
+        Object data = JSON.parse("{\"a\":\"x \\\"quoted\\\" \\u00e9\",\"b\":[1,2.5,{\"c\":true}],\"n\":null,\"l\":10000000000}");
+        ObjectId id = new ObjectId();
+        BasicDBObject document = new BasicDBObject("_id", id)
+            .append("_class", Session.class.getName())
+            .append("data", data)
+            .append("checksum", "abc")
+            .append("version", 3L);
+
+        BasicDBObject expected = new BasicDBObject("id", id.toHexString()).append("data", data);
+        assertThat(write(document), equalTo(objectMapper.writeValueAsString(expected)));
+    }
+
+    @Test
+    public void missingData() throws Exception {
+        ObjectId id = new ObjectId();
+        assertThat(write(new BasicDBObject("_id", id)),
+            equalTo("{\"id\":\"" + id.toHexString() + "\",\"data\":null}"));
+    }
+
+    private String write(BasicDBObject document) throws Exception {
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        JsonGenerator generator = objectMapper.getFactory().createGenerator(json);
+        SessionJsonWriter.write(new BasicBSONEncoder().encode(document), generator);
+        generator.close();
+        return json.toString("UTF-8");
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.domain;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+import org.springframework.data.mongodb.core.query.Update;
+
+public class SessionPatchTest {
+
+    private static final String DATA = "{\"virtualCohort\":{\"name\":\"cohort\",\"samples\":[\"a\",\"b\"]}}";
+
+    @Test
+    public void jsonPatchToUpdate() {
+        Set<String> mustExist = new HashSet<String>();
+        Update update = SessionPatch.jsonPatch("[{\"op\":\"replace\",\"path\":\"/virtualCohort/name\",\"value\":\"new\"},"
+            + "{\"op\":\"add\",\"path\":\"/virtualCohort/samples/-\",\"value\":\"c\"},"
+            + "{\"op\":\"remove\",\"path\":\"/virtualCohort/description\"}]").toUpdate(mustExist);
+        assertThat(update.getUpdateObject().toString(), equalTo(
+            "{ \"$set\" : { \"data.virtualCohort.name\" : \"new\"} , "
+            + "\"$push\" : { \"data.virtualCohort.samples\" : \"c\"} , "
+            + "\"$unset\" : { \"data.virtualCohort.description\" : 1}}"));
+        assertThat(mustExist, containsInAnyOrder("data.virtualCohort.name", "data.virtualCohort.samples",
+            "data.virtualCohort.description"));
+    }
+
+    @Test
+    public void jsonPatchNotTranslatable() {
+        // inserting into an array shifts its elements
+        assertThat(SessionPatch.jsonPatch("[{\"op\":\"add\",\"path\":\"/virtualCohort/samples/0\",\"value\":\"c\"}]")
+            .toUpdate(new HashSet<String>()), nullValue());
+        assertThat(SessionPatch.jsonPatch("[{\"op\":\"test\",\"path\":\"/virtualCohort/name\",\"value\":\"cohort\"}]")
+            .toUpdate(new HashSet<String>()), nullValue());
+        // the second operation changes a path inside the first
+        assertThat(SessionPatch.jsonPatch("[{\"op\":\"add\",\"path\":\"/a\",\"value\":{}},"
+            + "{\"op\":\"add\",\"path\":\"/a/b\",\"value\":1}]").toUpdate(new HashSet<String>()), nullValue());
+    }
+
+    @Test
+    public void jsonPatchApply() {
+        Object data = SessionPatch.jsonPatch("[{\"op\":\"test\",\"path\":\"/virtualCohort/name\",\"value\":\"cohort\"},"
+            + "{\"op\":\"add\",\"path\":\"/virtualCohort/samples/0\",\"value\":\"c\"},"
+            + "{\"op\":\"move\",\"from\":\"/virtualCohort/name\",\"path\":\"/name\"},"
+            + "{\"op\":\"copy\",\"from\":\"/name\",\"path\":\"/virtualCohort/name\"}]").apply(parse(DATA));
+        assertThat(data, equalTo(parse("{\"virtualCohort\":{\"samples\":[\"c\",\"a\",\"b\"],\"name\":\"cohort\"},"
+            + "\"name\":\"cohort\"}")));
+    }
+
+    @Test(expected = SessionPatch.ConflictException.class)
+    public void jsonPatchTestFails() {
+        SessionPatch.jsonPatch("[{\"op\":\"test\",\"path\":\"/virtualCohort/name\",\"value\":\"other\"}]")
+            .apply(parse(DATA));
+    }
+
+    @Test(expected = SessionPatch.ConflictException.class)
+    public void jsonPatchMissingPath() {
+        SessionPatch.jsonPatch("[{\"op\":\"replace\",\"path\":\"/virtualCohort/missing\",\"value\":1}]")
+            .apply(parse(DATA));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void jsonPatchInvalid() {
+        SessionPatch.jsonPatch("[{\"op\":\"rename\",\"path\":\"/virtualCohort/name\"}]");
+    }
+
+    @Test
+    public void mergePatch() {
+        SessionPatch patch = SessionPatch.mergePatch("{\"virtualCohort\":{\"name\":null,\"description\":\"d\"}}");
+        Set<String> mustExist = new HashSet<String>();
+        assertThat(patch.toUpdate(mustExist).getUpdateObject().toString(), equalTo(
+            "{ \"$unset\" : { \"data.virtualCohort.name\" : 1} , \"$set\" : { \"data.virtualCohort.description\" : \"d\"}}"));
+        assertThat(mustExist, empty());
+        assertThat(patch.apply(parse(DATA)),
+            equalTo(parse("{\"virtualCohort\":{\"samples\":[\"a\",\"b\"],\"description\":\"d\"}}")));
+    }
+
+    private static Object parse(String json) {
+        return SessionDataParser.parse(json);
+    }
+}
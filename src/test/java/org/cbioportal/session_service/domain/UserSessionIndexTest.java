@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.domain;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class UserSessionIndexTest {
+
+    private static final List<String> NAME = Collections.singletonList("data.virtualCohort.name");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FileSessionRepository repository;
+    private UserSessionIndex index;
+
+    @Before
+    public void setUp() throws Exception {
+        repository = new FileSessionRepository(new SessionCompressor(false, 0, new String[0], new String[0]),
+            new SessionExpiry(null, 0, new String[0], 60), folder.getRoot().getPath(), false, 0, 3600,
+            new String[0]);
+        index = new UserSessionIndex(repository, true, new String[] {"virtualCohort.name"}, 3600, 10);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        repository.destroy();
+    }
+
+    private Session save(String userID, String name) {
+        return repository.save(new Session("{\"virtualCohort\":{\"userID\":\"" + userID + "\",\"name\":\"" + name
+            + "\",\"samples\":[\"a\",\"b\"]}}"));
+    }
+
+    @Test
+    public void lookups() {
+        Session first = save("user@example.org", "first");
+        Session second = save("user@example.org", "second");
+        save("someone.else@example.org", "other");
+        assertThat(index.find("user@example.org", NAME), nullValue());
+
+        index.rebuild();
+        List<Session> sessions = index.find("user@example.org", NAME);
+        assertThat(sessions, hasSize(2));
+        assertThat(sessions.get(0).getId(), equalTo(first.getId()));
+        assertThat(sessions.get(0).getData().toString(), equalTo("{ \"virtualCohort\" : { \"name\" : \"first\"}}"));
+        assertThat(sessions.get(1).getId(), equalTo(second.getId()));
+        assertThat(index.find("user@example.org", Arrays.asList("data.virtualCohort.userID")), hasSize(2));
+
+        // not in the index
+        assertThat(index.find("user@example.org", Arrays.asList("data.virtualCohort.samples")), nullValue());
+        assertThat(index.find("user@example.org", null), nullValue());
+        // known to have no sessions
+        assertThat(index.find("nobody@example.org", null), empty());
+    }
+
+    @Test
+    public void changes() {
+        index.rebuild();
+        Session session = save("user@example.org", "new");
+        index.put(session.getId(), session);
+        assertThat(index.find("user@example.org", NAME), hasSize(1));
+
+        Session moved = repository.updateData(session.getId(), new Session("{\"virtualCohort\":{\"userID\":\"new.owner@example.org\"}}"), null);
+        index.put(session.getId(), moved);
+        assertThat(index.find("user@example.org", NAME), empty());
+        assertThat(index.find("new.owner@example.org", NAME), hasSize(1));
+
+        index.remove(session.getId());
+        assertThat(index.find("new.owner@example.org", NAME), empty());
+    }
+
+    @Test
+    public void changesOutOfOrder() {
+        index.rebuild();
+        Session first = save("user@example.org", "first");
+        Session second = repository.updateData(first.getId(), new Session("{\"virtualCohort\":{\"userID\":"
+            + "\"user@example.org\",\"name\":\"second\"}}"), null);
+        index.put(first.getId(), second);
+        index.put(first.getId(), first);
+        assertThat(index.find("user@example.org", NAME).get(0).getData().toString(), containsString("second"));
+
+        repository.delete(first.getId(), null);
+        index.remove(first.getId());
+        index.put(first.getId(), second);
+        assertThat(index.find("user@example.org", NAME), empty());
+
+        // restored after it was deleted
+        Session restored = new Session("{\"virtualCohort\":{\"userID\":\"user@example.org\",\"name\":\"restored\"}}");
+        restored.setId(first.getId());
+        BulkOperation restore = BulkOperation.restore(restored);
+        repository.bulkWrite(Arrays.asList(restore), false);
+        index.put(first.getId(), restore.getSession());
+        assertThat(index.find("user@example.org", NAME), hasSize(1));
+    }
+
+    @Test
+    public void expiredSessionIsAMiss() {
+        index.rebuild();
+        Session session = new Session("{\"virtualCohort\":{\"userID\":\"user@example.org\",\"name\":\"expired\"}}");
+        session.setTtl(-1L);
+        session = repository.save(session);
+        index.put(session.getId(), session);
+        assertThat(index.find("user@example.org", NAME), nullValue());
+    }
+
+    @Test
+    public void tooManySessions() {
+        for (int i = 0; i <= 10; i++) {
+            save("user@example.org", "session " + i);
+        }
+        index.rebuild();
+        assertThat(index.find("user@example.org", NAME), nullValue());
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.metrics;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import org.junit.Test;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.servlet.HandlerMapping;
+
+public class RequestMetricsFilterTest {
+
+    private final RequestMetricsFilter filter = new RequestMetricsFilter();
+
+    @Test
+    public void metricName() {
+        assertThat(RequestMetricsFilter.metricName("GET", "/api/sessions/{id}"),
+            equalTo("session.http.get.api.sessions.id"));
+        assertThat(RequestMetricsFilter.metricName("POST", "/api/sessions/_mget"),
+            equalTo("session.http.post.api.sessions._mget"));
+    }
+
+    @Test
+    public void recordsLatencyAndSizes() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/api/sessions/");
+        request.setContent(new byte[100]);
+        filter.doFilter(request, new MockHttpServletResponse(), new MockFilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response)
+                throws IOException, ServletException {
+                request.setAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE, "/api/sessions/");
+                response.getOutputStream().write(new byte[42]);
+            }
+        });
+
+        assertThat(metric("session.http.post.api.sessions.micros.count"), equalTo((Object) 1L));
+        assertThat(metric("session.http.post.api.sessions.request-bytes.p50"), equalTo((Object) 100L));
+        assertThat(metric("session.http.post.api.sessions.response-bytes.p50"), equalTo((Object) 42L));
+    }
+
+    @Test
+    public void unmappedRequest() throws Exception {
+        filter.doFilter(new MockHttpServletRequest("GET", "/nothing"), new MockHttpServletResponse(),
+            new MockFilterChain());
+
+        assertThat(metric("session.http.other.micros.count"), equalTo((Object) 1L));
+        // no body was sent or written
+        assertThat(metric("session.http.other.request-bytes.count"), equalTo((Object) 0L));
+        assertThat(metric("session.http.other.response-bytes.count"), equalTo((Object) 0L));
+    }
+
+    @Test
+    public void unknownMethodsShareOneEndpoint() throws Exception {
+        for (String method : new String[] {"FOO", "BAR", "BAZ"}) {
+            filter.doFilter(new MockHttpServletRequest(method, "/api/sessions/"), new MockHttpServletResponse(),
+                new MockFilterChain() {
+                    @Override
+                    public void doFilter(ServletRequest request, ServletResponse response) {
+                        request.setAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE, "/api/sessions/");
+                    }
+                });
+        }
+
+        assertThat(metric("session.http.other.micros.count"), equalTo((Object) 3L));
+        assertThat(metric("session.http.foo.api.sessions.micros.count"), equalTo(null));
+    }
+
+    private Object metric(String name) {
+        for (Metric<?> metric : filter.metrics()) {
+            if (metric.getName().equals(name)) {
+                return metric.getValue();
+            }
+        }
+        return null;
+    }
+}
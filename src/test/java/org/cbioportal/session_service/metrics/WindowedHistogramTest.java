@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.metrics;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+import org.HdrHistogram.Histogram;
+import org.junit.Test;
+
+public class WindowedHistogramTest {
+
+    @Test
+    public void snapshotKeepsRecording() {
+        WindowedHistogram histogram = new WindowedHistogram(1000, WindowedHistogram.WINDOW_NANOS);
+        histogram.record(10);
+        assertThat(histogram.snapshot().getTotalCount(), equalTo(1L));
+        // above the highest trackable value
+        histogram.record(5000);
+        assertThat(histogram.snapshot().getTotalCount(), equalTo(2L));
+    }
+
+    @Test
+    public void oldWindowsAreDropped() {
+        // every snapshot starts a new window
+        WindowedHistogram histogram = new WindowedHistogram(1000, 0);
+        histogram.record(10);
+        assertThat(histogram.snapshot().getTotalCount(), equalTo(1L));
+        histogram.record(20);
+        // the first value is two windows old
+        Histogram snapshot = histogram.snapshot();
+        assertThat(snapshot.getTotalCount(), equalTo(1L));
+        assertThat(snapshot.getMaxValue(), equalTo(20L));
+        assertThat(histogram.snapshot().getTotalCount(), equalTo(0L));
+    }
+}
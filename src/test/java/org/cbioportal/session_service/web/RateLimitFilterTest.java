@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.web;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import com.google.common.base.Ticker;
+
+public class RateLimitFilterTest {
+
+    private long now;
+
+    private final Ticker ticker = new Ticker() {
+        @Override
+        public long read() {
+            return now;
+        }
+    };
+
+    // 1 query per second with bursts of 2, 10 reads and writes per second with bursts of 10
+    private final RateLimitFilter filter = new RateLimitFilter(true, "X-Api-Key",
+        new String[] {"key"}, 1000, 1, 2, 10, 10, 10, 10, ticker);
+
+    @Test
+    public void kinds() {
+        assertThat(RateLimitFilter.kind("GET", "/api/sessions/"), equalTo(RateLimitFilter.Kind.QUERY));
+        assertThat(RateLimitFilter.kind("GET", "/api/sessions/query"), equalTo(RateLimitFilter.Kind.QUERY));
+        assertThat(RateLimitFilter.kind("GET", "/api/sessions/_export"), equalTo(RateLimitFilter.Kind.QUERY));
+        assertThat(RateLimitFilter.kind("GET", "/api/sessions/56ba6a91ef860b0c66eaef89"), equalTo(RateLimitFilter.Kind.READ));
+        assertThat(RateLimitFilter.kind("POST", "/api/sessions/_mget"), equalTo(RateLimitFilter.Kind.READ));
+        assertThat(RateLimitFilter.kind("POST", "/api/sessions/"), equalTo(RateLimitFilter.Kind.WRITE));
+        assertThat(RateLimitFilter.kind("DELETE", "/api/sessions/56ba6a91ef860b0c66eaef89"), equalTo(RateLimitFilter.Kind.WRITE));
+        assertThat(RateLimitFilter.kind("OPTIONS", "/api/sessions/"), nullValue());
+        assertThat(RateLimitFilter.kind("GET", "/metrics"), nullValue());
+    }
+
+    @Test
+    public void limitsEachClientAndKind() throws Exception {
+        assertThat(query("10.0.0.1", null).getStatus(), equalTo(200));
+        assertThat(query("10.0.0.1", null).getStatus(), equalTo(200));
+        MockHttpServletResponse limited = query("10.0.0.1", null);
+        assertThat(limited.getStatus(), equalTo(429));
+        assertThat(limited.getHeader("Retry-After"), equalTo("1"));
+
+        // other clients and kinds have their own buckets
+        assertThat(query("10.0.0.2", null).getStatus(), equalTo(200));
+        assertThat(query("10.0.0.1", "key").getStatus(), equalTo(200));
+        assertThat(request("GET", "/api/sessions/56ba6a91ef860b0c66eaef89", "10.0.0.1", null).getStatus(),
+            equalTo(200));
+
+        // a token comes back every second
+        now += TimeUnit.MILLISECONDS.toNanos(999);
+        assertThat(query("10.0.0.1", null).getStatus(), equalTo(429));
+        now += TimeUnit.MILLISECONDS.toNanos(1);
+        assertThat(query("10.0.0.1", null).getStatus(), equalTo(200));
+        assertThat(query("10.0.0.1", null).getStatus(), equalTo(429));
+
+        assertThat(metric("session.rate-limit.query.allowed"), equalTo((Object) 5L));
+        assertThat(metric("session.rate-limit.query.limited"), equalTo((Object) 3L));
+        assertThat(metric("session.rate-limit.read.allowed"), equalTo((Object) 1L));
+        assertThat(metric("session.rate-limit.clients"), equalTo((Object) 3L));
+    }
+
+    @Test
+    public void unknownApiKeysAreLimitedByAddress() throws Exception {
+        assertThat(query("10.0.0.1", "key").getStatus(), equalTo(200));
+        assertThat(query("10.0.0.1", "key").getStatus(), equalTo(200));
+        assertThat(query("10.0.0.1", "key").getStatus(), equalTo(429));
+
+        // a new key every time shares the bucket of the address
+        assertThat(query("10.0.0.2", "other key").getStatus(), equalTo(200));
+        assertThat(query("10.0.0.2", "yet another key").getStatus(), equalTo(200));
+        assertThat(query("10.0.0.2", null).getStatus(), equalTo(429));
+        assertThat(metric("session.rate-limit.clients"), equalTo((Object) 2L));
+    }
+
+    @Test
+    public void disabled() throws Exception {
+        RateLimitFilter disabled = new RateLimitFilter(false, "", new String[0], 1000, 1, 1, 1, 1, 1, 1, ticker);
+        for (int i = 0; i < 3; i++) {
+            MockHttpServletResponse response = new MockHttpServletResponse();
+            disabled.doFilter(new MockHttpServletRequest("GET", "/api/sessions/"), response, new MockFilterChain());
+            assertThat(response.getStatus(), equalTo(200));
+        }
+    }
+
+    private MockHttpServletResponse query(String ip, String apiKey) throws Exception {
+        return request("GET", "/api/sessions/query", ip, apiKey);
+    }
+
+    private MockHttpServletResponse request(String method, String path, String ip, String apiKey) throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest(method, path);
+        request.setRemoteAddr(ip);
+        if (apiKey != null) {
+            request.addHeader("X-Api-Key", apiKey);
+        }
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        filter.doFilter(request, response, new MockFilterChain());
+        return response;
+    }
+
+    private Object metric(String name) {
+        for (Metric<?> metric : filter.metrics()) {
+            if (metric.getName().equals(name)) {
+                return metric.getValue();
+            }
+        }
+        return null;
+    }
+}
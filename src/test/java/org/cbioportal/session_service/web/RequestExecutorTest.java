@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.web;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.context.request.async.DeferredResultProcessingInterceptor;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.ServerAddress;
+
+public class RequestExecutorTest {
+
+    private final CountDownLatch release = new CountDownLatch(1);
+    private RequestExecutor executor;
+
+    @After
+    public void tearDown() throws Exception {
+        release.countDown();
+        executor.destroy();
+    }
+
+    @Test
+    public void runsTask() throws Exception {
+        executor = new RequestExecutor(1, 1, 10000, 1);
+        DeferredResult<String> result = executor.submit(new Callable<String>() {
+            @Override
+            public String call() {
+                return "done";
+            }
+        });
+        for (int i = 0; i < 100 && !result.hasResult(); i++) {
+            Thread.sleep(10);
+        }
+        assertThat((String) result.getResult(), equalTo("done"));
+    }
+
+    @Test
+    public void rejectsWhenQueueIsFull() throws Exception {
+        executor = new RequestExecutor(1, 1, 10000, 7);
+        executor.submit(blocked()); // running
+        executor.submit(blocked()); // queued
+        try {
+            executor.submit(blocked());
+            throw new AssertionError("expected ServiceBusyException");
+        } catch (RequestExecutor.ServiceBusyException e) {
+            assertThat(e.getRetryAfterSeconds(), equalTo(7));
+        }
+        assertThat(metric("session.executor.rejected"), equalTo((Object) 1L));
+        assertThat(metric("session.executor.queued"), equalTo((Object) 1));
+    }
+
+    @Test
+    public void answersDatabaseBusyWith503() throws Exception {
+        executor = new RequestExecutor(1, 1, 10000, 3);
+        DeferredResult<String> result = executor.submit(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                // nothing listens there, so no server is found within maxWaitTime
+                MongoClient client = new MongoClient(new ServerAddress("localhost", 1),
+                    MongoClientOptions.builder().maxWaitTime(100).connectTimeout(100).build());
+                try {
+                    client.getDB("test").getCollection("test").findOne();
+                    return "found";
+                } finally {
+                    client.close();
+                }
+            }
+        });
+        for (int i = 0; i < 500 && !result.hasResult(); i++) {
+            Thread.sleep(10);
+        }
+        assertThat(result.getResult(), instanceOf(RequestExecutor.ServiceBusyException.class));
+        assertThat(metric("session.executor.database-busy"), equalTo((Object) 1L));
+    }
+
+    @Test
+    public void timeoutOfQueuedWriteIs503() throws Exception {
+        executor = new RequestExecutor(1, 1, 10000, 3);
+        executor.submit(blocked()); // running
+        DeferredResult<String> write = executor.submitWrite(blocked(), 10000); // queued
+        timeOut(write);
+        assertThat(write.getResult(), instanceOf(RequestExecutor.ServiceBusyException.class));
+        assertThat(metric("session.executor.timeouts"), equalTo((Object) 1L));
+    }
+
+    @Test
+    public void timeoutOfStartedWriteIs504() throws Exception {
+        executor = new RequestExecutor(1, 1, 10000, 3);
+        final CountDownLatch started = new CountDownLatch(1);
+        DeferredResult<String> write = executor.submitWrite(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                started.countDown();
+                release.await();
+                return "written";
+            }
+        }, 10000);
+        started.await();
+        timeOut(write);
+        assertThat(write.getResult(), instanceOf(RequestExecutor.WriteTimeoutException.class));
+
+        // a read may be retried either way
+        DeferredResult<String> read = executor.submit(blocked());
+        timeOut(read);
+        assertThat(read.getResult(), instanceOf(RequestExecutor.ServiceBusyException.class));
+    }
+
+    @Test
+    public void errorIsTheResult() throws Exception {
+        executor = new RequestExecutor(1, 1, 10000, 1);
+        DeferredResult<String> result = executor.submit(new Callable<String>() {
+            @Override
+            public String call() {
+                throw new StackOverflowError();
+            }
+        });
+        for (int i = 0; i < 100 && !result.hasResult(); i++) {
+            Thread.sleep(10);
+        }
+        assertThat(result.getResult(), instanceOf(StackOverflowError.class));
+    }
+
+    // what Spring MVC does when the async request times out
+    private static void timeOut(DeferredResult<?> result) throws Exception {
+        Method getInterceptor = DeferredResult.class.getDeclaredMethod("getInterceptor");
+        getInterceptor.setAccessible(true);
+        ((DeferredResultProcessingInterceptor) getInterceptor.invoke(result)).handleTimeout(null, result);
+    }
+
+    private Callable<String> blocked() {
+        return new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                release.await();
+                return "done";
+            }
+        };
+    }
+
+    private Object metric(String name) {
+        for (Metric<?> metric : executor.metrics()) {
+            if (metric.getName().equals(name)) {
+                return metric.getValue();
+            }
+        }
+        return null;
+    }
+}
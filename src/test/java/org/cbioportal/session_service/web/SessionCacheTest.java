@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.web;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+import java.util.Date;
+
+import org.junit.Test;
+
+public class SessionCacheTest {
+
+    private final SessionCache cache = new SessionCache(1 << 20, 1 << 10, 60);
+
+    @Test
+    public void readRacingAWriteIsNotCached() {
+        long generation = cache.generation("a");
+        cache.invalidate("a");
+        cache.put("a", entry(), generation);
+        assertThat(cache.get("a"), nullValue());
+    }
+
+    @Test
+    public void writesToOtherSessionsDoNotStopCaching() {
+        long generation = cache.generation("a");
+        for (int i = 0; i < 100; i++) {
+            // ids in the same stripe do stop it
+            if (SessionCache.stripe("id" + i) != SessionCache.stripe("a")) {
+                cache.invalidate("id" + i);
+            }
+        }
+        cache.put("a", entry(), generation);
+        assertThat(cache.get("a"), notNullValue());
+    }
+
+    @Test
+    public void expiredSessionIsNotServed() {
+        cache.put("a", new SessionCache.Entry(new byte[10], "\"1\"", null, false, new Date()), cache.generation("a"));
+        assertThat(cache.get("a"), nullValue());
+        cache.put("a", new SessionCache.Entry(new byte[10], "\"1\"", null, false,
+            new Date(System.currentTimeMillis() + 60000)), cache.generation("a"));
+        assertThat(cache.get("a"), notNullValue());
+    }
+
+    private static SessionCache.Entry entry() {
+        return new SessionCache.Entry(new byte[10], "\"1\"", null, false, null);
+    }
+}